@@ -0,0 +1,90 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+/**
+ * A dedicated thread that reads the microphone into a SampleQueue and does nothing else,
+ * so a slow analysis can never make the AudioRecord overrun.
+ * Runs with the audio priority, the analysis stays on its own worker.
+ * When it stops, because of shutdown() or an error of the AudioRecord, it closes the queue so the reader sees the end of the stream.
+ */
+class AudioCapture extends Thread {
+    private final int sampleRate;
+    private final int chunkSize;
+    private final SampleQueue queue;
+    private final TunerInstrumentation instrumentation;
+    private volatile boolean running = true;
+    private volatile long readErrors = 0;
+
+    /**
+     * @param sampleRate Sample rate of the recording
+     * @param chunkSize Number of samples read at once and passed as one chunk
+     * @param queue Queue the chunks are written into
+     * @param instrumentation Receives the duration of every read
+     */
+    AudioCapture(int sampleRate, int chunkSize, SampleQueue queue, TunerInstrumentation instrumentation){
+        super("AudioCapture");
+        this.sampleRate = sampleRate;
+        this.chunkSize = chunkSize;
+        this.queue = queue;
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        AudioRecord audioRecord = null;
+        try {
+            int bufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            audioRecord = new AudioRecord(
+                    MediaRecorder.AudioSource.MIC, sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, Math.max(2 * bufferSize, 4 * chunkSize));
+            audioRecord.startRecording();
+            while (running){
+                short[] chunk = queue.beginWrite();
+                long start = System.nanoTime();
+                int read = audioRecord.read(chunk, 0, chunkSize);
+                long end = System.nanoTime();
+                if (read <= 0){
+                    readErrors++;
+                    if (read < 0) break;
+                    continue;
+                }
+                instrumentation.record(TunerInstrumentation.Stage.READ, end - start);
+                queue.commitWrite(read, end);
+            }
+        } catch (Exception e){
+            e.printStackTrace();
+        } finally {
+            queue.close();
+            if (audioRecord != null){
+                if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) audioRecord.stop();
+                audioRecord.release();
+            }
+        }
+    }
+
+    /**
+     * Stops the recording and waits until the microphone has been released,
+     * which takes at most the duration of one chunk.
+     */
+    void shutdown(){
+        running = false;
+        try {
+            join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of failed reads from the AudioRecord
+     */
+    long getReadErrors() {
+        return readErrors;
+    }
+}
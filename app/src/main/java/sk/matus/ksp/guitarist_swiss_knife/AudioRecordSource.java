@@ -0,0 +1,62 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * The microphone as a SampleSource: an AudioCapture thread records the chunks into a SampleQueue
+ * and read() takes them out of it. The stream only ends when close() stops it or when the recording fails.
+ */
+class AudioRecordSource implements SampleSource {
+    private final int sampleRate;
+    private final SampleQueue sampleQueue;
+    private final AudioCapture audioCapture;
+
+    /**
+     * @param sampleRate Sample rate of the recording
+     * @param chunkSize Number of samples in one chunk
+     * @param queuedChunks Number of chunks the recording can get ahead of the reader before the oldest ones are dropped
+     * @param instrumentation Receives the duration of every read from the microphone
+     */
+    AudioRecordSource(int sampleRate, int chunkSize, int queuedChunks, TunerInstrumentation instrumentation){
+        this.sampleRate = sampleRate;
+        sampleQueue = new SampleQueue(queuedChunks, chunkSize);
+        audioCapture = new AudioCapture(sampleRate, chunkSize, sampleQueue, instrumentation);
+    }
+
+    /**
+     * Starts the recording.
+     */
+    void start(){
+        audioCapture.start();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int read(short[] buffer, long timeoutMillis){
+        int length = sampleQueue.take(buffer, timeoutMillis);
+        if (length >= 0) return length;
+        return sampleQueue.isClosed() ? -1 : 0;
+    }
+
+    public long getTimestamp() {
+        return sampleQueue.getLastTimestamp();
+    }
+
+    /**
+     * Stops the recording and waits until the microphone has been released.
+     */
+    public void close(){
+        audioCapture.shutdown();
+    }
+
+    SampleQueue getSampleQueue() {
+        return sampleQueue;
+    }
+
+    /**
+     * @return Number of failed reads from the microphone
+     */
+    long getReadErrors() {
+        return audioCapture.getReadErrors();
+    }
+}
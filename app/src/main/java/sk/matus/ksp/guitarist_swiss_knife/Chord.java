@@ -54,6 +54,11 @@ public class Chord {
 
     private ArrayList<NameComponent>nameComponents;
 
+    /**
+     * Distances of the tones of the major scale from its root in semitones.
+     */
+    private static final int[] majorScaleIntervals = {0, 2, 4, 5, 7, 9, 11};
+
     /**
     * @param toneUtils The ToneUtils class. The Chord uses this instance to
     * resolve any requests regarding the tone operations*/
@@ -161,6 +166,19 @@ public class Chord {
         return scale.get(index);
     }
 
+    /**
+     * Resolves a flag into the interval it adds above the root, without the need for a scale.
+     * The meaning of the flag is interpreted the same way as in resolveFlag(), on the major scale.
+     * @param flag A flag loaded by assignFlagMeaning()
+     * @return Number of semitones between the root and the tone added by the flag
+     */
+    int resolveFlagInterval(String flag){
+        double rawIndex = flagMeaning.get(flag);
+        int index = (int)Math.floor(rawIndex);
+        if (rawIndex - index > 0) return majorScaleIntervals[index] + 1;
+        return majorScaleIntervals[index];
+    }
+
     /**
      * @return string representation of the tone progression in a the chord
      */
@@ -0,0 +1,209 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Recognises chords in a chromagram by comparing it with a template of every chord of the vocabulary.
+ * The chord types are given by the same flags the chord builder uses, resolved through Chord,
+ * and every type is transposed to all 12 roots.
+ * A template is the chroma the tones of the chord would produce including their lower harmonics,
+ * so e.g. the fifth that the third harmonic of the root adds doesn't count against the chord.
+ * The templates are indexed by the pitch classes they contain and a chromagram is only compared with the templates
+ * containing one of its two strongest pitch classes, which is a few dozen dot products per hop.
+ */
+class ChordTemplateIndex {
+    /**
+     * Suffixes of the names of the chord types, in the order of typeFlags.
+     */
+    private static final String[] typeSuffixes = {"", "m", "5", "sus2", "sus4", "7", "m7", "maj7", "6", "aug", "dim", "add9"};
+    /**
+     * The chord builder flags of every chord type.
+     */
+    private static final String[][] typeFlags = {
+            {"MAJOR", "5"},
+            {"MINOR", "5"},
+            {"5"},
+            {"SUS2", "5"},
+            {"SUS4", "5"},
+            {"MAJOR", "5", "7"},
+            {"MINOR", "5", "7"},
+            {"MAJOR", "5", "7M"},
+            {"MAJOR", "5", "6"},
+            {"AUG", "5#"},
+            {"DIM", "5b"},
+            {"MAJOR", "5", "ADD9"}
+    };
+    /**
+     * Relative strength of the first four harmonics of a tone and the distances of their pitch classes from the tone.
+     */
+    private static final double[] harmonicWeights = {1, 0.6, 0.36, 0.22};
+    private static final int[] harmonicIntervals = {0, 0, 7, 0};
+    /**
+     * A chromagram less similar than this to its best template is not recognised as a chord.
+     */
+    private static final double minScore = 0.85;
+
+    private final int count;
+    /**
+     * Unit-length templates, pitchClasses values per chord.
+     */
+    private final double[] templates;
+    private final String[] names;
+    private final String[] progressions;
+    /**
+     * For every pitch class, the templates containing it as a chord tone, stored as one array with offsets.
+     */
+    private final int[] classOffsets = new int[Chromagram.pitchClasses + 1];
+    private final int[] classTemplates;
+    /**
+     * Marks the templates already compared with the current chromagram, with the number of the match() call.
+     */
+    private final int[] visited;
+    private int visit = 0;
+    private double lastScore = 0;
+
+    /**
+     * @param chord A chord whose flag meanings have been loaded by assignFlagMeaning()
+     * @param toneUtils Provides the names of the roots
+     */
+    ChordTemplateIndex(Chord chord, ToneUtils toneUtils){
+        this(resolveIntervals(chord), rootNames(toneUtils));
+    }
+
+    /**
+     * @param typeIntervals For every chord type in the order of typeSuffixes, the intervals of its tones from the root in semitones
+     * @param rootNames Names of the 12 pitch classes starting with C
+     */
+    ChordTemplateIndex(int[][] typeIntervals, String[] rootNames){
+        if (typeIntervals.length != typeSuffixes.length) throw new IllegalArgumentException("Intervals of every chord type are needed");
+        int classes = Chromagram.pitchClasses;
+        count = typeIntervals.length * classes;
+        templates = new double[count * classes];
+        names = new String[count];
+        progressions = new String[count];
+        visited = new int[count];
+        boolean[][] contains = new boolean[count][classes];
+        int memberships = 0;
+        for (int type = 0; type < typeIntervals.length; type++){
+            boolean[] intervals = new boolean[classes];
+            intervals[0] = true;
+            for (int interval : typeIntervals[type]){
+                intervals[interval % classes] = true;
+            }
+            for (int root = 0; root < classes; root++){
+                int index = type * classes + root;
+                StringBuilder progression = new StringBuilder();
+                for (int interval = 0; interval < classes; interval++){
+                    if (!intervals[interval]) continue;
+                    int pitchClass = (root + interval) % classes;
+                    contains[index][pitchClass] = true;
+                    memberships++;
+                    for (int h = 0; h < harmonicWeights.length; h++){
+                        templates[index * classes + (pitchClass + harmonicIntervals[h]) % classes] += harmonicWeights[h];
+                    }
+                    progression.append(rootNames[pitchClass]).append(" ");
+                }
+                double length = 0;
+                for (int i = 0; i < classes; i++) length += templates[index * classes + i] * templates[index * classes + i];
+                length = Math.sqrt(length);
+                for (int i = 0; i < classes; i++) templates[index * classes + i] /= length;
+                names[index] = rootNames[root] + typeSuffixes[type];
+                progressions[index] = progression.toString().trim();
+            }
+        }
+        classTemplates = new int[memberships];
+        int position = 0;
+        for (int pitchClass = 0; pitchClass < classes; pitchClass++){
+            classOffsets[pitchClass] = position;
+            for (int index = 0; index < count; index++){
+                if (contains[index][pitchClass]) classTemplates[position++] = index;
+            }
+        }
+        classOffsets[classes] = position;
+    }
+
+    /**
+     * Resolves the chord builder flags of every chord type into semitones.
+     */
+    private static int[][] resolveIntervals(Chord chord){
+        int[][] intervals = new int[typeFlags.length][];
+        for (int type = 0; type < typeFlags.length; type++){
+            intervals[type] = new int[typeFlags[type].length];
+            for (int i = 0; i < typeFlags[type].length; i++){
+                intervals[type][i] = chord.resolveFlagInterval(typeFlags[type][i]);
+            }
+        }
+        return intervals;
+    }
+
+    private static String[] rootNames(ToneUtils toneUtils){
+        String[] names = new String[Chromagram.pitchClasses];
+        for (int i = 0; i < names.length; i++){
+            names[i] = toneUtils.getTones().get(i).getPrimaryName().format("%b%a");
+        }
+        return names;
+    }
+
+    /**
+     * Finds the chord whose template is the most similar to the chromagram, measured by the cosine of their angle.
+     * @param chroma Energy of every pitch class
+     * @return Index of the recognised chord or -1 if no template is similar enough
+     */
+    int match(double[] chroma){
+        int classes = Chromagram.pitchClasses;
+        int strongest = 0;
+        double length = 0;
+        for (int i = 0; i < classes; i++){
+            length += chroma[i] * chroma[i];
+            if (chroma[i] > chroma[strongest]) strongest = i;
+        }
+        int second = (strongest == 0) ? 1 : 0;
+        for (int i = 0; i < classes; i++){
+            if (i != strongest && chroma[i] > chroma[second]) second = i;
+        }
+        lastScore = 0;
+        if (length <= 0) return -1;
+        length = Math.sqrt(length);
+        visit++;
+        int best = -1;
+        double bestScore = 0;
+        for (int pass = 0; pass < 2; pass++){
+            int pitchClass = (pass == 0) ? strongest : second;
+            for (int i = classOffsets[pitchClass]; i < classOffsets[pitchClass + 1]; i++){
+                int index = classTemplates[i];
+                if (visited[index] == visit) continue;
+                visited[index] = visit;
+                double score = 0;
+                int offset = index * classes;
+                for (int j = 0; j < classes; j++) score += templates[offset + j] * chroma[j];
+                if (score > bestScore){
+                    bestScore = score;
+                    best = index;
+                }
+            }
+        }
+        lastScore = bestScore / length;
+        return (lastScore >= minScore) ? best : -1;
+    }
+
+    /**
+     * @return The similarity of the chromagram passed to the last match() to its best template, between 0 and 1
+     */
+    double getLastScore() {
+        return lastScore;
+    }
+
+    /**
+     * @param index Index returned by match()
+     * @return The name of the chord, e.g. "Am7"
+     */
+    String getName(int index){
+        return names[index];
+    }
+
+    /**
+     * @param index Index returned by match()
+     * @return The names of the tones of the chord separated by spaces
+     */
+    String getProgression(int index){
+        return progressions[index];
+    }
+}
@@ -0,0 +1,68 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * A tuner page that shows the name and the tones of the chord recognised in the recording.
+ * The chord is only recognised while this page is on the screen.
+ */
+public class ChordVisualisation extends LinearLayout implements TunerVisualisation{
+    private ChordTemplateIndex chordIndex;
+    private TextView nameView;
+    private TextView progressionView;
+    /**
+     * Index of the shown chord, -1 if none. The texts are only replaced when the chord changes.
+     */
+    private int shownChord = -1;
+
+    public ChordVisualisation(Context context, ChordTemplateIndex chordIndex){
+        super(context);
+        this.chordIndex = chordIndex;
+        setOrientation(VERTICAL);
+        setGravity(Gravity.CENTER);
+        setBackgroundColor(context.getResources().getColor(R.color.colorActivityBackground));
+        setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        nameView = new TextView(context);
+        nameView.setTextColor(Color.WHITE);
+        nameView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 72);
+        nameView.setGravity(Gravity.CENTER);
+        progressionView = new TextView(context);
+        progressionView.setTextColor(Color.LTGRAY);
+        progressionView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 24);
+        progressionView.setGravity(Gravity.CENTER);
+        addView(nameView);
+        addView(progressionView);
+        showChord(-1);
+    }
+
+    /**
+     * Method shows the chord recognised in the new block, the last chord stays shown while nothing is recognised.
+     * @param frame the frame containing the new block of data
+     */
+    public void updateSamples(SpectrumFrame frame){
+        if (frame.chord < 0 || frame.chord == shownChord) return;
+        showChord(frame.chord);
+    }
+
+    private void showChord(int chord){
+        shownChord = chord;
+        nameView.setText(chord < 0 ? "-" : chordIndex.getName(chord));
+        progressionView.setText(chord < 0 ? "" : chordIndex.getProgression(chord));
+    }
+
+    public void setRenderInterval(long millis){
+    }
+
+    public void updateMaxFrequency(double maxFrequency){
+    }
+
+    public void updateTone(ToneResolution resolution){
+    }
+}
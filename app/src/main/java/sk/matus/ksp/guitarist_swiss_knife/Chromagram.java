@@ -0,0 +1,113 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Folds the magnitude spectrum into the 12 pitch classes, C being the class 0.
+ * Every bin of an FFT spectrum is split between the two pitch classes its centre lies between, in proportion to the distance in cents.
+ * The bins of a constant-Q spectrum are centred on the tones or close to them, so every bin goes to the class of its nearest tone.
+ * The classes and the weights of the bins are computed once, so a frame costs a single pass over the bins.
+ * Consecutive frames are smoothed exponentially, a chord sounds much longer than one hop.
+ */
+class Chromagram {
+    static final int pitchClasses = 12;
+    /**
+     * Frequency of A4, the pitch classes are aligned to the same reference as ToneUtils.
+     */
+    private static final double referenceFrequency = 440;
+    /**
+     * Position of A in the octave.
+     */
+    private static final int referenceClass = 9;
+
+    private final int firstBin;
+    private final int lastBin;
+    /**
+     * For every bin from firstBin, the pitch class at or below its centre.
+     */
+    private final int[] lowerClasses;
+    /**
+     * For every bin from firstBin, the part of its magnitude added to its lower class, the rest goes to the next class.
+     */
+    private final double[] lowerWeights;
+    private final double smoothing;
+    private final double[] chroma = new double[pitchClasses];
+    private boolean empty = true;
+
+    /**
+     * @param spectrumAnalyser The analyser whose spectra are folded
+     * @param minFrequency Lowest frequency taken into account, the bass and the rumble below it only blur the chroma
+     * @param maxFrequency Highest frequency taken into account, above it there are mostly harmonics
+     * @param smoothing Weight of the newest frame, 1 for no smoothing
+     */
+    Chromagram(SpectrumAnalyser spectrumAnalyser, double minFrequency, double maxFrequency, double smoothing){
+        this.smoothing = smoothing;
+        int first = spectrumAnalyser.getFirstBin();
+        while (first < spectrumAnalyser.getLastBin() && spectrumAnalyser.binToFrequency(first) < minFrequency) first++;
+        int last = first;
+        while (last < spectrumAnalyser.getLastBin() && spectrumAnalyser.binToFrequency(last) <= maxFrequency) last++;
+        firstBin = first;
+        lastBin = last;
+        lowerClasses = new int[lastBin - firstBin];
+        lowerWeights = new double[lastBin - firstBin];
+        for (int bin = firstBin; bin < lastBin; bin++){
+            double semitones = pitchClasses * Math.log(spectrumAnalyser.binToFrequency(bin) / referenceFrequency) / Math.log(2) + referenceClass;
+            double lower = Math.floor(semitones);
+            lowerClasses[bin - firstBin] = (((int) lower) % pitchClasses + pitchClasses) % pitchClasses;
+            lowerWeights[bin - firstBin] = 1 - (semitones - lower);
+        }
+    }
+
+    /**
+     * @param constantQ The transform whose spectra are folded
+     * @param minFrequency Lowest frequency taken into account, the bass and the rumble below it only blur the chroma
+     * @param maxFrequency Highest frequency taken into account, above it there are mostly harmonics
+     * @param smoothing Weight of the newest frame, 1 for no smoothing
+     */
+    Chromagram(ConstantQTransform constantQ, double minFrequency, double maxFrequency, double smoothing){
+        this.smoothing = smoothing;
+        int first = 0;
+        while (first < constantQ.getBinCount() && constantQ.getFrequency(first) < minFrequency) first++;
+        int last = first;
+        while (last < constantQ.getBinCount() && constantQ.getFrequency(last) <= maxFrequency) last++;
+        firstBin = first;
+        lastBin = last;
+        lowerClasses = new int[lastBin - firstBin];
+        lowerWeights = new double[lastBin - firstBin];
+        for (int bin = firstBin; bin < lastBin; bin++){
+            lowerClasses[bin - firstBin] = constantQ.getToneIndex(bin) % pitchClasses;
+            lowerWeights[bin - firstBin] = 1;
+        }
+    }
+
+    /**
+     * Adds the spectrum of a new frame to the smoothed chroma.
+     * @param magnitudes The magnitude spectrum as returned by getMagnitudes() of the analyser or the transform passed to the constructor
+     */
+    void process(double[] magnitudes){
+        double keep = empty ? 0 : 1 - smoothing;
+        double add = empty ? 1 : smoothing;
+        for (int i = 0; i < pitchClasses; i++) chroma[i] *= keep;
+        for (int bin = firstBin; bin < lastBin; bin++){
+            double magnitude = magnitudes[bin] * add;
+            int lowerClass = lowerClasses[bin - firstBin];
+            double lowerWeight = lowerWeights[bin - firstBin];
+            chroma[lowerClass] += magnitude * lowerWeight;
+            chroma[lowerClass == pitchClasses - 1 ? 0 : lowerClass + 1] += magnitude * (1 - lowerWeight);
+        }
+        empty = false;
+    }
+
+    /**
+     * Forgets the previous frames, e.g. after silence.
+     */
+    void reset(){
+        for (int i = 0; i < pitchClasses; i++) chroma[i] = 0;
+        empty = true;
+    }
+
+    /**
+     * @return The smoothed energy of every pitch class, the array is reused by the next process()
+     */
+    double[] getChroma() {
+        return chroma;
+    }
+}
@@ -0,0 +1,241 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Computes a constant-Q magnitude spectrum from the FFT of a block: the bins are spaced by a fixed fraction of a semitone
+ * and their bandwidth grows with their frequency, so the low E string is resolved as finely as the top of the neck.
+ * Every tone of ToneUtils (A4 = 440 Hz) is the centre of a bin, the other bins lie evenly between the tones.
+ * As proposed by Brown and Puckette, the kernel of a bin is a Hann-windowed complex exponential Q periods long.
+ * Its spectrum is computed once and only the band of FFT bins in which it matters is kept, so a block costs
+ * one sparse product with the FFT output the SpectrumAnalyser reads instead of a correlation with every kernel in time.
+ * The kernels divide out the window the block has been multiplied with before the FFT.
+ * A kernel can't be longer than the block, so when the block is short, the lowest bins are wider than their spacing.
+ * Computing the kernels takes one FFT of the block size per bin, a few hundred of them, so prepareInBackground() computes them
+ * on a thread of their own when the transform is switched on, and the analysis skips the transform until isReady().
+ */
+class ConstantQTransform {
+    /**
+     * The band of a kernel ends where its values fall below this fraction of its largest value.
+     */
+    private static final double sparsity = 0.01;
+    private static final double referenceFrequency = 440;
+    /**
+     * Index of A4 counted in semitones from C0.
+     */
+    private static final int referenceIndex = 57;
+
+    private final int sampleRate;
+    private final int fftSize;
+    private final WindowFunction frameWindow;
+    private final int binsPerSemitone;
+    /**
+     * Distance of the first bin from C0 in bins.
+     */
+    private final int firstStep;
+    private final double[] frequencies;
+    private final double[] magnitudes;
+    /**
+     * The sparse kernels, one band of FFT bins per bin. The band of bin k starts at the FFT bin bandStarts[k],
+     * its values are stored from kernelOffsets[k] to kernelOffsets[k+1]-1 of kernels as pairs of the real
+     * and the imaginary part of the conjugate of the kernel divided by the block size. Null until prepare().
+     */
+    private int[] bandStarts;
+    private int[] kernelOffsets;
+    private double[] kernels;
+    /**
+     * Set after the kernels have been computed, publishes them to the analysis thread.
+     */
+    private volatile boolean ready = false;
+    /**
+     * Set by the first prepareInBackground(), separate from the lock of prepare() so the caller never waits for the kernels.
+     */
+    private final AtomicBoolean preparing = new AtomicBoolean(false);
+
+    /**
+     * @param sampleRate Sample rate of the analysed blocks
+     * @param fftSize Number of samples in a block
+     * @param frameWindow The window the blocks are multiplied with before the FFT
+     * @param minFrequency Lowest frequency of interest, the first bin is the nearest bin at or above it
+     * @param maxFrequency Highest frequency of interest, the last bin is the nearest bin at or below it
+     * @param binsPerSemitone Number of bins per semitone, 1 for one bin per tone, 3 for bins 1/3 of a semitone apart
+     */
+    ConstantQTransform(int sampleRate, int fftSize, WindowFunction frameWindow, double minFrequency, double maxFrequency, int binsPerSemitone){
+        if (binsPerSemitone < 1) throw new IllegalArgumentException("At least one bin per semitone is needed");
+        this.sampleRate = sampleRate;
+        this.fftSize = fftSize;
+        this.frameWindow = frameWindow;
+        this.binsPerSemitone = binsPerSemitone;
+        maxFrequency = Math.min(maxFrequency, 0.45 * sampleRate);
+        firstStep = (int) Math.ceil(binsPerSemitone * semitones(minFrequency) - 1e-9);
+        int lastStep = (int) Math.floor(binsPerSemitone * semitones(maxFrequency) + 1e-9);
+        int binCount = Math.max(0, lastStep - firstStep + 1);
+        frequencies = new double[binCount];
+        magnitudes = new double[binCount];
+        for (int k = 0; k < binCount; k++){
+            frequencies[k] = referenceFrequency * Math.pow(2, ((double) (firstStep + k) / binsPerSemitone - referenceIndex) / 12);
+        }
+    }
+
+    private void computeKernels(){
+        int binCount = frequencies.length;
+        int[] starts = new int[binCount];
+        int[] offsets = new int[binCount + 1];
+        double q = 1 / (Math.pow(2, 1.0 / (12 * binsPerSemitone)) - 1);
+        double[] window = frameWindow.createTable(fftSize);
+        DoubleFFT_1D fft = new DoubleFFT_1D(fftSize);
+        double[] kernel = new double[2 * fftSize];
+        //the bands are collected in a growing array first, their total length is only known at the end
+        double[] values = new double[4096];
+        int count = 0;
+        for (int k = 0; k < binCount; k++){
+            double frequency = frequencies[k];
+            int length = (int) Math.min(fftSize, Math.round(q * sampleRate / frequency));
+            int start = (fftSize - length) / 2;
+            double[] kernelWindow = WindowFunction.HANN.createTable(length);
+            double windowSum = 0;
+            for (double value : kernelWindow) windowSum += value;
+            Arrays.fill(kernel, 0);
+            for (int n = 0; n < length; n++){
+                int t = start + n;
+                if (window[t] <= 0) continue;
+                double value = kernelWindow[n] / (windowSum * window[t]);
+                double phase = 2 * Math.PI * frequency * t / sampleRate;
+                kernel[2*t] = value * Math.cos(phase);
+                kernel[2*t + 1] = value * Math.sin(phase);
+            }
+            fft.complexForward(kernel);
+            double largest = 0;
+            for (int j = 1; j < fftSize / 2; j++){
+                largest = Math.max(largest, kernel[2*j] * kernel[2*j] + kernel[2*j + 1] * kernel[2*j + 1]);
+            }
+            double threshold = sparsity * sparsity * largest;
+            int first = 1, last = fftSize / 2 - 1;
+            while (first < last && kernel[2*first] * kernel[2*first] + kernel[2*first + 1] * kernel[2*first + 1] < threshold) first++;
+            while (last > first && kernel[2*last] * kernel[2*last] + kernel[2*last + 1] * kernel[2*last + 1] < threshold) last--;
+            starts[k] = first;
+            offsets[k] = count;
+            if (count + 2 * (last - first + 1) > values.length){
+                values = Arrays.copyOf(values, 2 * (count + 2 * (last - first + 1)));
+            }
+            for (int j = first; j <= last; j++){
+                values[count++] = kernel[2*j] / fftSize;
+                values[count++] = -kernel[2*j + 1] / fftSize;
+            }
+        }
+        offsets[binCount] = count;
+        kernels = Arrays.copyOf(values, count);
+        kernelOffsets = offsets;
+        bandStarts = starts;
+    }
+
+    /**
+     * Computes the kernels on the calling thread unless they are ready.
+     */
+    synchronized void prepare(){
+        if (ready) return;
+        computeKernels();
+        ready = true;
+    }
+
+    /**
+     * Starts computing the kernels on a new thread unless they are ready or already being computed.
+     */
+    void prepareInBackground(){
+        if (ready || !preparing.compareAndSet(false, true)) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prepare();
+            }
+        }, "ConstantQKernels").start();
+    }
+
+    /**
+     * @return true once the kernels have been computed and process() won't block
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    private static double semitones(double frequency){
+        return 12 * Math.log(frequency / referenceFrequency) / Math.log(2) + referenceIndex;
+    }
+
+    /**
+     * Computes the constant-Q spectrum of a block. Computes the kernels first if they aren't ready,
+     * which the analysis avoids by checking isReady().
+     * @param fftOutput Output of DoubleFFT_1D.realForward() of the windowed block
+     */
+    void process(double[] fftOutput){
+        if (!ready) prepare();
+        for (int k = 0; k < magnitudes.length; k++){
+            double re = 0, im = 0;
+            for (int i = kernelOffsets[k], j = 2 * bandStarts[k]; i < kernelOffsets[k + 1]; i += 2, j += 2){
+                double x = fftOutput[j];
+                double y = fftOutput[j + 1];
+                re += x * kernels[i] - y * kernels[i + 1];
+                im += x * kernels[i + 1] + y * kernels[i];
+            }
+            magnitudes[k] = Math.sqrt(re*re + im*im);
+        }
+    }
+
+    /**
+     * Single precision variant of process(double[]).
+     * @param fftOutput Output of FloatFFT_1D.realForward() of the windowed block
+     */
+    void process(float[] fftOutput){
+        if (!ready) prepare();
+        for (int k = 0; k < magnitudes.length; k++){
+            double re = 0, im = 0;
+            for (int i = kernelOffsets[k], j = 2 * bandStarts[k]; i < kernelOffsets[k + 1]; i += 2, j += 2){
+                double x = fftOutput[j];
+                double y = fftOutput[j + 1];
+                re += x * kernels[i] - y * kernels[i + 1];
+                im += x * kernels[i + 1] + y * kernels[i];
+            }
+            magnitudes[k] = Math.sqrt(re*re + im*im);
+        }
+    }
+
+    /**
+     * @return The magnitude of every bin, on the same scale as SpectrumAnalyser: a sinusoid of amplitude A in the centre
+     * of a bin gives A/2. The array is reused by the next process().
+     */
+    double[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    int getBinCount(){
+        return magnitudes.length;
+    }
+
+    int getBinsPerSemitone() {
+        return binsPerSemitone;
+    }
+
+    /**
+     * @return Centre frequency of the bin in Hz
+     */
+    double getFrequency(int bin){
+        return frequencies[bin];
+    }
+
+    /**
+     * @return Index of the nearest tone of ToneUtils counted in semitones from C0
+     */
+    int getToneIndex(int bin){
+        return (int) Math.round((double) (firstStep + bin) / binsPerSemitone);
+    }
+
+    /**
+     * @return Number of values kept in all the kernels, the number of complex multiplications per block, 0 before they are ready
+     */
+    int getKernelSize(){
+        return ready ? kernels.length / 2 : 0;
+    }
+}
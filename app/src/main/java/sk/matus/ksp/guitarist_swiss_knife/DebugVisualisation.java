@@ -0,0 +1,132 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A tuner page for developers that shows the 50th, 95th and 99th percentile of the time spent in every stage
+ * of the tuner, together with the number of recorded and dropped chunks, failed reads, dropped frames
+ * and the time the duty cycle spent in every state.
+ * The report can be exported into a file, so that devices can be compared.
+ */
+public class DebugVisualisation extends LinearLayout implements TunerVisualisation{
+    /**
+     * The statistics are refreshed at most this often, in milliseconds.
+     */
+    private static final long refreshInterval = 500;
+    private Context context;
+    private TunerInstrumentation instrumentation;
+    private TextView reportView;
+    private long lastRefresh = 0;
+
+    public DebugVisualisation(Context context, TunerInstrumentation instrumentation){
+        super(context);
+        this.context = context;
+        this.instrumentation = instrumentation;
+        setOrientation(VERTICAL);
+        setBackgroundColor(context.getResources().getColor(R.color.colorActivityBackground));
+        setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        reportView = new TextView(context);
+        reportView.setTypeface(Typeface.MONOSPACE);
+        reportView.setTextColor(Color.WHITE);
+        reportView.setPadding(20, 20, 20, 20);
+        addView(reportView, new LayoutParams(LayoutParams.MATCH_PARENT, 0, 1));
+        LinearLayout buttons = new LinearLayout(context);
+        Button exportButton = new Button(context);
+        exportButton.setText(context.getResources().getString(R.string.debug_export));
+        exportButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportReport();
+            }
+        });
+        Button resetButton = new Button(context);
+        resetButton.setText(context.getResources().getString(R.string.debug_reset));
+        resetButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                DebugVisualisation.this.instrumentation.reset();
+                refresh();
+            }
+        });
+        buttons.addView(exportButton);
+        buttons.addView(resetButton);
+        addView(buttons);
+    }
+
+    /**
+     * Method refreshes the statistics if the last refresh is older than refreshInterval.
+     * @param frame the newest frame, only used as a tick
+     */
+    public void updateSamples(SpectrumFrame frame){
+        long now = SystemClock.uptimeMillis();
+        if (now - lastRefresh < refreshInterval) return;
+        lastRefresh = now;
+        refresh();
+    }
+
+    private void refresh(){
+        StringWriter report = new StringWriter();
+        try {
+            instrumentation.writeReport(report);
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        reportView.setText(report.toString());
+    }
+
+    /**
+     * Writes the report into a new file in the app's external files directory and tells the user where it is.
+     */
+    private void exportReport(){
+        File directory = context.getExternalFilesDir(null);
+        String name = String.format("tuner_latency_%s.tsv", new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()));
+        FileWriter writer = null;
+        try {
+            if (directory == null) throw new IOException("External storage is not available");
+            File file = new File(directory, name);
+            writer = new FileWriter(file);
+            writer.write(String.format("device\t%s %s\nandroid\t%d\n", Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT));
+            instrumentation.writeReport(writer);
+            Toast.makeText(context, String.format(context.getResources().getString(R.string.debug_exported), file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e){
+            e.printStackTrace();
+            Toast.makeText(context, context.getResources().getString(R.string.debug_export_failed), Toast.LENGTH_SHORT).show();
+        } finally {
+            if (writer != null){
+                try {
+                    writer.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void setRenderInterval(long millis){
+    }
+
+    public void updateMaxFrequency(double maxFrequency){
+    }
+
+    public void updateTone(ToneResolution resolution){
+    }
+}
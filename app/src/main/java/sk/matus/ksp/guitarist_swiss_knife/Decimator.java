@@ -0,0 +1,87 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.Arrays;
+
+/**
+ * Lowers the sample rate of a stream by an integer factor.
+ * The signal is first low-passed by a windowed-sinc FIR filter, so that frequencies above the new Nyquist
+ * frequency don't alias into the analysed band, and then only every factor-th sample is kept.
+ * The filter is only evaluated for the samples that are kept.
+ */
+class Decimator {
+    private final int factor;
+    private final double[] taps;
+    /**
+     * Past input samples, stored twice so that the last taps.length samples always form a contiguous run.
+     */
+    private final double[] history;
+    private int writePosition = 0;
+    private int phase = 0;
+
+    /**
+     * @param factor Ratio of the input and the output sample rate
+     * @param tapsPerPhase Length of the filter divided by the factor, more taps give a steeper filter
+     */
+    Decimator(int factor, int tapsPerPhase){
+        if (factor < 1) throw new IllegalArgumentException("Decimation factor has to be positive");
+        this.factor = factor;
+        int length = factor * tapsPerPhase + 1;
+        taps = new double[length];
+        history = new double[2 * length];
+        //the passband ends a little below the new Nyquist frequency to leave room for the transition band
+        double cutoff = 0.45 / factor;
+        double[] window = WindowFunction.BLACKMAN.createTable(length);
+        double sum = 0;
+        for (int i = 0; i < length; i++){
+            double x = i - (length - 1) / 2.0;
+            double sinc = (x == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            taps[i] = sinc * window[i];
+            sum += taps[i];
+        }
+        for (int i = 0; i < length; i++){
+            taps[i] /= sum;
+        }
+    }
+
+    /**
+     * Filters and downsamples a run of input samples.
+     * @param input Buffer with input samples
+     * @param offset Index of the first input sample
+     * @param length Number of input samples
+     * @param output Buffer for the output samples, needs room for length/factor + 1 samples
+     * @return Number of samples written to the beginning of output
+     */
+    public int process(double[] input, int offset, int length, double[] output){
+        int produced = 0;
+        int tapCount = taps.length;
+        for (int i = offset; i < offset + length; i++){
+            history[writePosition] = input[i];
+            history[writePosition + tapCount] = input[i];
+            writePosition++;
+            if (writePosition == tapCount) writePosition = 0;
+            phase++;
+            if (phase < factor) continue;
+            phase = 0;
+            //history[writePosition .. writePosition + tapCount) holds the last tapCount samples, oldest first
+            double sum = 0;
+            for (int t = 0; t < tapCount; t++){
+                sum += taps[t] * history[writePosition + t];
+            }
+            output[produced++] = sum;
+        }
+        return produced;
+    }
+
+    /**
+     * Empties the history of the filter, as if only silence had been processed.
+     */
+    public void reset(){
+        Arrays.fill(history, 0);
+        writePosition = 0;
+        phase = 0;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+}
@@ -0,0 +1,112 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Lowers the rate of the analysis and of the rendering when there is little to show.
+ * While the noise gate is closed the tuner is SILENT and nothing is analysed.
+ * Once the detected pitch stays within stableCents for stableCount analysed frames, the tuner is STABLE
+ * and only every stableInterval-th frame is analysed, until the pitch moves or the sound stops.
+ * The time spent in every state is counted, so the savings can be measured.
+ */
+class DutyCycleController {
+    enum State {
+        SILENT, ACTIVE, STABLE
+    }
+
+    private static final double centsPerLog = 1200 / Math.log(2);
+    private final int stableCount;
+    private final double stableCents;
+    private final int stableInterval;
+    private volatile State state = State.SILENT;
+    private final long[] stateTime = new long[State.values().length];
+    private volatile long stateStart = System.nanoTime();
+    private double referenceFrequency = 0;
+    private int stableFrames = 0;
+    private int skippedFrames = 0;
+
+    /**
+     * @param stableCount Number of consecutive analysed frames with a steady pitch after which the tuner is STABLE
+     * @param stableCents Largest deviation from the first of these frames that still counts as steady
+     * @param stableInterval Only every stableInterval-th frame is analysed in the STABLE state
+     */
+    DutyCycleController(int stableCount, double stableCents, int stableInterval){
+        this.stableCount = stableCount;
+        this.stableCents = stableCents;
+        this.stableInterval = stableInterval;
+    }
+
+    /**
+     * Called for every frame whose analysis the gate has let through.
+     * @return false if the frame should be skipped to save the work
+     */
+    boolean shouldAnalyse(){
+        if (state != State.STABLE) return true;
+        if (++skippedFrames < stableInterval) return false;
+        skippedFrames = 0;
+        return true;
+    }
+
+    /**
+     * Informs the controller that the gate has closed.
+     */
+    void silence(){
+        stableFrames = 0;
+        setState(State.SILENT);
+    }
+
+    /**
+     * Informs the controller about the result of an analysed frame.
+     * @param frequency The detected frequency, 0 if none was found
+     */
+    void analysed(double frequency){
+        if (frequency <= 0){
+            stableFrames = 0;
+            setState(State.ACTIVE);
+            return;
+        }
+        if (stableFrames == 0 || Math.abs(Math.log(frequency / referenceFrequency)) * centsPerLog > stableCents){
+            referenceFrequency = frequency;
+            stableFrames = 1;
+            setState(State.ACTIVE);
+            return;
+        }
+        if (++stableFrames >= stableCount) setState(State.STABLE);
+    }
+
+    private void setState(State newState){
+        if (newState == state) return;
+        long now = System.nanoTime();
+        stateTime[state.ordinal()] += now - stateStart;
+        stateStart = now;
+        state = newState;
+        skippedFrames = 0;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return How long the visualisations may wait between two redraws in the current state, 0 for no limit
+     */
+    long getRenderInterval(){
+        switch (state){
+            case SILENT:
+                return 200;
+            case STABLE:
+                return 50;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Only approximate when called from another thread than the one updating the controller.
+     * @param queried The state to ask about
+     * @return Time spent in the state in milliseconds, including the current stay
+     */
+    long getTimeInState(State queried){
+        long time = stateTime[queried.ordinal()];
+        if (queried == state) time += System.nanoTime() - stateStart;
+        return time / 1000000;
+    }
+}
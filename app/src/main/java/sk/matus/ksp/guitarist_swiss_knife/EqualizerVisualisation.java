@@ -2,23 +2,25 @@ package sk.matus.ksp.guitarist_swiss_knife;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.SurfaceTexture;
 import android.view.TextureView;
 import android.view.TextureView.SurfaceTextureListener;
+import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 
-import java.util.Arrays;
 
 /**
  * A kind of tuner visualization that shows the spread of frequencies and their intensity
  * on a 2-dimensional plane
  */
-public class EqualizerVisualisation extends LinearLayout implements TunerVisualisation{
+public class EqualizerVisualisation extends LinearLayout implements TunerVisualisation, RenderScheduler.Renderable{
     Context context;
     private TextureView mTextureView;
-    private RenderThread mThread;
+    private RenderScheduler renderScheduler;
+    private volatile boolean surfaceAvailable = false;
     private int mWidth;
     private int mHeight;
     /**
@@ -29,9 +31,18 @@ public class EqualizerVisualisation extends LinearLayout implements TunerVisuali
     private Paint freqPaint = new Paint();
     private int backgroundColor;
     /**
-     * An array containing the current block of samples processed by FFT.
+     * The newest frame received from the tuner that hasn't been drawn yet and the frame the render thread draws from,
+     * which stays retained until a newer frame replaces it.
+     */
+    private final FrameSlot frames = new FrameSlot();
+    /**
+     * An array containing the magnitude spectrum of the current block.
      */
     private double[] freqData;
+    /**
+     * Number of bins of freqData that hold the computed spectrum.
+     */
+    private int freqBins;
     /**
      * Self-descriptive, contains the current frequency taken from freqData
      */
@@ -44,13 +55,84 @@ public class EqualizerVisualisation extends LinearLayout implements TunerVisuali
      * Contains the information about the currentTone being either higherSemitone, lowerSemitone or precisely at currentFreq.
      */
     private String currentDirection = "";
+    private static final String frequencyFormat = "Current frequency is %.2f Hz";
+    /**
+     * The lines of drawEstimation, built when the frequency or the tone changes so that the redraw doesn't allocate.
+     */
+    private volatile String frequencyText = String.format(frequencyFormat, 0.0);
+    private volatile String toneText = "";
+    private TunerInstrumentation instrumentation;
+    /**
+     * Number of Hz covered by one bin of freqData.
+     */
+    private double binWidth;
+    /**
+     * The constant-Q spectrum of the current block, drawn by the logarithmic graph instead of freqData when available.
+     */
+    private double[] constantQData;
+    private int constantQBins;
+    private double constantQMinFrequency;
+    private int constantQBinsPerOctave;
 
-    public EqualizerVisualisation(Context context){
+    /**
+     * If true, the x-axis is the logarithm of the frequency, so that every octave takes the same width.
+     * Otherwise the bins are spread linearly. Switched by tapping the visualisation.
+     */
+    private volatile boolean logarithmic = true;
+    private static final double logMinFrequency = 40;
+    private static final double logMaxFrequency = 5000;
+    /**
+     * Range of the y-axis in the logarithmic mode, in dB relative to a full-scale sinusoid.
+     */
+    private static final double minDecibels = -100;
+    private static final double maxDecibels = -20;
+    /**
+     * How fast the held peaks fall, in heights of the graph per second.
+     */
+    private static final float peakDecay = 0.5f;
+    /**
+     * Gives the height of a magnitude as a fraction of the graph, so no logarithm is needed per column.
+     */
+    private static final DecibelScale decibelScale = new DecibelScale(minDecibels, maxDecibels);
+    /**
+     * For every column of the logarithmic graph, the first bin it shows and the bin after the last one.
+     * Rebuilt on the render thread when the width or the bins change.
+     */
+    private int[] columnFirstBin = new int[0];
+    private int[] columnEndBin = new int[0];
+    private int mappedWidth = -1;
+    private int mappedBins = -1;
+    /**
+     * The bin width of the FFT spectrum or the lowest frequency of the constant-Q spectrum the columns were mapped for.
+     */
+    private double mappedScale = -1;
+    private boolean mappedConstantQ = false;
+    private float[] peaks = new float[0];
+    private float[] columnLines = new float[0];
+    private float[] peakLines = new float[0];
+    private long lastPeakUpdate = 0;
+    /**
+     * Set by the last draw if the held peaks are still falling and the graph has to be redrawn.
+     */
+    private boolean animating = false;
+    private Paint peakPaint = new Paint();
+    private Paint axisPaint = new Paint();
+    private static final int[] axisFrequencies = {50, 100, 200, 500, 1000, 2000, 5000};
+    private static final String[] axisLabels = {"50", "100", "200", "500", "1k", "2k", "5k"};
+    private float[] axisPositions = new float[axisFrequencies.length];
+
+    public EqualizerVisualisation(Context context, RenderScheduler renderScheduler){
         super(context);
         this.context = context;
+        this.renderScheduler = renderScheduler;
+        renderScheduler.register(this);
+        renderScheduler.setMinInterval(this, frameInterval);
         wavePaint.setColor(context.getResources().getColor(R.color.colorKSPGreen));
         freqPaint.setColor(context.getResources().getColor(R.color.colorKSPGreen));
         freqPaint.setTextSize(40);
+        peakPaint.setColor(Color.WHITE);
+        axisPaint.setColor(Color.GRAY);
+        axisPaint.setTextSize(24);
         backgroundColor = context.getResources().getColor(R.color.colorActivityBackground);
         mTextureView = new TextureView(context);
         mTextureView.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
@@ -60,15 +142,38 @@ public class EqualizerVisualisation extends LinearLayout implements TunerVisuali
         setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
                 ViewGroup.LayoutParams.MATCH_PARENT));
         this.addView(mTextureView);
+        setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                logarithmic = !logarithmic;
+                EqualizerVisualisation.this.renderScheduler.requestRender(EqualizerVisualisation.this);
+            }
+        });
     }
 
+
     /**
      * Method that updates the content of the canvas.
      * @param canvas A canvas to be drawn to*/
     public void doDraw(Canvas canvas) {
+        SpectrumFrame newest = frames.takeNewest();
+        if (newest != null){
+            freqData = newest.data;
+            freqBins = newest.bins;
+            binWidth = newest.binWidth;
+            constantQData = newest.constantQ;
+            constantQBins = newest.constantQBins;
+            constantQMinFrequency = newest.constantQMinFrequency;
+            constantQBinsPerOctave = newest.constantQBinsPerOctave;
+        }
+        animating = false;
         if ((canvas==null) || (freqData==null)) return;
         canvas.drawColor(backgroundColor);
-        drawEqualizer(canvas);
+        if (logarithmic){
+            drawLogEqualizer(canvas);
+        } else {
+            drawEqualizer(canvas);
+        }
         drawEstimation(canvas);
     }
 
@@ -78,28 +183,126 @@ public class EqualizerVisualisation extends LinearLayout implements TunerVisuali
      * the frequency of the sound.
      * @param canvas The canvas to be drawn to*/
     private void drawEqualizer(Canvas canvas){
+        if (mWidth <= 20) return;
         int baseLineY = (int)(mHeight*0.8);
-        for (int i = 0, x=10;  i < freqData.length; i+=freqData.length/(mWidth-20), x++){
+        int step = Math.max(1, freqBins/(mWidth-20));
+        for (int i = 0, x=10;  i < freqBins; i+=step, x++){
             int amplitudePeak = (int)(baseLineY - Math.max(4/baseLineY,Math.log(freqData[i]*10000))*baseLineY/4);
             canvas.drawLine(x,baseLineY,x,amplitudePeak,wavePaint);
         }
     }
 
+    /**
+     * Maps the columns between x=10 and x=mWidth-10 onto the bins they show. The columns split the range from
+     * logMinFrequency to logMaxFrequency into equal ratios. A column narrower than a bin shows the bin containing it.
+     * @param constantQ true to map onto the bins of the constant-Q spectrum, false for the FFT bins
+     */
+    private void buildColumnMap(boolean constantQ){
+        int columns = Math.max(0, mWidth - 20);
+        if (columnFirstBin.length != columns){
+            columnFirstBin = new int[columns];
+            columnEndBin = new int[columns];
+            peaks = new float[columns];
+            columnLines = new float[4 * columns];
+            peakLines = new float[4 * columns];
+        }
+        double ratio = logMaxFrequency / logMinFrequency;
+        for (int c = 0; c < columns; c++){
+            double low = logMinFrequency * Math.pow(ratio, (double) c / columns);
+            double high = logMinFrequency * Math.pow(ratio, (double) (c + 1) / columns);
+            int bins = constantQ ? constantQBins : freqBins;
+            int first = constantQ ? constantQBin(low) : (int) Math.floor(low / binWidth + 0.5);
+            int end = constantQ ? constantQBin(high) : (int) Math.floor(high / binWidth + 0.5);
+            if (end <= first) end = first + 1;
+            columnFirstBin[c] = Math.max(0, Math.min(first, bins));
+            columnEndBin[c] = Math.max(0, Math.min(end, bins));
+        }
+        for (int i = 0; i < axisFrequencies.length; i++){
+            axisPositions[i] = (float) (10 + columns * Math.log(axisFrequencies[i] / logMinFrequency) / Math.log(ratio));
+        }
+        mappedWidth = mWidth;
+        mappedBins = constantQ ? constantQBins : freqBins;
+        mappedScale = constantQ ? constantQMinFrequency : binWidth;
+        mappedConstantQ = constantQ;
+    }
+
+    /**
+     * @return Index of the constant-Q bin nearest to the frequency, may lie outside of the computed bins
+     */
+    private int constantQBin(double frequency){
+        return (int) Math.floor(constantQBinsPerOctave * Math.log(frequency / constantQMinFrequency) / Math.log(2) + 0.5);
+    }
+
+    /**
+     * Method draws the spectrum with the logarithm of the frequency on the x-axis and dB on the y-axis.
+     * Every column shows the strongest of its bins, the strongest value of the recent past is held above it and slowly falls.
+     * The constant-Q spectrum is drawn if the block has one, its bins are as fine at the low strings as at the top of the neck.
+     * The cost depends only on the width of the canvas, all the columns are drawn by a single drawLines call.
+     * @param canvas The canvas to be drawn to*/
+    private void drawLogEqualizer(Canvas canvas){
+        boolean constantQ = constantQBins > 0;
+        double[] data = constantQ ? constantQData : freqData;
+        int bins = constantQ ? constantQBins : freqBins;
+        double scale = constantQ ? constantQMinFrequency : binWidth;
+        if (mWidth != mappedWidth || constantQ != mappedConstantQ || bins != mappedBins || scale != mappedScale){
+            buildColumnMap(constantQ);
+        }
+        int columns = columnFirstBin.length;
+        float baseLineY = (int)(mHeight*0.8);
+        long now = System.nanoTime();
+        float decay = (lastPeakUpdate == 0) ? 0 : peakDecay * (now - lastPeakUpdate) / 1e9f;
+        lastPeakUpdate = now;
+        for (int c = 0; c < columns; c++){
+            float strongest = 0;
+            for (int bin = columnFirstBin[c]; bin < columnEndBin[c]; bin++){
+                if (data[bin] > strongest) strongest = (float) data[bin];
+            }
+            float height = decibelScale.toFraction(strongest);
+            float peak = Math.max(height, peaks[c] - decay);
+            peaks[c] = peak;
+            if (peak > height) animating = true;
+            float x = 10 + c;
+            columnLines[4*c] = x;
+            columnLines[4*c + 1] = baseLineY;
+            columnLines[4*c + 2] = x;
+            columnLines[4*c + 3] = baseLineY - height * baseLineY;
+            peakLines[4*c] = x;
+            peakLines[4*c + 1] = baseLineY - peak * baseLineY - 2;
+            peakLines[4*c + 2] = x;
+            peakLines[4*c + 3] = baseLineY - peak * baseLineY;
+        }
+        canvas.drawLines(columnLines, 0, 4 * columns, wavePaint);
+        canvas.drawLines(peakLines, 0, 4 * columns, peakPaint);
+        for (int i = 0; i < axisFrequencies.length; i++){
+            canvas.drawText(axisLabels[i], axisPositions[i], baseLineY + axisPaint.getTextSize() + 5, axisPaint);
+        }
+    }
+
     /**
      * Method draws the current prevalent frequency and a tone estimation for it.
      * @param canvas The canvas to be drawn to*/
     private void drawEstimation(Canvas canvas){
         int x = (int)(mWidth*0.1);
-        canvas.drawText(String.format("Current frequency is %.2f Hz",currentFreq),x,(int)(mHeight*0.05), freqPaint);
-        canvas.drawText(String.format("%s %s", currentDirection, currentTone), x, (int) (mHeight * 0.05) + freqPaint.getTextSize() + 5, freqPaint);
+        canvas.drawText(frequencyText, x, (int)(mHeight*0.05), freqPaint);
+        canvas.drawText(toneText, x, (int) (mHeight * 0.05) + freqPaint.getTextSize() + 5, freqPaint);
+    }
+
+    /**
+     * Method retains the new block, the render thread picks it up as its freqData on the next redraw.
+     * @param frame the frame containing the new block of data to use
+     */
+    public void updateSamples(SpectrumFrame frame){
+        frames.offer(frame);
+        renderScheduler.requestRender(this);
     }
 
     /**
-     * Method updates its current freqData with a new block.
-     * @param data the new block of data to use
+     * Gives back all the frames held by this visualisation, so that the tuner can reuse them.
+     * Called while the render thread isn't drawing, when the surface is gone or the activity is destroyed.
      */
-    public void updateSamples(double[] data){
-        this.freqData = Arrays.copyOf(data, data.length);
+    void releaseFrames(){
+        frames.release();
+        freqData = null;
     }
 
     /**
@@ -107,74 +310,97 @@ public class EqualizerVisualisation extends LinearLayout implements TunerVisuali
      * @param freq the new frequency to use.
      */
     public void updateMaxFrequency(double freq){
+        if (freq == currentFreq) return;
         this.currentFreq = freq;
+        frequencyText = String.format(frequencyFormat, freq);
     }
 
     /**
      * Method that updates the currentTone and currentDirection with up-to-date data.
-     * @param tone
-     */
-
-    public void updateTone(Tone tone){
-        currentTone = tone;
-        double error = currentFreq - tone.getFrequency();
-        double lowerLimit = (tone.getFrequencyInterval().x - tone.getFrequency())/2;
-        double upperLimit = (tone.getFrequencyInterval().y - tone.getFrequency())/2;
-        if (error > 0){
-            currentDirection = context.getString(R.string.frequency_below);
-            if (error < upperLimit) currentDirection = context.getString(R.string.frequency_precise);
-        } else
-        {
-            currentDirection = context.getString(R.string.frequency_above);
-            if (error > lowerLimit) currentDirection = context.getString(R.string.frequency_precise);
+     * @param resolution the nearest tone and the deviation from it
+     */
+
+    public void updateTone(ToneResolution resolution){
+        String direction;
+        if (resolution.inTune){
+            direction = context.getString(R.string.frequency_precise);
+        } else if (resolution.cents > 0){
+            direction = context.getString(R.string.frequency_below);
+        } else {
+            direction = context.getString(R.string.frequency_above);
         }
+        if (resolution.tone != currentTone || !direction.equals(currentDirection)){
+            currentTone = resolution.tone;
+            currentDirection = direction;
+            toneText = String.format("%s %s", currentDirection, currentTone);
+        }
+        renderScheduler.requestRender(this);
     }
 
-    private class RenderThread extends Thread {
-        private volatile boolean mRunning = true;
+    /**
+     * Time between two redraws in milliseconds when the tuner doesn't ask for less.
+     */
+    private static final long frameInterval = 15;
 
-        @Override
-        public void run() {
-
-            while (mRunning && !Thread.interrupted()) {
-                final Canvas canvas = mTextureView.lockCanvas(null);
-                try {
-                    doDraw(canvas);
-                } finally {
-                    mTextureView.unlockCanvasAndPost(canvas);
-                }
+    /**
+     * Method sets the shortest time between two redraws.
+     * @param millis Shortest time between two redraws, 0 for the default rate
+     */
+    public void setRenderInterval(long millis){
+        renderScheduler.setMinInterval(this, Math.max(frameInterval, millis));
+    }
 
-                try {
-                    Thread.sleep(15);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Method sets where the durations of the draws are recorded.
+     * @param instrumentation the instrumentation of the tuner
+     */
+    public void setInstrumentation(TunerInstrumentation instrumentation){
+        this.instrumentation = instrumentation;
+    }
 
-        public void stopRendering() {
-            interrupt();
-            mRunning = false;
+    /**
+     * Method draws the newest data, called by the renderScheduler on its thread.
+     * @param frameTimeNanos time of the vsync
+     * @return true while the held peaks are falling
+     */
+    public boolean render(long frameTimeNanos){
+        if (!surfaceAvailable) return false;
+        long drawStart = System.nanoTime();
+        final Canvas canvas = mTextureView.lockCanvas(null);
+        if (canvas == null) return false;
+        try {
+            doDraw(canvas);
+        } finally {
+            mTextureView.unlockCanvasAndPost(canvas);
         }
-
+        if (instrumentation != null){
+            instrumentation.record(TunerInstrumentation.Stage.DRAW, System.nanoTime() - drawStart);
+        }
+        return animating;
     }
 
     private class CanvasListener implements SurfaceTextureListener {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                               int width, int height) {
-            mThread = new RenderThread();
-            mThread.start();
             mWidth = mTextureView.getWidth();
             mHeight = mTextureView.getHeight();
+            surfaceAvailable = true;
+            renderScheduler.requestRender(EqualizerVisualisation.this);
         }
 
         @Override
-        public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-            if (mThread != null) {
-                mThread.stopRendering();
-            }
-            return true;
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            surfaceAvailable = false;
+            //the render thread may be drawing right now, so the surface is released after its frame
+            renderScheduler.runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    releaseFrames();
+                    surface.release();
+                }
+            });
+            return false;
         }
 
         @Override
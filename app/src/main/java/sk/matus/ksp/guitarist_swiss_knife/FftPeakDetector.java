@@ -0,0 +1,86 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Pitch detector that takes the frequency of the strongest spectral peak as the pitch.
+ * Optionally the magnitudes are passed through a harmonic product spectrum first,
+ * so that the strongest bin is the fundamental rather than one of its harmonics.
+ * The peak is then located between the bins by the SpectrumAnalyser.
+ */
+class FftPeakDetector implements PitchDetector {
+    private final SpectrumAnalyser analyser;
+    /**
+     * Preallocated copy of the spectrum the harmonic product is computed in.
+     */
+    private final double[] magnitudes;
+    private final HarmonicProductSpectrum harmonicProduct;
+
+    /**
+     * @param analyser The spectral stage that processes the frames this detector works with
+     * @param harmonics Number of harmonics combined by the harmonic product spectrum, 1 to search the plain spectrum
+     */
+    FftPeakDetector(SpectrumAnalyser analyser, int harmonics){
+        this.analyser = analyser;
+        this.magnitudes = new double[analyser.getMagnitudes().length];
+        this.harmonicProduct = harmonics > 1 ? new HarmonicProductSpectrum(harmonics, false) : null;
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return true;
+    }
+
+    @Override
+    public void addSamples(double[] samples, int offset, int length) {
+    }
+
+    /**
+     * Every frame is analysed on its own, there is nothing to forget.
+     */
+    @Override
+    public void reset() {
+    }
+
+    /**
+     * Naive but reliable way of figuring out current frequency from the spectrum
+     * @param spectrum Magnitude spectrum of the latest frame as computed by the analyser
+     * @return The frequency of the bin with the highest (harmonic product of) magnitude
+     * */
+    @Override
+    public double detectPitch(double[] spectrum){
+        int bins = analyser.getLastBin();
+        System.arraycopy(spectrum, 0, magnitudes, 0, bins);
+        if (harmonicProduct != null){
+            bins = harmonicProduct.apply(magnitudes, bins);
+        }
+        double maximum = 0;
+        int index = -1;
+        for (int i = analyser.getFirstBin(); i < bins; i++){
+            if (magnitudes[i]>maximum){
+                maximum = magnitudes[i];
+                index = i;
+            }
+        }
+        if (index == -1) return 0;
+        if (harmonicProduct == null) return analyser.refineFrequency(index);
+        //the fundamental may be weak, so the position is refined on its strongest harmonic
+        int strongestHarmonic = 1;
+        for (int h = 2; h <= harmonicProduct.getHarmonics(); h++){
+            if (spectrum[index * h] > spectrum[index * strongestHarmonic]) strongestHarmonic = h;
+        }
+        int harmonicBin = findLocalMaximum(spectrum, index * strongestHarmonic);
+        return analyser.refineFrequency(harmonicBin) / strongestHarmonic;
+    }
+
+    /**
+     * The multiple of a bin index may be off by one from the actual peak of the harmonic.
+     * @param spectrum Magnitude spectrum
+     * @param bin Expected position of the peak
+     * @return The strongest of the bin and its two neighbours
+     */
+    private int findLocalMaximum(double[] spectrum, int bin){
+        int best = bin;
+        if (bin - 1 >= analyser.getFirstBin() && spectrum[bin - 1] > spectrum[best]) best = bin - 1;
+        if (bin + 1 < analyser.getLastBin() && spectrum[bin + 1] > spectrum[best]) best = bin + 1;
+        return best;
+    }
+}
@@ -0,0 +1,42 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * The frames of the SpectrumFramePool a visualisation holds: the newest one it received and hasn't drawn yet
+ * and the one it draws from. Frames are offered on the UI thread and taken on the render thread, release() gives
+ * both back from any thread, so a visualisation that goes away never keeps frames the tuner needs.
+ */
+class FrameSlot {
+    private SpectrumFrame pending;
+    private SpectrumFrame drawn;
+
+    /**
+     * Retains a new frame, the one offered before it and not taken yet is released.
+     */
+    synchronized void offer(SpectrumFrame frame){
+        frame.retain();
+        if (pending != null) pending.release();
+        pending = frame;
+    }
+
+    /**
+     * Makes the newest offered frame the drawn one and releases the previous drawn frame.
+     * @return The new drawn frame, null if nothing has been offered since the last call
+     */
+    synchronized SpectrumFrame takeNewest(){
+        if (pending == null) return null;
+        if (drawn != null) drawn.release();
+        drawn = pending;
+        pending = null;
+        return drawn;
+    }
+
+    /**
+     * Releases both frames.
+     */
+    synchronized void release(){
+        if (pending != null) pending.release();
+        if (drawn != null) drawn.release();
+        pending = null;
+        drawn = null;
+    }
+}
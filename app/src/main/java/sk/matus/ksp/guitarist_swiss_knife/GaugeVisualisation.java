@@ -1,6 +1,7 @@
 package sk.matus.ksp.guitarist_swiss_knife;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -10,24 +11,24 @@ import android.view.TextureView.SurfaceTextureListener;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 
-import java.util.Arrays;
-
 /**
  * A kind of tuner visualization that shows the frequency on the gauge
  * where the gauge arm deviation describes the frequency deviation from the nearest
  * clear tone.
  */
-public class GaugeVisualisation extends LinearLayout implements TunerVisualisation{
+public class GaugeVisualisation extends LinearLayout implements TunerVisualisation, RenderScheduler.Renderable{
     private TextureView mTextureView;
-    private RenderThread mThread;
+    private RenderScheduler renderScheduler;
+    private volatile boolean surfaceAvailable = false;
     Context context;
     private int mWidth;
     private int mHeight;
     private int backgroundColor;
     /**
-     * An array containing the current block of samples processed by FFT.
+     * Tells whether any block of samples has been received yet. The gauge itself only shows the tone,
+     * so it doesn't need to keep the samples.
      */
-    private double[] freqData;
+    private volatile boolean hasSamples = false;
     /**
      * Self-descriptive, contains the current frequency taken from freqData
      */
@@ -36,11 +37,32 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
      * Contains the string representation of the tone which corresponds to currentFreq
      */
     private Tone currentTone;
+    private volatile ToneLabel currentLabel;
+    private TunerInstrumentation instrumentation;
+    /**
+     * Capture time of the newest frame with a pitch, which the next redraw shows on the arm.
+     */
+    private volatile long pendingCaptureTime = 0;
+    /**
+     * Capture time of the frame whose pitch the arm showed last, only used by the render thread.
+     */
+    private long shownCaptureTime = 0;
 
-    public GaugeVisualisation(Context context){
+    public GaugeVisualisation(Context context, RenderScheduler renderScheduler){
         super(context);
         this.context = context;
+        this.renderScheduler = renderScheduler;
+        renderScheduler.register(this);
+        renderScheduler.setMinInterval(this, frameInterval);
         backgroundColor = context.getResources().getColor(R.color.colorActivityBackground);
+        majorTickPaint.setStrokeWidth(4);
+        majorTickPaint.setColor(Color.WHITE);
+        minorTickPaint.setStrokeWidth(2);
+        minorTickPaint.setColor(Color.LTGRAY);
+        indicatorPaint.setStrokeWidth(5);
+        indicatorPaint.setColor(context.getResources().getColor(R.color.colorKSPGreen));
+        textBackgroundPaint.setColor(backgroundColor);
+        textPaint.setColor(Color.WHITE);
         mTextureView = new TextureView(context);
         mTextureView.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
                 ViewGroup.LayoutParams.MATCH_PARENT));
@@ -52,12 +74,13 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
     }
 
     /**
-     * Method that updates the content of the canvas.
+     * Method that updates the content of the canvas: the cached dial, the arm and the tone.
+     * Nothing is allocated unless the size of the canvas has changed.
      * @param canvas A canvas to be drawn to*/
     public void doDraw(Canvas canvas) {
-        if ((canvas==null) || (freqData==null)) return;
-        canvas.drawColor(backgroundColor);
-        drawDial(canvas);
+        if ((canvas==null) || !hasSamples) return;
+        if (layoutChanged || dialLayer == null) buildDialLayer();
+        canvas.drawBitmap(dialLayer, 0, 0, null);
         drawIndicator(canvas);
         drawEstimation(canvas);
     }
@@ -66,20 +89,53 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
     private double dialInnerRadius;
     private double centerX;
     private double centerY;
+    /**
+     * The background and the dial, which only change with the size of the canvas.
+     */
+    private Bitmap dialLayer;
+    /**
+     * Set on the UI thread when the size changes, the render thread then rebuilds the dialLayer.
+     */
+    private volatile boolean layoutChanged = true;
+    private Paint majorTickPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint minorTickPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint indicatorPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint textBackgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Computes the geometry of the gauge for the current size and draws the background with the dial into the dialLayer.
+     * Called on the render thread.
+     */
+    private void buildDialLayer(){
+        layoutChanged = false;
+        if (mWidth > mHeight){
+            indicatorRadius = (mHeight*0.8);
+        } else {
+            indicatorRadius = 3*mWidth/4;
+        }
+        dialOuterRadius = (indicatorRadius*0.8);
+        centerX = mWidth/2;
+        centerY = (mHeight-indicatorRadius)/2 + indicatorRadius;
+        dialInnerRadius = (dialOuterRadius*0.8);
+        textPaint.setTextSize(mHeight / 10);
+        dialLayer = Bitmap.createBitmap(Math.max(1, mWidth), Math.max(1, mHeight), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(dialLayer);
+        canvas.drawColor(backgroundColor);
+        drawDial(canvas);
+    }
+
     private void drawDial(Canvas canvas){
-        Paint p = new Paint();
-        p.setAntiAlias(true);
         double angle = 90;
         for (int i = 0; i<20; i++){
             double innerMarkerRadius = dialInnerRadius;
             double outerMarkerRadius;
+            Paint p;
             if (i % 5 == 0){
-                p.setStrokeWidth(4);
-                p.setColor(Color.WHITE);
+                p = majorTickPaint;
                 outerMarkerRadius = dialOuterRadius;
             } else{
-                p.setStrokeWidth(2);
-                p.setColor(Color.LTGRAY);
+                p = minorTickPaint;
                 double len = (dialOuterRadius - dialInnerRadius)*0.7;
                 outerMarkerRadius = dialOuterRadius-len/2;
             }
@@ -103,41 +159,54 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
     private void drawIndicator(Canvas canvas){
         double angle = oldAngle;
         if (steps > 0) angle+=correctionStep;
-        Paint p = new Paint();
-        p.setAntiAlias(true);
-        p.setStrokeWidth(5);
-        p.setColor(context.getResources().getColor(R.color.colorKSPGreen));
         int indicatorX = (int)(centerX - indicatorRadius*Math.cos(angle*Math.PI/180));
         int indicatorY = (int)(centerY - indicatorRadius*Math.sin(angle*Math.PI/180));
-        canvas.drawLine((int) centerX, (int) centerY, indicatorX, indicatorY, p);
+        canvas.drawLine((int) centerX, (int) centerY, indicatorX, indicatorY, indicatorPaint);
         oldAngle = angle;
         steps--;
     }
 
+    /**
+     * The parts of the name of the shown tone, prepared when the tone changes so that drawing them allocates nothing.
+     */
+    private static class ToneLabel {
+        final String baseName;
+        final String octave;
+        final String accidental;
+
+        ToneLabel(ToneName name){
+            baseName = Character.toString(name.baseName);
+            octave = Integer.toString(name.octave);
+            accidental = name.accidental;
+        }
+    }
+
     /**
      * Method draws the current prevalent frequency and a tone estimation for it.
      * @param canvas The canvas to be drawn to*/
     private void drawEstimation(Canvas canvas){
-        if (currentTone == null) return;
-        Paint p = new Paint();
-        p.setColor(backgroundColor);
-        p.setAntiAlias(true);
-        p.setTextSize(mHeight / 10);
-        canvas.drawRect((float) (centerX - dialInnerRadius * 0.6), (float) (centerY - indicatorRadius * 0.2), (float) (centerX + dialInnerRadius * 0.6), mHeight, p);
-        ToneName name = currentTone.getPrimaryName();
-        float textWidth = p.measureText(name.baseName +Integer.toString(name.octave)+name.accidental);
-        p.setColor(Color.WHITE);
-        canvas.drawText(Character.toString(name.baseName), (mWidth-textWidth)/2, mHeight - p.getTextSize()*2, p);
-        canvas.drawText(Integer.toString(name.octave), (mWidth-textWidth)/2 + p.measureText(Character.toString(name.baseName)), mHeight - p.getTextSize()*2 + p.getTextSize()*2/3, p);
-        canvas.drawText(name.accidental, (mWidth-textWidth)/2+textWidth-p.measureText(Integer.toString(name.octave)), mHeight - p.getTextSize()*2, p);
+        ToneLabel label = currentLabel;
+        if (label == null) return;
+        canvas.drawRect((float) (centerX - dialInnerRadius * 0.6), (float) (centerY - indicatorRadius * 0.2), (float) (centerX + dialInnerRadius * 0.6), mHeight, textBackgroundPaint);
+        float baseWidth = textPaint.measureText(label.baseName);
+        float octaveWidth = textPaint.measureText(label.octave);
+        float textWidth = baseWidth + octaveWidth + textPaint.measureText(label.accidental);
+        float textSize = textPaint.getTextSize();
+        canvas.drawText(label.baseName, (mWidth-textWidth)/2, mHeight - textSize*2, textPaint);
+        canvas.drawText(label.octave, (mWidth-textWidth)/2 + baseWidth, mHeight - textSize*2 + textSize*2/3, textPaint);
+        canvas.drawText(label.accidental, (mWidth-textWidth)/2+textWidth-octaveWidth, mHeight - textSize*2, textPaint);
     }
 
     /**
-     * Method updates its current freqData with a new block.
-     * @param data the new block of data to use
+     * Method notes that a new block has arrived.
+     * @param frame the frame containing the new block of data
      */
-    public void updateSamples(double[] data){
-        this.freqData = Arrays.copyOf(data, data.length);
+    public void updateSamples(SpectrumFrame frame){
+        if (!hasSamples){
+            hasSamples = true;
+            renderScheduler.requestRender(this);
+        }
+        if (frame.frequency > 0) pendingCaptureTime = frame.captureTime;
     }
 
     /**
@@ -150,78 +219,94 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
 
     private double correctionStep = 0;
     private int steps;
-    public void updateTone(Tone tone){
-        this.currentTone = tone;
-        double error = currentFreq - tone.getFrequency();
-        double lowerLimit = (tone.getFrequencyInterval().x - tone.getFrequency())/2;
-        double upperLimit = (tone.getFrequencyInterval().y - tone.getFrequency())/2;
-        double angleError;
-        if (error > 0){
-            angleError = (error /(upperLimit*2))*50;
-        } else
-        {
-            angleError = (-error /(lowerLimit*2))*50;
+    /**
+     * Method updates the tone and moves the arm, one degree of the dial corresponds to one cent.
+     * @param resolution the nearest tone and the deviation from it
+     */
+    public void updateTone(ToneResolution resolution){
+        if (resolution.tone != currentTone){
+            currentTone = resolution.tone;
+            currentLabel = (currentTone == null) ? null : new ToneLabel(currentTone.getPrimaryName());
         }
+        double angleError = resolution.cents;
         double newAngle = Math.min(Math.max(90 + angleError, 40), 140);
         steps = Math.max(2, (int) Math.ceil(Math.log(Math.pow(Math.abs(newAngle - oldAngle), 3))));
         correctionStep = (newAngle - oldAngle) / steps;
         steps++;
+        renderScheduler.requestRender(this);
     }
 
-    private class RenderThread extends Thread {
-        private volatile boolean mRunning = true;
+    /**
+     * Time between two redraws in milliseconds when the tuner doesn't ask for less.
+     * The arm moves by one step per redraw, so this also sets the speed of its animation.
+     */
+    private static final long frameInterval = 30;
 
-        @Override
-        public void run() {
-
-            while (mRunning && !Thread.interrupted()) {
-                final Canvas canvas = mTextureView.lockCanvas(null);
-                try {
-                    doDraw(canvas);
-                } finally {
-                    mTextureView.unlockCanvasAndPost(canvas);
-                }
+    /**
+     * Method sets the shortest time between two redraws.
+     * @param millis Shortest time between two redraws, 0 for the default rate
+     */
+    public void setRenderInterval(long millis){
+        renderScheduler.setMinInterval(this, Math.max(frameInterval, millis));
+    }
 
-                try {
-                    Thread.sleep(30);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Method sets where the durations of the draws and the delays of the arm are recorded.
+     * @param instrumentation the instrumentation of the tuner
+     */
+    public void setInstrumentation(TunerInstrumentation instrumentation){
+        this.instrumentation = instrumentation;
+    }
 
-        public void stopRendering() {
-            interrupt();
-            mRunning = false;
+    /**
+     * Method draws the gauge, called by the renderScheduler on its thread.
+     * @param frameTimeNanos time of the vsync
+     * @return true while the arm is still moving
+     */
+    public boolean render(long frameTimeNanos){
+        if (!surfaceAvailable) return false;
+        long drawStart = System.nanoTime();
+        long captureTime = pendingCaptureTime;
+        final Canvas canvas = mTextureView.lockCanvas(null);
+        if (canvas == null) return false;
+        try {
+            doDraw(canvas);
+        } finally {
+            mTextureView.unlockCanvasAndPost(canvas);
         }
-
+        if (instrumentation != null){
+            long drawEnd = System.nanoTime();
+            instrumentation.record(TunerInstrumentation.Stage.DRAW, drawEnd - drawStart);
+            if (captureTime != 0 && captureTime != shownCaptureTime){
+                instrumentation.record(TunerInstrumentation.Stage.TOTAL, drawEnd - captureTime);
+                shownCaptureTime = captureTime;
+            }
+        }
+        return steps > 0;
     }
 
     private class CanvasListener implements SurfaceTextureListener {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                               int width, int height) {
-            mThread = new RenderThread();
-            mThread.start();
             mWidth = mTextureView.getWidth();
             mHeight = mTextureView.getHeight();
-            if (mWidth > mHeight){
-                indicatorRadius = (mHeight*0.8);
-            } else {
-                indicatorRadius = 3*mWidth/4;
-            }
-            dialOuterRadius = (indicatorRadius*0.8);
-            centerX = mWidth/2;
-            centerY = (mHeight-indicatorRadius)/2 + indicatorRadius;
-            dialInnerRadius = (dialOuterRadius*0.8);
+            layoutChanged = true;
+            surfaceAvailable = true;
+            renderScheduler.requestRender(GaugeVisualisation.this);
         }
 
         @Override
-        public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-            if (mThread != null) {
-                mThread.stopRendering();
-            }
-            return true;
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            surfaceAvailable = false;
+            //the render thread may be drawing right now, so the surface is released after its frame
+            renderScheduler.runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    surface.release();
+                }
+            });
+            return false;
         }
 
         @Override
@@ -229,6 +314,8 @@ public class GaugeVisualisation extends LinearLayout implements TunerVisualisati
                                                 int width, int height) {
             mWidth = mTextureView.getWidth();
             mHeight = mTextureView.getHeight();
+            layoutChanged = true;
+            renderScheduler.requestRender(GaugeVisualisation.this);
         }
 
         @Override
@@ -0,0 +1,134 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.Arrays;
+
+/**
+ * A bank of sliding Goertzel (sliding DFT) filters, each measuring the amplitude of a single frequency
+ * over the last few samples. Every filter has its own window length, so the bank can have the same
+ * resolution in cents for low and high tones. All filters share one ring of past samples.
+ * Adding a sample costs a constant number of multiplications per filter, regardless of the window lengths.
+ */
+class GoertzelFilterBank {
+    private final int filterCount;
+    private final int[] windowSizes;
+    private final double[] rotationReal;
+    private final double[] rotationImaginary;
+    private final double[] leavingReal;
+    private final double[] leavingImaginary;
+    private final double[] real;
+    private final double[] imaginary;
+    private final double[] history;
+    private int writePosition = 0;
+    private long samplesSinceRefresh = 0;
+    /**
+     * The recursion rotates the accumulated value with every sample and rounding errors slowly build up,
+     * so the values are recomputed from the history once in a while.
+     */
+    private final int refreshInterval;
+
+    /**
+     * @param sampleRate Sample rate of the analysed signal
+     * @param frequencies The frequency each filter measures
+     * @param windowSizes The number of samples each filter sums over
+     */
+    GoertzelFilterBank(double sampleRate, double[] frequencies, int[] windowSizes){
+        filterCount = frequencies.length;
+        this.windowSizes = windowSizes.clone();
+        rotationReal = new double[filterCount];
+        rotationImaginary = new double[filterCount];
+        leavingReal = new double[filterCount];
+        leavingImaginary = new double[filterCount];
+        real = new double[filterCount];
+        imaginary = new double[filterCount];
+        int longest = 0;
+        for (int i = 0; i < filterCount; i++){
+            double omega = 2 * Math.PI * frequencies[i] / sampleRate;
+            rotationReal[i] = Math.cos(omega);
+            rotationImaginary[i] = Math.sin(omega);
+            leavingReal[i] = Math.cos(omega * windowSizes[i]);
+            leavingImaginary[i] = Math.sin(omega * windowSizes[i]);
+            longest = Math.max(longest, windowSizes[i]);
+        }
+        history = new double[longest + 1];
+        refreshInterval = 64 * longest;
+    }
+
+    /**
+     * @param index Distance from the newest sample, 0 is the newest one
+     * @return The sample recorded index samples ago
+     */
+    private double sampleAgo(int index){
+        int position = writePosition - 1 - index;
+        if (position < 0) position += history.length;
+        return history[position];
+    }
+
+    /**
+     * Updates all filters with new samples.
+     * The value of a filter with frequency w over the window N is X(n) = sum of x(n-m)e^(jwm) for m from 0 to N-1,
+     * which satisfies X(n) = e^(jw)X(n-1) + x(n) - x(n-N)e^(jwN).
+     * @param samples Buffer with samples normalised to the interval [-1,1]
+     * @param offset Index of the first new sample
+     * @param length Number of new samples
+     */
+    public void addSamples(double[] samples, int offset, int length){
+        for (int s = offset; s < offset + length; s++){
+            double sample = samples[s];
+            history[writePosition] = sample;
+            writePosition++;
+            if (writePosition == history.length) writePosition = 0;
+            for (int i = 0; i < filterCount; i++){
+                double leaving = sampleAgo(windowSizes[i]);
+                double re = real[i];
+                double im = imaginary[i];
+                real[i] = rotationReal[i] * re - rotationImaginary[i] * im + sample - leaving * leavingReal[i];
+                imaginary[i] = rotationImaginary[i] * re + rotationReal[i] * im - leaving * leavingImaginary[i];
+            }
+        }
+        samplesSinceRefresh += length;
+        if (samplesSinceRefresh >= refreshInterval) refresh();
+    }
+
+    /**
+     * Empties the history and the filters, as if only silence had been added.
+     */
+    public void reset(){
+        Arrays.fill(history, 0);
+        Arrays.fill(real, 0);
+        Arrays.fill(imaginary, 0);
+        writePosition = 0;
+        samplesSinceRefresh = 0;
+    }
+
+    private void refresh(){
+        for (int i = 0; i < filterCount; i++){
+            double re = 0;
+            double im = 0;
+            double phaseReal = 1;
+            double phaseImaginary = 0;
+            for (int m = 0; m < windowSizes[i]; m++){
+                double sample = sampleAgo(m);
+                re += sample * phaseReal;
+                im += sample * phaseImaginary;
+                double nextReal = phaseReal * rotationReal[i] - phaseImaginary * rotationImaginary[i];
+                phaseImaginary = phaseReal * rotationImaginary[i] + phaseImaginary * rotationReal[i];
+                phaseReal = nextReal;
+            }
+            real[i] = re;
+            imaginary[i] = im;
+        }
+        samplesSinceRefresh = 0;
+    }
+
+    /**
+     * @param filter Index of the filter
+     * @return Amplitude of the filter's frequency, normalised by its window length so that filters with different windows can be compared
+     */
+    public double getMagnitude(int filter){
+        return Math.sqrt(real[filter] * real[filter] + imaginary[filter] * imaginary[filter]) / windowSizes[filter];
+    }
+
+    public int getFilterCount() {
+        return filterCount;
+    }
+}
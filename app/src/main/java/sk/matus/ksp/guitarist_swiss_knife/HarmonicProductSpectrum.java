@@ -0,0 +1,48 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Spectral stage that emphasises the fundamental of a harmonic sound.
+ * Each bin is combined with the bins at 2, 3, ... times its frequency, so only a bin whose
+ * multiples all carry energy stays strong. A string whose 2nd or 3rd harmonic is louder
+ * than the fundamental then still peaks at the fundamental.
+ */
+class HarmonicProductSpectrum {
+    private final int harmonics;
+    private final boolean sum;
+
+    /**
+     * @param harmonics Number of harmonics combined into each bin, including the fundamental
+     * @param sum If true, the harmonics are added up (harmonic sum spectrum) instead of multiplied,
+     *            which is more forgiving when one of the harmonics is missing
+     */
+    HarmonicProductSpectrum(int harmonics, boolean sum){
+        if (harmonics < 1) throw new IllegalArgumentException("At least one harmonic is needed");
+        this.harmonics = harmonics;
+        this.sum = sum;
+    }
+
+    /**
+     * Replaces the magnitudes by their harmonic product (or sum) in place.
+     * The bins are processed in ascending order, so every bin still reads the original values of its multiples.
+     * @param magnitudes Magnitude spectrum indexed by bin
+     * @param length Number of valid bins in magnitudes
+     * @return Number of leading bins that hold a meaningful result, the multiples of the remaining bins lie outside the spectrum
+     */
+    public int apply(double[] magnitudes, int length){
+        int valid = length / harmonics;
+        magnitudes[0] = 0;
+        for (int bin = 1; bin < valid; bin++){
+            double value = magnitudes[bin];
+            for (int h = 2; h <= harmonics; h++){
+                if (sum) value += magnitudes[bin * h];
+                else value *= magnitudes[bin * h];
+            }
+            magnitudes[bin] = value;
+        }
+        return valid;
+    }
+
+    public int getHarmonics() {
+        return harmonics;
+    }
+}
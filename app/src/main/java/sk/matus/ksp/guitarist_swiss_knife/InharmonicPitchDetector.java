@@ -0,0 +1,242 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Pitch detector for stiff strings. The partials of a wound string are not exact multiples of its fundamental,
+ * they are stretched as f_n = n f_0 sqrt(1 + B n^2) by the inharmonicity coefficient B, so the upper partials are sharp
+ * and estimators that divide a harmonic by its number read the string sharp.
+ * The peaks that a PartialTracker has followed for at least two frames are taken as the partials of the note.
+ * A few of the strongest ones divided by small numbers are the candidate fundamentals. For every candidate
+ * the partials are assigned to harmonic numbers from the lowest one up, and after every assignment f_0 and B
+ * are refitted by weighted least squares on f_n^2 / n^2 = f_0^2 + f_0^2 B n^2, so the prediction of the next
+ * harmonic follows the stretch. The candidate whose harmonics carry the most energy with the fewest gaps wins,
+ * which rules out the octave below (every other harmonic missing) and the octave above (the odd partials left over).
+ * B is kept for the note while the pitch holds and seeds the fits of the next frames.
+ */
+class InharmonicPitchDetector implements PitchDetector {
+    private static final int maxPeaks = 32;
+    private static final double trackToleranceCents = 40;
+    private static final int holdFrames = 2;
+    /**
+     * Number of frames a peak has to be tracked for before it counts as a partial, so transients don't.
+     */
+    private static final int minAge = 1;
+    /**
+     * Number of the strongest partials candidate fundamentals are derived from.
+     */
+    private static final int candidatePartials = 5;
+    /**
+     * The strongest partials are divided by 1 to this number to get the candidates.
+     */
+    private static final int maxDivisor = 6;
+    private static final int maxHarmonics = 24;
+    /**
+     * A partial is assigned to a harmonic if it lies within this fraction of the fundamental from the prediction.
+     */
+    private static final double harmonicTolerance = 0.2;
+    /**
+     * Largest inharmonicity the fit accepts, well above the strings of a guitar or a bass.
+     */
+    private static final double maxInharmonicity = 1e-3;
+    /**
+     * Number of fits the inharmonicity of a note is averaged over.
+     */
+    private static final int inharmonicityMemory = 8;
+
+    private final PartialTracker tracker;
+    private final double minFrequency;
+    private final double maxFrequency;
+    private final double maxPartialFrequency;
+
+    /**
+     * The partials of the latest frame, ordered by frequency.
+     */
+    private final double[] frequencies = new double[maxPeaks];
+    private final double[] magnitudes = new double[maxPeaks];
+    private int partialCount;
+    /**
+     * The strongest partials, indices into frequencies.
+     */
+    private final int[] strongest = new int[candidatePartials];
+
+    /**
+     * Result of the last evaluate(): f_0^2, f_0^2 B and the number of assigned partials.
+     */
+    private double fitSquare;
+    private double fitStretch;
+    private int fitPartials;
+
+    private double lastFrequency = 0;
+    private double inharmonicity = 0;
+    private int inharmonicityFits = 0;
+
+    /**
+     * @param analyser The spectral stage that processes the frames this detector works with
+     * @param minFrequency Lowest fundamental the detector can report
+     * @param maxFrequency Highest fundamental the detector can report
+     * @param maxPartialFrequency Highest frequency of a partial, usually the top of the analysed spectrum
+     */
+    InharmonicPitchDetector(SpectrumAnalyser analyser, double minFrequency, double maxFrequency, double maxPartialFrequency){
+        this.tracker = new PartialTracker(analyser, maxPeaks, trackToleranceCents, holdFrames);
+        this.minFrequency = minFrequency;
+        this.maxFrequency = maxFrequency;
+        this.maxPartialFrequency = maxPartialFrequency;
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return true;
+    }
+
+    @Override
+    public void addSamples(double[] samples, int offset, int length) {
+    }
+
+    /**
+     * Ends the tracks of the partials and forgets the note and its inharmonicity.
+     */
+    @Override
+    public void reset() {
+        tracker.reset();
+        lastFrequency = 0;
+        inharmonicity = 0;
+        inharmonicityFits = 0;
+    }
+
+    /**
+     * @param spectrum Magnitude spectrum of the latest frame as computed by the analyser
+     * @return The frequency of the first partial according to the fitted string, the pitch the string sounds at
+     */
+    @Override
+    public double detectPitch(double[] spectrum) {
+        tracker.update(spectrum);
+        collectPartials();
+        if (partialCount == 0){
+            lastFrequency = 0;
+            return 0;
+        }
+        double seed = (inharmonicityFits > 0) ? inharmonicity : 0;
+        double bestScore = 0, bestSquare = 0, bestStretch = 0;
+        int bestPartials = 0;
+        for (int i = 0; i < candidatePartials && strongest[i] >= 0; i++){
+            for (int divisor = 1; divisor <= maxDivisor; divisor++){
+                double candidate = frequencies[strongest[i]] / divisor;
+                if (candidate < minFrequency) break;
+                if (candidate > maxFrequency) continue;
+                double score = evaluate(candidate, seed);
+                if (score > bestScore){
+                    bestScore = score;
+                    bestSquare = fitSquare;
+                    bestStretch = fitStretch;
+                    bestPartials = fitPartials;
+                }
+            }
+        }
+        if (bestScore == 0){
+            lastFrequency = 0;
+            return 0;
+        }
+        double frequency = Math.sqrt(bestSquare + bestStretch);
+        boolean sameNote = lastFrequency > 0 && Math.abs(Math.log(frequency / lastFrequency)) < Math.log(2) / 24;
+        if (!sameNote) inharmonicityFits = 0;
+        //a fit of two partials explains them exactly, whatever B is
+        if (bestPartials >= 3){
+            if (inharmonicityFits < inharmonicityMemory) inharmonicityFits++;
+            inharmonicity += (bestStretch / bestSquare - inharmonicity) / inharmonicityFits;
+        }
+        lastFrequency = frequency;
+        return frequency;
+    }
+
+    /**
+     * Copies the tracked peaks that are old enough and finds the strongest of them.
+     */
+    private void collectPartials(){
+        partialCount = 0;
+        for (int i = 0; i < strongest.length; i++) strongest[i] = -1;
+        for (int peak = 0; peak < tracker.getPeakCount(); peak++){
+            if (tracker.getAge(peak) < minAge) continue;
+            frequencies[partialCount] = tracker.getFrequency(peak);
+            magnitudes[partialCount] = tracker.getMagnitude(peak);
+            int position = strongest.length - 1;
+            if (strongest[position] < 0 || magnitudes[strongest[position]] < magnitudes[partialCount]){
+                while (position > 0 && (strongest[position - 1] < 0 || magnitudes[strongest[position - 1]] < magnitudes[partialCount])){
+                    strongest[position] = strongest[position - 1];
+                    position--;
+                }
+                strongest[position] = partialCount;
+            }
+            partialCount++;
+        }
+    }
+
+    /**
+     * Assigns the partials to the harmonics of a candidate fundamental and fits the string to them.
+     * The fit is left in fitSquare, fitStretch and fitPartials.
+     * @param candidate The candidate fundamental in Hz
+     * @param seed Inharmonicity the predictions start with
+     * @return The energy of the assigned partials scaled by the fraction of the harmonics up to the highest assigned one
+     * that have a partial, 0 if no partial fits
+     */
+    private double evaluate(double candidate, double seed){
+        double square = candidate * candidate;
+        double stretch = seed * square;
+        double weights = 0, sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        double energy = 0;
+        int assigned = 0, highest = 0;
+        for (int n = 1; n <= maxHarmonics; n++){
+            double predicted = n * Math.sqrt(square + stretch * n * n);
+            if (predicted > maxPartialFrequency) break;
+            int partial = nearestPartial(predicted);
+            if (Math.abs(frequencies[partial] - predicted) > harmonicTolerance * Math.sqrt(square)) continue;
+            double weight = magnitudes[partial];
+            double x = n * n;
+            double y = frequencies[partial] * frequencies[partial] / x;
+            weights += weight;
+            sumX += weight * x;
+            sumY += weight * y;
+            sumXX += weight * x * x;
+            sumXY += weight * x * y;
+            energy += weight;
+            assigned++;
+            highest = n;
+            double determinant = weights * sumXX - sumX * sumX;
+            double coefficient = seed;
+            if (assigned >= 2 && determinant > 1e-12 * weights * sumXX){
+                stretch = (weights * sumXY - sumX * sumY) / determinant;
+                square = (sumY - stretch * sumX) / weights;
+                if (stretch >= 0 && stretch <= maxInharmonicity * square) continue;
+                coefficient = (stretch < 0) ? 0 : maxInharmonicity;
+            }
+            //B is fixed, only f_0^2 is fitted to y = f_0^2 (1 + B x)
+            square = (sumY + coefficient * sumXY) / (weights + 2 * coefficient * sumX + coefficient * coefficient * sumXX);
+            stretch = coefficient * square;
+        }
+        fitSquare = square;
+        fitStretch = stretch;
+        fitPartials = assigned;
+        if (assigned == 0) return 0;
+        return energy * assigned / highest;
+    }
+
+    /**
+     * Binary search in the partials ordered by frequency.
+     * @return Index of the partial nearest to the frequency
+     */
+    private int nearestPartial(double frequency){
+        int low = 0, high = partialCount - 1;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (frequencies[middle] < frequency) low = middle + 1;
+            else high = middle;
+        }
+        if (low > 0 && frequency - frequencies[low - 1] < frequencies[low] - frequency) return low - 1;
+        return low;
+    }
+
+    /**
+     * @return The inharmonicity coefficient B of the current note, 0 until enough partials have been fitted
+     */
+    double getInharmonicity(){
+        return (inharmonicityFits > 0) ? inharmonicity : 0;
+    }
+}
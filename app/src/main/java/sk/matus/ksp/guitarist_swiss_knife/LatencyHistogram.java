@@ -0,0 +1,60 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in a fixed set of logarithmically spaced buckets, from one microsecond to about ten seconds
+ * with eight buckets per decade. Recording is a logarithm and an atomic increment, so it can be done
+ * on the audio path. Percentiles are reported as the upper bound of the bucket they fall into, i.e. within 33 %.
+ */
+class LatencyHistogram {
+    private static final int bucketsPerDecade = 8;
+    private static final double minimum = 1000;
+    private static final int bucketCount = 7 * bucketsPerDecade + 1;
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+    /**
+     * @param nanos A duration in nanoseconds
+     */
+    void record(long nanos){
+        int bucket = 0;
+        if (nanos > minimum){
+            bucket = (int) Math.ceil(Math.log10(nanos / minimum) * bucketsPerDecade);
+            if (bucket >= bucketCount) bucket = bucketCount - 1;
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return Number of recorded durations
+     */
+    long getCount(){
+        long total = 0;
+        for (int i = 0; i < bucketCount; i++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @param quantile A number between 0 and 1, e.g. 0.95 for the 95th percentile
+     * @return The upper bound of the bucket containing the quantile in nanoseconds, 0 if nothing has been recorded
+     */
+    long getPercentile(double quantile){
+        long total = getCount();
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++){
+            seen += counts.get(i);
+            if (seen >= rank) return getBucketBound(i);
+        }
+        return getBucketBound(bucketCount - 1);
+    }
+
+    private long getBucketBound(int bucket){
+        return (long) (minimum * Math.pow(10, (double) bucket / bucketsPerDecade));
+    }
+
+    void reset(){
+        for (int i = 0; i < bucketCount; i++) counts.set(i, 0);
+    }
+}
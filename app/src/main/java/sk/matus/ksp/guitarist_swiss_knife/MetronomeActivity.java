@@ -40,7 +40,10 @@ public class MetronomeActivity extends AppCompatActivity {
         @Override
         public void run() {
             while (running){
-                if (nextBeatPosition == 0) tick("high"); else tick("low");
+                //the microphone would hear the clicks as the band's beat, so they are muted while listening
+                if (tempoListener == null){
+                    if (nextBeatPosition == 0) tick("high"); else tick("low");
+                }
                 final RadioButton rb = (RadioButton)(metronomeVisualization.getChildAt(nextBeatPosition));
                 MetronomeActivity.this.runOnUiThread(new Runnable() {
                     @Override
@@ -83,6 +86,8 @@ public class MetronomeActivity extends AppCompatActivity {
     private SeekBar tempoSeekBar;
     private TextView currentBpmTextView;
     private RadioGroup metronomeVisualization;
+    private ToggleButton listenToggle;
+    private TextView tempoEstimateTextView;
     private MediaPlayer player = new MediaPlayer();
 
     private boolean isRunning = false;
@@ -97,6 +102,16 @@ public class MetronomeActivity extends AppCompatActivity {
 
     private ArrayList<Tempo> tempos;
 
+    /**
+     * Listens to the band through the microphone and sets the tempo, null while not listening.
+     * The metronome keeps its beat without the clicks while it listens.
+     */
+    private volatile TempoListener tempoListener;
+    /**
+     * Estimates less confident than this are only shown, they don't change the tempo.
+     */
+    private static final double minTempoConfidence = 0.4;
+
     /**
      * Given a beat per minute speed, returns the conventional name used in music notation.
      * @param bpm Tempo in beats per minute which is to be named
@@ -286,6 +301,15 @@ public class MetronomeActivity extends AppCompatActivity {
             }
         });
 
+        tempoEstimateTextView = (TextView) findViewById(R.id.tempoEstimateText);
+        listenToggle = (ToggleButton) findViewById(R.id.tempo_listen_button);
+        listenToggle.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (tempoListener == null) startListening(); else stopListening();
+            }
+        });
+
         loadTempoNames();
 
         setBpm(currentBpm);
@@ -332,6 +356,50 @@ public class MetronomeActivity extends AppCompatActivity {
         metronome.start();
     }
 
+    /**
+     * Starts estimating the tempo of the band playing.
+     */
+    void startListening(){
+        tempoEstimateTextView.setText(getResources().getString(R.string.tempo_waiting));
+        tempoListener = new TempoListener(new TempoListener.Listener() {
+            @Override
+            public void onTempo(double bpm, double confidence) {
+                showTempoEstimate(bpm, confidence);
+            }
+
+            @Override
+            public void onError() {
+                stopListening();
+                tempoEstimateTextView.setText(getResources().getString(R.string.tempo_microphone_failed));
+            }
+        });
+        tempoListener.start();
+    }
+
+    void stopListening(){
+        if (tempoListener != null){
+            tempoListener.shutdown();
+            tempoListener = null;
+        }
+        listenToggle.setChecked(false);
+        tempoEstimateTextView.setText("");
+    }
+
+    /**
+     * Shows the estimated tempo with its confidence and sets it if the estimate is confident enough.
+     * @param bpm The estimated tempo in beats per minute, 0 if there is none yet
+     * @param confidence The confidence of the estimate from 0 to 1
+     */
+    void showTempoEstimate(double bpm, double confidence){
+        if (bpm <= 0 || confidence <= 0){
+            tempoEstimateTextView.setText(getResources().getString(R.string.tempo_waiting));
+            return;
+        }
+        int roundedBpm = (int) Math.round(bpm);
+        tempoEstimateTextView.setText(String.format(Locale.US, getResources().getString(R.string.tempo_estimate), roundedBpm, Math.round(confidence * 100)));
+        if (confidence >= minTempoConfidence && roundedBpm != currentBpm) setBpm(roundedBpm);
+    }
+
     /**
      * @param bpm bpm to be used by the metronome
      */
@@ -379,6 +447,7 @@ public class MetronomeActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
+        stopListening();
         toggleMetronome = (ToggleButton) findViewById(R.id.metronome_toggle_button);
         if (isRunning) {
             stopMetronome();
@@ -0,0 +1,74 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Decides from the energy of the incoming samples whether there is anything worth analysing.
+ * The level is measured as the RMS of the samples added since the last evaluation, in dB relative to full scale.
+ * The gate opens above openLevel and closes only after the level stays below closeLevel for holdCount evaluations,
+ * so it doesn't flutter on a decaying string.
+ */
+class NoiseGate {
+    private final double openLevel;
+    private final double closeLevel;
+    private final int holdCount;
+    private double sumOfSquares = 0;
+    private int sampleCount = 0;
+    private double level = Double.NEGATIVE_INFINITY;
+    private boolean open = false;
+    private int quietCount = 0;
+
+    /**
+     * @param openLevel Level in dBFS above which the gate opens
+     * @param closeLevel Level in dBFS below which the gate starts closing, lower than openLevel
+     * @param holdCount Number of quiet evaluations before the gate closes
+     */
+    NoiseGate(double openLevel, double closeLevel, int holdCount){
+        this.openLevel = openLevel;
+        this.closeLevel = closeLevel;
+        this.holdCount = holdCount;
+    }
+
+    /**
+     * Accumulates the energy of new samples.
+     * @param samples Buffer with samples normalised to the interval [-1,1]
+     * @param offset Index of the first sample
+     * @param length Number of samples
+     */
+    void addSamples(double[] samples, int offset, int length){
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++){
+            sum += samples[i] * samples[i];
+        }
+        sumOfSquares += sum;
+        sampleCount += length;
+    }
+
+    /**
+     * Measures the samples added since the last call and updates the state of the gate.
+     * @return true if the gate is open
+     */
+    boolean evaluate(){
+        if (sampleCount > 0){
+            level = 10 * Math.log10(sumOfSquares / sampleCount + 1e-20);
+            sumOfSquares = 0;
+            sampleCount = 0;
+        }
+        if (level >= openLevel){
+            open = true;
+            quietCount = 0;
+        } else if (open && level < closeLevel && ++quietCount >= holdCount){
+            open = false;
+        }
+        return open;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return The level measured by the last evaluate() in dBFS
+     */
+    double getLevel() {
+        return level;
+    }
+}
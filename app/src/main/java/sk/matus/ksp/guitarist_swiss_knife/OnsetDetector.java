@@ -0,0 +1,108 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * Turns a stream of samples into an onset strength signal by spectral flux:
+ * for every hop, the sum of the increases of the log-compressed magnitudes over the previous frame.
+ * A strum or a drum hit raises many bins at once, a held chord raises none.
+ * The flux is reduced by its running mean and half-wave rectified, so the signal is close to zero between onsets.
+ * Only the current and the previous spectrum are kept, the memory doesn't grow with the length of the stream.
+ */
+class OnsetDetector {
+    /**
+     * Scales the magnitudes before the logarithm, so that quiet bins are compressed less than loud ones.
+     */
+    private static final double compression = 1000;
+    /**
+     * Weight of the newest flux in the running mean, about one second at the usual frame rates.
+     */
+    private static final double meanSmoothing = 0.03;
+
+    private final ShortTimeFourierTransform stft;
+    private final FloatFFT_1D fft;
+    private final float[] frame;
+    private final double normalisation;
+    private final int bins;
+    private double[] previous;
+    private double[] current;
+    private boolean hasPrevious = false;
+    private double meanFlux = 0;
+    private final double frameRate;
+
+    /**
+     * @param sampleRate Sample rate of the stream
+     * @param frameSize Number of samples in one frame
+     * @param hopSize Number of samples between two frames, the onset strength has sampleRate/hopSize values per second
+     * @param maxFrequency Highest frequency whose bins contribute to the flux
+     */
+    OnsetDetector(int sampleRate, int frameSize, int hopSize, double maxFrequency){
+        stft = new ShortTimeFourierTransform(frameSize, hopSize, WindowFunction.HANN);
+        fft = new FloatFFT_1D(frameSize);
+        frame = new float[frameSize];
+        normalisation = stft.getWindowSum();
+        bins = Math.min(frameSize / 2, (int) Math.ceil(maxFrequency * frameSize / sampleRate));
+        previous = new double[bins];
+        current = new double[bins];
+        frameRate = (double) sampleRate / hopSize;
+    }
+
+    /**
+     * Appends samples to the stream, stopping at the end of a hop.
+     * @param samples Buffer with samples normalised to the interval [-1,1]
+     * @param offset Index of the first sample to append
+     * @param length Number of samples available from offset
+     * @return Number of samples actually consumed
+     */
+    int push(double[] samples, int offset, int length){
+        return stft.push(samples, offset, length);
+    }
+
+    /**
+     * @return true if a new frame is ready and nextStrength() should be called
+     */
+    boolean isFrameReady(){
+        return stft.isFrameReady();
+    }
+
+    /**
+     * Transforms the ready frame and computes its onset strength.
+     * @return The onset strength of the frame, 0 or more
+     */
+    double nextStrength(){
+        stft.fillFrame(frame);
+        fft.realForward(frame);
+        double[] swap = previous;
+        previous = current;
+        current = swap;
+        double flux = 0;
+        for (int bin = 1; bin < bins; bin++){
+            double re = frame[2*bin] / normalisation;
+            double im = frame[2*bin + 1] / normalisation;
+            current[bin] = Math.log(1 + compression * Math.sqrt(re*re + im*im));
+            double increase = current[bin] - previous[bin];
+            if (increase > 0) flux += increase;
+        }
+        if (!hasPrevious){
+            hasPrevious = true;
+            return 0;
+        }
+        meanFlux += meanSmoothing * (flux - meanFlux);
+        return Math.max(0, flux - meanFlux);
+    }
+
+    /**
+     * Forgets the previous frame and the running mean, e.g. when the stream is interrupted.
+     */
+    void reset(){
+        hasPrevious = false;
+        meanFlux = 0;
+    }
+
+    /**
+     * @return Number of onset strength values per second
+     */
+    double getFrameRate() {
+        return frameRate;
+    }
+}
@@ -0,0 +1,244 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Follows the spectral peaks of a sound from one analysed frame to the next.
+ * The strongest local maxima of every frame are located between the bins by the SpectrumAnalyser and each of them
+ * continues the track of the previous frame that lies nearest in frequency, within a tolerance in cents.
+ * A peak that continues no track starts a new one, a track that finds no peak is held for a few frames and then dies,
+ * so a partial that drops under the threshold for a frame keeps its age.
+ * Everything lives in preallocated primitive arrays, a frame allocates nothing, because the tracker runs for every block.
+ */
+class PartialTracker {
+    /**
+     * A peak weaker than this fraction of the strongest peak of the frame is ignored,
+     * which keeps the side lobes of the window out of the tracks.
+     */
+    private static final double relativeThreshold = 0.02;
+    /**
+     * A peak weaker than this is noise, whatever the rest of the frame.
+     */
+    private static final double absoluteThreshold = 1e-4;
+
+    private final SpectrumAnalyser analyser;
+    private final int maxPeaks;
+    /**
+     * Largest ratio of the frequencies of a peak and the track it continues.
+     */
+    private final double tolerance;
+    private final int holdFrames;
+
+    /**
+     * The peaks of the latest frame. While a frame is processed they are ordered from the strongest,
+     * at the end of update() from the lowest frequency.
+     */
+    private final int[] peakBins;
+    private final double[] peakFrequencies;
+    private final double[] peakMagnitudes;
+    /**
+     * Slot of the track the peak belongs to, -1 if all the slots were taken.
+     */
+    private final int[] peakTracks;
+    private int peakCount = 0;
+
+    /**
+     * The tracks, one per slot. A slot whose id is -1 is free.
+     */
+    private final double[] trackFrequencies;
+    private final double[] trackMagnitudes;
+    private final int[] trackIds;
+    /**
+     * Number of frames the track has lived through since its birth.
+     */
+    private final int[] trackAges;
+    /**
+     * Number of consecutive frames without a peak.
+     */
+    private final int[] trackMisses;
+    /**
+     * Index of the last frame in which the track has been continued by a peak.
+     */
+    private final int[] trackFrames;
+    private int frame = 0;
+    private int nextId = 0;
+
+    /**
+     * @param analyser The spectral stage whose magnitudes are passed to update()
+     * @param maxPeaks Number of the strongest peaks followed in every frame
+     * @param toleranceCents Largest change of frequency between the frames of a track
+     * @param holdFrames Number of frames a track survives without a peak
+     */
+    PartialTracker(SpectrumAnalyser analyser, int maxPeaks, double toleranceCents, int holdFrames){
+        if (maxPeaks < 1) throw new IllegalArgumentException("At least one peak has to be tracked");
+        this.analyser = analyser;
+        this.maxPeaks = maxPeaks;
+        this.tolerance = Math.pow(2, toleranceCents / 1200);
+        this.holdFrames = holdFrames;
+        peakBins = new int[maxPeaks];
+        peakFrequencies = new double[maxPeaks];
+        peakMagnitudes = new double[maxPeaks];
+        peakTracks = new int[maxPeaks];
+        //held tracks occupy slots next to the tracks of the current frame
+        int slots = 2 * maxPeaks;
+        trackFrequencies = new double[slots];
+        trackMagnitudes = new double[slots];
+        trackIds = new int[slots];
+        trackAges = new int[slots];
+        trackMisses = new int[slots];
+        trackFrames = new int[slots];
+        reset();
+    }
+
+    /**
+     * Ends all the tracks.
+     */
+    void reset(){
+        peakCount = 0;
+        for (int slot = 0; slot < trackIds.length; slot++) trackIds[slot] = -1;
+    }
+
+    /**
+     * Finds the peaks of a new frame and continues the tracks with them.
+     * @param magnitudes The magnitude spectrum of the analyser, as passed to PitchDetector.detectPitch()
+     */
+    void update(double[] magnitudes){
+        frame++;
+        pickPeaks(magnitudes);
+        for (int i = 0; i < peakCount; i++){
+            peakFrequencies[i] = analyser.refineFrequency(peakBins[i]);
+            peakMagnitudes[i] = magnitudes[peakBins[i]];
+        }
+        //the strongest peaks choose their tracks first
+        for (int i = 0; i < peakCount; i++){
+            int slot = nearestTrack(peakFrequencies[i]);
+            if (slot < 0){
+                slot = freeSlot();
+                if (slot >= 0){
+                    trackIds[slot] = nextId++;
+                    trackAges[slot] = -1;
+                }
+            }
+            peakTracks[i] = slot;
+            if (slot < 0) continue;
+            trackFrequencies[slot] = peakFrequencies[i];
+            trackMagnitudes[slot] = peakMagnitudes[i];
+            trackAges[slot]++;
+            trackMisses[slot] = 0;
+            trackFrames[slot] = frame;
+        }
+        for (int slot = 0; slot < trackIds.length; slot++){
+            if (trackIds[slot] < 0 || trackFrames[slot] == frame) continue;
+            if (++trackMisses[slot] > holdFrames) trackIds[slot] = -1;
+            else trackAges[slot]++;
+        }
+        sortPeaksByFrequency();
+    }
+
+    /**
+     * Collects the strongest local maxima of the spectrum, ordered from the strongest.
+     */
+    private void pickPeaks(double[] magnitudes){
+        int first = analyser.getFirstBin() + 1;
+        int last = analyser.getLastBin() - 1;
+        double maximum = 0;
+        for (int bin = first; bin < last; bin++){
+            if (magnitudes[bin] > maximum) maximum = magnitudes[bin];
+        }
+        double threshold = Math.max(absoluteThreshold, relativeThreshold * maximum);
+        peakCount = 0;
+        for (int bin = first; bin < last; bin++){
+            double magnitude = magnitudes[bin];
+            if (magnitude < threshold || magnitude <= magnitudes[bin - 1] || magnitude < magnitudes[bin + 1]) continue;
+            if (peakCount == maxPeaks && magnitude <= magnitudes[peakBins[peakCount - 1]]) continue;
+            int position = (peakCount == maxPeaks) ? peakCount - 1 : peakCount++;
+            while (position > 0 && magnitudes[peakBins[position - 1]] < magnitude){
+                peakBins[position] = peakBins[position - 1];
+                position--;
+            }
+            peakBins[position] = bin;
+        }
+    }
+
+    /**
+     * @return The slot of the living track nearest to the frequency that hasn't been continued in this frame yet,
+     * -1 if there is none within the tolerance
+     */
+    private int nearestTrack(double frequency){
+        int best = -1;
+        double bestRatio = tolerance;
+        for (int slot = 0; slot < trackIds.length; slot++){
+            if (trackIds[slot] < 0 || trackFrames[slot] == frame) continue;
+            double ratio = frequency / trackFrequencies[slot];
+            if (ratio < 1) ratio = 1 / ratio;
+            if (ratio < bestRatio){
+                bestRatio = ratio;
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    private int freeSlot(){
+        for (int slot = 0; slot < trackIds.length; slot++){
+            if (trackIds[slot] < 0) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Insertion sort, there are only a few dozen peaks.
+     */
+    private void sortPeaksByFrequency(){
+        for (int i = 1; i < peakCount; i++){
+            int bin = peakBins[i];
+            double frequency = peakFrequencies[i];
+            double magnitude = peakMagnitudes[i];
+            int track = peakTracks[i];
+            int j = i;
+            while (j > 0 && peakFrequencies[j - 1] > frequency){
+                peakBins[j] = peakBins[j - 1];
+                peakFrequencies[j] = peakFrequencies[j - 1];
+                peakMagnitudes[j] = peakMagnitudes[j - 1];
+                peakTracks[j] = peakTracks[j - 1];
+                j--;
+            }
+            peakBins[j] = bin;
+            peakFrequencies[j] = frequency;
+            peakMagnitudes[j] = magnitude;
+            peakTracks[j] = track;
+        }
+    }
+
+    /**
+     * @return Number of peaks found in the latest frame, they are indexed from the lowest frequency
+     */
+    int getPeakCount(){
+        return peakCount;
+    }
+
+    /**
+     * @return The refined frequency of the peak in Hz
+     */
+    double getFrequency(int peak){
+        return peakFrequencies[peak];
+    }
+
+    double getMagnitude(int peak){
+        return peakMagnitudes[peak];
+    }
+
+    /**
+     * @return Number of frames the track of the peak existed before this one, 0 for a peak that has just appeared
+     */
+    int getAge(int peak){
+        int slot = peakTracks[peak];
+        return (slot < 0) ? 0 : trackAges[slot];
+    }
+
+    /**
+     * @return Identifier of the track of the peak, the same in every frame the track lives through, -1 if it isn't tracked
+     */
+    int getTrackId(int peak){
+        int slot = peakTracks[peak];
+        return (slot < 0) ? -1 : trackIds[slot];
+    }
+}
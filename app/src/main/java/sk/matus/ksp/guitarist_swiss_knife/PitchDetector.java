@@ -0,0 +1,34 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Interface that defines an algorithm the tuner uses to find the fundamental frequency of the recorded sound.
+ * All the methods are called from the audio thread.
+ */
+public interface PitchDetector {
+    /**
+     * Feeds newly recorded samples to the detector. Detectors that only work with the spectrum can ignore them.
+     * @param samples Buffer with samples normalised to the interval [-1,1]
+     * @param offset Index of the first new sample
+     * @param length Number of new samples
+     */
+    void addSamples(double[] samples, int offset, int length);
+
+    /**
+     * @return true if detectPitch() works with the spectrum. If none of the users of the tuner needs it,
+     * the FFT can be skipped altogether.
+     */
+    boolean needsSpectrum();
+
+    /**
+     * Estimates the frequency of the sound recorded so far.
+     * @param spectrum Magnitude spectrum of the latest block as computed by the SpectrumAnalyser, null if the detector doesn't need it
+     * @return The fundamental frequency in Hz or 0 if no pitch could be found
+     */
+    double detectPitch(double[] spectrum);
+
+    /**
+     * Forgets what the detector has learned from the previous frames. Called when the sound stops,
+     * so the next note doesn't continue the one before the silence.
+     */
+    void reset();
+}
@@ -0,0 +1,185 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Smooths the stream of detected frequencies so that the readings of the tuner don't jitter.
+ * The last windowSize frequencies are kept in a ring and, at the same time, in a sorted array
+ * that is updated by a binary search for every new reading, so the median or the mode is available without sorting the window.
+ * The result can further be smoothed by a one-dimensional Kalman filter working in cents.
+ */
+class PitchStabiliser {
+    enum Mode {
+        /**
+         * The latest reading is passed through.
+         */
+        LATEST,
+        /**
+         * The median of the window.
+         */
+        MEDIAN,
+        /**
+         * The average of the largest group of readings that lie within clusterRatio of each other,
+         * so that occasional octave jumps and noises are ignored.
+         */
+        MODE
+    }
+
+    private static final double centsPerLog = 1200 / Math.log(2);
+    private final Mode mode;
+    private final double clusterRatio;
+    private final double[] ring;
+    private final double[] sorted;
+    private int ringPosition = 0;
+    private int count = 0;
+    /**
+     * Number of silent readings after which the window is cleared.
+     */
+    private final int silenceLimit;
+    private int silentReadings = 0;
+
+    private boolean kalman = false;
+    private double processNoise;
+    private double measurementNoise;
+    /**
+     * Estimate of the Kalman filter, in cents relative to 440 Hz, and its variance.
+     */
+    private double estimate;
+    private double variance;
+    private boolean hasEstimate = false;
+
+    /**
+     * @param mode How the window is reduced to a single frequency
+     * @param windowSize Number of last readings to consider
+     * @param clusterRatio Largest ratio of two frequencies in one group of the MODE, e.g. 1.03 for half a semitone
+     * @param silenceLimit Number of consecutive silent readings that clear the window
+     */
+    PitchStabiliser(Mode mode, int windowSize, double clusterRatio, int silenceLimit){
+        this.mode = mode;
+        this.clusterRatio = clusterRatio;
+        this.silenceLimit = silenceLimit;
+        ring = new double[windowSize];
+        sorted = new double[windowSize];
+    }
+
+    /**
+     * Enables the Kalman filter applied to the output of the window.
+     * A change larger than a semitone is taken as a new note and restarts the filter.
+     * @param processNoise Expected variance of the real pitch between two readings, in cents squared
+     * @param measurementNoise Variance of the readings, in cents squared
+     */
+    void setKalman(double processNoise, double measurementNoise){
+        this.kalman = true;
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        this.hasEstimate = false;
+    }
+
+    /**
+     * Adds a new reading.
+     * @param frequency The detected frequency in Hz, 0 or less for a block in which no pitch was found
+     * @return The stabilised frequency or 0 if there is nothing to show
+     */
+    double add(double frequency){
+        if (frequency <= 0){
+            if (++silentReadings >= silenceLimit) reset();
+            return 0;
+        }
+        silentReadings = 0;
+        if (count == ring.length){
+            removeSorted(ring[ringPosition]);
+        } else {
+            count++;
+        }
+        ring[ringPosition] = frequency;
+        ringPosition = (ringPosition + 1) % ring.length;
+        insertSorted(frequency);
+        double windowed;
+        switch (mode){
+            case MEDIAN:
+                windowed = median();
+                break;
+            case MODE:
+                windowed = clusteredMode();
+                break;
+            default:
+                windowed = frequency;
+        }
+        return kalman ? filter(windowed) : windowed;
+    }
+
+    /**
+     * Forgets all the readings, e.g. after the string has stopped sounding.
+     */
+    void reset(){
+        count = 0;
+        ringPosition = 0;
+        silentReadings = 0;
+        hasEstimate = false;
+    }
+
+    private void insertSorted(double value){
+        int position = search(value, count - 1);
+        System.arraycopy(sorted, position, sorted, position + 1, count - 1 - position);
+        sorted[position] = value;
+    }
+
+    private void removeSorted(double value){
+        //the value is in the window, so the search ends on it
+        int position = search(value, count);
+        System.arraycopy(sorted, position + 1, sorted, position, count - 1 - position);
+    }
+
+    /**
+     * @return The first position among the first length sorted values whose value is not less than the given one
+     */
+    private int search(double value, int length){
+        int low = 0, high = length;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private double median(){
+        if (count % 2 == 1) return sorted[count / 2];
+        return (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    /**
+     * Slides a group over the sorted window and keeps the largest one whose extremes are within clusterRatio.
+     * Of two groups of the same size the lower one wins.
+     */
+    private double clusteredMode(){
+        int bestLength = 0;
+        double bestSum = 0, sum = 0;
+        for (int start = 0, end = 0; end < count; end++){
+            sum += sorted[end];
+            while (sorted[end] > sorted[start] * clusterRatio){
+                sum -= sorted[start];
+                start++;
+            }
+            int length = end - start + 1;
+            if (length > bestLength){
+                bestLength = length;
+                bestSum = sum;
+            }
+        }
+        return bestSum / bestLength;
+    }
+
+    private double filter(double frequency){
+        double measurement = Math.log(frequency / 440) * centsPerLog;
+        if (!hasEstimate || Math.abs(measurement - estimate) > 100){
+            estimate = measurement;
+            variance = measurementNoise;
+            hasEstimate = true;
+        } else {
+            variance += processNoise;
+            double gain = variance / (variance + measurementNoise);
+            estimate += gain * (measurement - estimate);
+            variance *= (1 - gain);
+        }
+        return 440 * Math.exp(estimate / centsPerLog);
+    }
+}
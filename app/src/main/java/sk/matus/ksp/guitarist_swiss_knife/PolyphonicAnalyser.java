@@ -0,0 +1,288 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Finds the tuning of all strings at once from the spectrum of a strum.
+ * The spectrum is reduced to a short list of peaks in a single pass, the peaks are sorted by frequency
+ * and every partial of every string is matched against them by a binary search,
+ * so the cost hardly depends on the number of strings.
+ * The partials of a string that agree with each other give its deviation; partials that several strings
+ * could own (e.g. the 4th harmonic of low E and the fundamental of high E) count less.
+ * The strings are analysed from the lowest one up and a peak that lies on a harmonic of a lower string that has been heard
+ * belongs to that string, unless it is much stronger than the neighbouring harmonics of that string, which means
+ * that another string sounds there as well. Such a partial counts as little as a shared one for the higher string,
+ * and a string is only heard if its fundamental or its 2nd partial is its own,
+ * so low E ringing alone doesn't make B (its 3rd and 6th harmonic) or high E (its 4th and 8th) look heard.
+ */
+class PolyphonicAnalyser {
+    /**
+     * Largest number of peaks kept from one spectrum, the weakest ones are dropped.
+     */
+    private static final int maxPeaks = 64;
+    /**
+     * Number of partials of each string matched against the peaks, the fundamental included.
+     */
+    private static final int partials = 6;
+    /**
+     * A peak further than this from the expected partial doesn't belong to the string.
+     */
+    private static final double searchCents = 60;
+    /**
+     * Partials within this distance from the median deviation of a string are averaged, the rest are outliers.
+     */
+    private static final double agreementCents = 12;
+    /**
+     * Peaks weaker than this fraction of the strongest peak are ignored.
+     */
+    private static final double relativeThreshold = 0.02;
+    private static final double silenceThreshold = 0.0005;
+    /**
+     * Weight of a partial whose peak is claimed by another string as well or explained by a lower string.
+     */
+    private static final double sharedWeight = 0.25;
+    /**
+     * A peak on a harmonic of a lower string belongs to the higher string as well if it is this many times stronger
+     * than the weaker of the two neighbouring harmonics of the lower string.
+     */
+    private static final double standOutRatio = 2;
+
+    private final SpectrumAnalyser spectrumAnalyser;
+    private final double[] targets;
+    private final double maxFrequency;
+
+    private final int[] peakBins = new int[maxPeaks];
+    private final double[] peakFrequencies = new double[maxPeaks];
+    private final double[] peakMagnitudes = new double[maxPeaks];
+    /**
+     * Number of partials of all strings matched to each peak.
+     */
+    private final int[] peakClaims = new int[maxPeaks];
+    private int peakCount = 0;
+
+    /**
+     * Index of the peak matched to each partial of each string, -1 if none.
+     */
+    private final int[] partialPeaks;
+    /**
+     * Whether the peak of each partial of each string is not explained by a lower string.
+     */
+    private final boolean[] partialOwned;
+    private final double[] partialCents = new double[partials];
+    private final double[] partialWeights = new double[partials];
+    private final double[] stringCents;
+
+    /**
+     * @param spectrumAnalyser The analyser that computes the analysed spectra, used to refine the peaks
+     * @param targets Frequencies of the open strings, from the lowest string to the highest
+     */
+    PolyphonicAnalyser(SpectrumAnalyser spectrumAnalyser, double[] targets){
+        this.spectrumAnalyser = spectrumAnalyser;
+        this.targets = targets.clone();
+        maxFrequency = spectrumAnalyser.binToFrequency(spectrumAnalyser.getLastBin() - 2);
+        partialPeaks = new int[targets.length * partials];
+        partialOwned = new boolean[partialPeaks.length];
+        stringCents = new double[targets.length];
+    }
+
+    /**
+     * Analyses the latest spectrum of the spectrumAnalyser.
+     * @param magnitudes The magnitude spectrum as returned by SpectrumAnalyser.getMagnitudes()
+     * @return Number of strings that were heard
+     */
+    int analyse(double[] magnitudes){
+        findPeaks(magnitudes);
+        for (int i = 0; i < peakCount; i++) peakClaims[i] = 0;
+        for (int string = 0; string < targets.length; string++){
+            for (int partial = 1; partial <= partials; partial++){
+                int peak = -1;
+                double expected = targets[string] * partial;
+                if (expected < maxFrequency){
+                    peak = nearestPeak(expected);
+                    if (peak >= 0 && Math.abs(cents(peakFrequencies[peak], expected)) > searchCents) peak = -1;
+                }
+                partialPeaks[string * partials + partial - 1] = peak;
+                if (peak >= 0) peakClaims[peak]++;
+            }
+        }
+        int heard = 0;
+        for (int string = 0; string < targets.length; string++){
+            stringCents[string] = Double.NaN;
+            for (int partial = 1; partial <= partials; partial++){
+                int index = string * partials + partial - 1;
+                partialOwned[index] = partialPeaks[index] >= 0 && !isExplainedBelow(partialPeaks[index], string);
+            }
+            if (!partialOwned[string * partials] && !partialOwned[string * partials + 1]) continue;
+            stringCents[string] = estimateString(string);
+            if (!Double.isNaN(stringCents[string])) heard++;
+        }
+        return heard;
+    }
+
+    /**
+     * @param peak Index of a peak matched to a partial of the string
+     * @param string Index of the string
+     * @return true if the peak lies on a harmonic of a lower string that has been heard and doesn't stand out of its harmonics
+     */
+    private boolean isExplainedBelow(int peak, int string){
+        for (int lower = 0; lower < string; lower++){
+            if (Double.isNaN(stringCents[lower]) || targets[lower] >= targets[string]) continue;
+            double fundamental = targets[lower] * Math.pow(2, stringCents[lower] / 1200);
+            int harmonic = (int) Math.round(peakFrequencies[peak] / fundamental);
+            if (harmonic < 2 || Math.abs(cents(peakFrequencies[peak], fundamental * harmonic)) > agreementCents) continue;
+            double neighbour = Math.min(harmonicMagnitude(fundamental * (harmonic - 1)), harmonicMagnitude(fundamental * (harmonic + 1)));
+            if (peakMagnitudes[peak] <= standOutRatio * neighbour) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Magnitude of the peak at the frequency, 0 if there is none within agreementCents
+     */
+    private double harmonicMagnitude(double frequency){
+        int peak = nearestPeak(frequency);
+        if (peak < 0 || Math.abs(cents(peakFrequencies[peak], frequency)) > agreementCents) return 0;
+        return peakMagnitudes[peak];
+    }
+
+    /**
+     * Collects the local maxima above the threshold, keeping the strongest maxPeaks of them,
+     * refines their frequencies and sorts them by frequency.
+     */
+    private void findPeaks(double[] magnitudes){
+        int first = spectrumAnalyser.getFirstBin() + 1;
+        int last = spectrumAnalyser.getLastBin() - 1;
+        double strongest = 0;
+        for (int bin = first; bin < last; bin++){
+            if (magnitudes[bin] > strongest) strongest = magnitudes[bin];
+        }
+        double threshold = Math.max(silenceThreshold, strongest * relativeThreshold);
+        peakCount = 0;
+        int weakest = -1;
+        for (int bin = first; bin < last; bin++){
+            double magnitude = magnitudes[bin];
+            if (magnitude < threshold || magnitude <= magnitudes[bin - 1] || magnitude < magnitudes[bin + 1]) continue;
+            if (peakCount < maxPeaks){
+                peakBins[peakCount] = bin;
+                peakMagnitudes[peakCount] = magnitude;
+                peakCount++;
+                if (peakCount == maxPeaks) weakest = findWeakest();
+            } else if (magnitude > peakMagnitudes[weakest]){
+                peakBins[weakest] = bin;
+                peakMagnitudes[weakest] = magnitude;
+                weakest = findWeakest();
+            }
+        }
+        for (int i = 0; i < peakCount; i++){
+            peakFrequencies[i] = spectrumAnalyser.refineFrequency(peakBins[i]);
+        }
+        //insertion sort, the list is short and mostly sorted already
+        for (int i = 1; i < peakCount; i++){
+            int bin = peakBins[i];
+            double frequency = peakFrequencies[i];
+            double magnitude = peakMagnitudes[i];
+            int j = i - 1;
+            while (j >= 0 && peakFrequencies[j] > frequency){
+                peakBins[j + 1] = peakBins[j];
+                peakFrequencies[j + 1] = peakFrequencies[j];
+                peakMagnitudes[j + 1] = peakMagnitudes[j];
+                j--;
+            }
+            peakBins[j + 1] = bin;
+            peakFrequencies[j + 1] = frequency;
+            peakMagnitudes[j + 1] = magnitude;
+        }
+    }
+
+    private int findWeakest(){
+        int weakest = 0;
+        for (int i = 1; i < peakCount; i++){
+            if (peakMagnitudes[i] < peakMagnitudes[weakest]) weakest = i;
+        }
+        return weakest;
+    }
+
+    /**
+     * @param frequency Frequency in Hz
+     * @return Index of the peak nearest to the frequency in cents, -1 if there are no peaks
+     */
+    private int nearestPeak(double frequency){
+        if (peakCount == 0) return -1;
+        int low = 0;
+        int high = peakCount - 1;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (peakFrequencies[middle] < frequency) low = middle + 1;
+            else high = middle;
+        }
+        //low is the first peak not below the frequency, the nearest one is either it or its predecessor
+        if (low > 0 && Math.abs(cents(peakFrequencies[low - 1], frequency)) < Math.abs(cents(peakFrequencies[low], frequency))) low--;
+        return low;
+    }
+
+    /**
+     * Combines the deviations of the matched partials of a string: the weighted median picks the value most partials agree on
+     * and the partials close to it are averaged.
+     * @param string Index of the string
+     * @return Deviation of the string in cents, NaN if fewer than two of its partials agree
+     */
+    private double estimateString(int string){
+        int count = 0;
+        double totalWeight = 0;
+        for (int partial = 1; partial <= partials; partial++){
+            int peak = partialPeaks[string * partials + partial - 1];
+            if (peak < 0) continue;
+            double value = cents(peakFrequencies[peak], targets[string] * partial);
+            double weight = peakMagnitudes[peak] * (peakClaims[peak] > 1 || !partialOwned[string * partials + partial - 1] ? sharedWeight : 1);
+            //keep the values sorted for the median
+            int i = count - 1;
+            while (i >= 0 && partialCents[i] > value){
+                partialCents[i + 1] = partialCents[i];
+                partialWeights[i + 1] = partialWeights[i];
+                i--;
+            }
+            partialCents[i + 1] = value;
+            partialWeights[i + 1] = weight;
+            count++;
+            totalWeight += weight;
+        }
+        if (count < 2) return Double.NaN;
+        double median = partialCents[count - 1];
+        double accumulated = 0;
+        for (int i = 0; i < count; i++){
+            accumulated += partialWeights[i];
+            if (accumulated >= totalWeight / 2){
+                median = partialCents[i];
+                break;
+            }
+        }
+        int agreeing = 0;
+        double sum = 0;
+        double weights = 0;
+        for (int i = 0; i < count; i++){
+            if (Math.abs(partialCents[i] - median) > agreementCents) continue;
+            agreeing++;
+            sum += partialCents[i] * partialWeights[i];
+            weights += partialWeights[i];
+        }
+        if (agreeing < 2) return Double.NaN;
+        return sum / weights;
+    }
+
+    private static double cents(double frequency, double reference){
+        return 1200 * Math.log(frequency / reference) / Math.log(2);
+    }
+
+    /**
+     * Copies the result of the last analysis.
+     * @param target Array with an element for every string, receives the deviations in cents or NaN for the strings that were not heard
+     */
+    void copyStringCents(double[] target){
+        System.arraycopy(stringCents, 0, target, 0, stringCents.length);
+    }
+
+    /**
+     * @return Number of strings
+     */
+    int getStringCount(){
+        return targets.length;
+    }
+}
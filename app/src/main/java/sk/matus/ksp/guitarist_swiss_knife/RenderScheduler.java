@@ -0,0 +1,193 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws the tuner visualisations on a single shared thread, aligned to the display's vsync by a Choreographer.
+ * A visualisation is only drawn when it has been marked dirty by requestRender(), e.g. because new data arrived,
+ * or when its last render() asked for another frame because it is animating. Pages that are not on the screen
+ * are not drawn at all, so an idle tuner costs no frames.
+ */
+class RenderScheduler {
+    /**
+     * Something drawn by the scheduler.
+     */
+    interface Renderable {
+        /**
+         * Draws the current state. Called on the render thread.
+         * @param frameTimeNanos Time of the vsync the frame belongs to
+         * @return true if another frame is needed even without new data, e.g. to continue an animation
+         */
+        boolean render(long frameTimeNanos);
+    }
+
+    private static class Entry {
+        final Renderable renderable;
+        volatile boolean dirty = true;
+        volatile boolean visible = false;
+        volatile long minInterval = 0;
+        long lastRender = 0;
+
+        Entry(Renderable renderable){
+            this.renderable = renderable;
+        }
+    }
+
+    private volatile Entry[] entries = new Entry[0];
+    private final HandlerThread thread;
+    private final Handler handler;
+    private Choreographer choreographer;
+    /**
+     * Set while a frame callback is waiting, so that requests coming in between don't post another one.
+     */
+    private final AtomicBoolean framePosted = new AtomicBoolean(false);
+    /**
+     * Held while the visualisations are drawn, so a surface can be released between two frames from another thread.
+     */
+    private final Object renderLock = new Object();
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            renderFrame(frameTimeNanos);
+        }
+    };
+
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    };
+
+    RenderScheduler(){
+        thread = new HandlerThread("TunerRender", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        //the choreographer has to be obtained on the thread whose looper receives its callbacks
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                choreographer = Choreographer.getInstance();
+            }
+        });
+    }
+
+    /**
+     * Adds a visualisation to the scheduler. Called on the UI thread before the rendering starts.
+     * @param renderable The visualisation to draw
+     */
+    synchronized void register(Renderable renderable){
+        Entry[] extended = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, extended, 0, entries.length);
+        extended[entries.length] = new Entry(renderable);
+        entries = extended;
+    }
+
+    private Entry find(Renderable renderable){
+        for (Entry entry : entries){
+            if (entry.renderable == renderable) return entry;
+        }
+        throw new IllegalArgumentException("The renderable has not been registered");
+    }
+
+    /**
+     * Marks a visualisation as dirty, so it is drawn in the next frame in which it is visible. Can be called from any thread.
+     * @param renderable A registered visualisation
+     */
+    void requestRender(Renderable renderable){
+        find(renderable).dirty = true;
+        scheduleFrame();
+    }
+
+    /**
+     * Tells whether a visualisation is on the screen. A visualisation that becomes visible is drawn in the next frame.
+     * @param renderable A registered visualisation
+     * @param visible true if at least a part of it is on the screen
+     */
+    void setVisible(Renderable renderable, boolean visible){
+        Entry entry = find(renderable);
+        if (entry.visible == visible) return;
+        entry.visible = visible;
+        if (visible){
+            entry.dirty = true;
+            scheduleFrame();
+        }
+    }
+
+    /**
+     * Limits how often a visualisation is drawn, even if it is dirty in every frame.
+     * @param renderable A registered visualisation
+     * @param millis Shortest time between two of its frames, 0 for every vsync
+     */
+    void setMinInterval(Renderable renderable, long millis){
+        find(renderable).minInterval = millis * 1000000;
+    }
+
+    /**
+     * Runs a task on the calling thread while no visualisation is being drawn, waiting for the frame being drawn to finish.
+     * Works after quit() as well, so a surface destroyed after the activity can still be released.
+     */
+    void runExclusive(Runnable task){
+        synchronized (renderLock){
+            task.run();
+        }
+    }
+
+    /**
+     * Stops the render thread once the tasks already posted to it have run, like quitSafely(), which needs API 18.
+     * The scheduler can't be used afterwards.
+     */
+    void quit(){
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    private void scheduleFrame(){
+        if (framePosted.compareAndSet(false, true)){
+            handler.post(postFrame);
+        }
+    }
+
+    private void renderFrame(long frameTimeNanos){
+        framePosted.set(false);
+        long nextDelay = -1;
+        synchronized (renderLock){
+            nextDelay = renderEntries(frameTimeNanos);
+        }
+        if (nextDelay >= 0 && framePosted.compareAndSet(false, true)){
+            choreographer.postFrameCallbackDelayed(frameCallback, nextDelay / 1000000);
+        }
+    }
+
+    /**
+     * Draws the visible dirty visualisations.
+     * @return Time in nanoseconds until the next frame is needed, -1 if none is
+     */
+    private long renderEntries(long frameTimeNanos){
+        long nextDelay = -1;
+        for (Entry entry : entries){
+            if (!entry.visible || !entry.dirty) continue;
+            long wait = entry.lastRender + entry.minInterval - frameTimeNanos;
+            if (wait > 0){
+                //throttled, draw it in the first frame after its interval
+                if (nextDelay < 0 || wait < nextDelay) nextDelay = wait;
+                continue;
+            }
+            entry.dirty = false;
+            entry.lastRender = frameTimeNanos;
+            if (entry.renderable.render(frameTimeNanos)) entry.dirty = true;
+            if (entry.dirty && (nextDelay < 0 || entry.minInterval < nextDelay)) nextDelay = entry.minInterval;
+        }
+        return nextDelay;
+    }
+}
@@ -0,0 +1,168 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring of preallocated short[] chunks passed from a single producer (the capture thread)
+ * to a single consumer (the analysis worker).
+ * The producer never waits: when the ring is full, the oldest chunk is dropped and counted,
+ * so a slow analysis loses old audio instead of stalling the recording.
+ * The consumer copies a chunk out and only then claims it. If the producer dropped the chunk in the meantime,
+ * the claim fails and the copy is thrown away, so the consumer never gets a half-overwritten chunk.
+ * When the producer stops, it closes the queue, and the consumer gets the remaining chunks and then the end of the stream.
+ */
+class SampleQueue {
+    private final short[][] chunks;
+    private final int[] lengths;
+    private final long[] timestamps;
+    /**
+     * Timestamp of the chunk returned by the last successful poll, only used by the consumer.
+     */
+    private long lastTimestamp = 0;
+    private final int mask;
+    /**
+     * Index of the next chunk the producer writes. Only the producer changes it.
+     */
+    private final AtomicLong head = new AtomicLong(0);
+    /**
+     * Index of the oldest chunk not yet consumed. Moved by the consumer when it takes a chunk
+     * and by the producer when it drops one.
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile Thread consumer;
+    /**
+     * Set by the producer after its last commitWrite().
+     */
+    private volatile boolean closed = false;
+    private volatile long droppedChunks = 0;
+    private volatile long writtenChunks = 0;
+
+    /**
+     * @param capacity Number of chunks in the ring, rounded up to a power of two
+     * @param chunkSize Maximal number of samples in one chunk
+     */
+    SampleQueue(int capacity, int chunkSize){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        chunks = new short[size][chunkSize];
+        lengths = new int[size];
+        timestamps = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the chunk the producer should fill next, dropping the oldest chunk if the ring is full.
+     * Called only from the producer thread, followed by commitWrite().
+     */
+    short[] beginWrite(){
+        long h = head.get();
+        while (true){
+            long t = tail.get();
+            if (h - t < chunks.length) break;
+            if (tail.compareAndSet(t, t + 1)) droppedChunks++;
+        }
+        return chunks[(int) (h & mask)];
+    }
+
+    /**
+     * Makes the chunk returned by beginWrite() available to the consumer.
+     * @param length Number of valid samples in the chunk
+     * @param timestamp System.nanoTime() at which the last sample of the chunk was recorded
+     */
+    void commitWrite(int length, long timestamp){
+        long h = head.get();
+        lengths[(int) (h & mask)] = length;
+        timestamps[(int) (h & mask)] = timestamp;
+        head.set(h + 1);
+        writtenChunks++;
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+
+    /**
+     * Tells the consumer that no more chunks will come. Called from the producer thread when it stops,
+     * normally or because the recording failed.
+     */
+    void close(){
+        closed = true;
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+
+    /**
+     * @return true if the producer has stopped, the chunks already in the queue can still be taken
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Copies the oldest chunk into destination and removes it from the queue. Called only from the consumer thread.
+     * @param destination Array at least as long as the chunks
+     * @return Number of copied samples or -1 if the queue is empty
+     */
+    int poll(short[] destination){
+        while (true){
+            long t = tail.get();
+            if (t >= head.get()) return -1;
+            int index = (int) (t & mask);
+            int length = lengths[index];
+            long timestamp = timestamps[index];
+            System.arraycopy(chunks[index], 0, destination, 0, length);
+            //a failed claim means the producer dropped the chunk while it was being copied
+            if (tail.compareAndSet(t, t + 1)){
+                lastTimestamp = timestamp;
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Like poll(), but waits for a chunk if the queue is empty.
+     * @param destination Array at least as long as the chunks
+     * @param timeoutMillis Maximal time to wait
+     * @return Number of copied samples or -1 if nothing arrived in time or the queue is closed and empty
+     */
+    int take(short[] destination, long timeoutMillis){
+        int length = poll(destination);
+        if (length >= 0) return length;
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true){
+                //the chunks committed before close() are visible once closed is
+                boolean ended = closed;
+                length = poll(destination);
+                if (length >= 0) return length;
+                if (ended) return -1;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.interrupted()) return -1;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            consumer = null;
+        }
+    }
+
+    /**
+     * @return The timestamp passed to commitWrite() with the chunk returned by the last successful poll() or take()
+     */
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Number of chunks dropped because the consumer did not keep up
+     */
+    long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    /**
+     * @return Number of chunks written by the producer, including the dropped ones
+     */
+    long getWrittenChunks() {
+        return writtenChunks;
+    }
+}
@@ -0,0 +1,32 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * A stream of 16-bit mono samples read in chunks, the input of the TunerEngine.
+ * The microphone and recordings stored in files are read through the same interface,
+ * so the whole analysis chain can run without Android as well.
+ */
+interface SampleSource {
+    /**
+     * @return Sample rate of the stream
+     */
+    int getSampleRate();
+
+    /**
+     * Reads the next chunk of samples, waiting for it at most the given time.
+     * @param buffer Receives the samples, has to hold at least one chunk
+     * @param timeoutMillis Longest time to wait for a chunk
+     * @return Number of samples read, 0 if nothing arrived in time, -1 if the stream has ended
+     */
+    int read(short[] buffer, long timeoutMillis);
+
+    /**
+     * @return Time in nanoseconds at which the chunk returned by the last read() was recorded,
+     * comparable with System.nanoTime() for live sources and the position in the stream for recorded ones
+     */
+    long getTimestamp();
+
+    /**
+     * Stops the stream and releases what it holds. Nothing can be read afterwards.
+     */
+    void close();
+}
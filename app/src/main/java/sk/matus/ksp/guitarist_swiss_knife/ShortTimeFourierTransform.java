@@ -0,0 +1,159 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * The input stage of a streaming short-time Fourier transform.
+ * Incoming samples are stored in a sliding ring that always holds the last windowSize samples,
+ * and a new analysis frame becomes available every hopSize samples. Consecutive frames overlap,
+ * so the rate of the analysis depends only on the hop and not on the length of the window.
+ * The ring is kept in single precision, which holds 16-bit samples exactly, and frames can be produced
+ * for both DoubleFFT_1D and FloatFFT_1D.
+ */
+class ShortTimeFourierTransform {
+    private final int windowSize;
+    private final int hopSize;
+    private final double[] window;
+    private final float[] floatWindow;
+    private final double windowSum;
+    private final float[] ring;
+    /**
+     * Position in the ring at which the next sample will be written. It is also the position of the oldest sample.
+     */
+    private int writePosition = 0;
+    private int samplesSinceFrame = 0;
+    private boolean frameReady = false;
+
+    /**
+     * @param windowSize Number of samples in one analysis frame
+     * @param hopSize Number of new samples between two consecutive frames, at most windowSize
+     * @param windowFunction Window applied to each frame
+     */
+    ShortTimeFourierTransform(int windowSize, int hopSize, WindowFunction windowFunction){
+        if (hopSize <= 0 || hopSize > windowSize){
+            throw new IllegalArgumentException("Hop size has to be between 1 and the window size");
+        }
+        this.windowSize = windowSize;
+        this.hopSize = hopSize;
+        this.window = windowFunction.createTable(windowSize);
+        this.ring = new float[windowSize];
+        this.floatWindow = new float[windowSize];
+        double sum = 0;
+        for (int i = 0; i < windowSize; i++){
+            floatWindow[i] = (float) window[i];
+            sum += window[i];
+        }
+        this.windowSum = sum;
+    }
+
+    /**
+     * Appends samples to the ring, stopping at the end of the current hop.
+     * The caller should check isFrameReady() after each call and keep pushing the rest of its buffer.
+     * @param samples Buffer with samples normalised to the interval [-1,1]
+     * @param offset Index of the first sample to append
+     * @param length Number of samples available from offset
+     * @return Number of samples actually consumed
+     */
+    public int push(double[] samples, int offset, int length){
+        int count = Math.min(length, hopSize - samplesSinceFrame);
+        for (int i = 0; i < count; i++){
+            ring[writePosition] = (float) samples[offset + i];
+            writePosition++;
+            if (writePosition == windowSize) writePosition = 0;
+        }
+        return advance(count);
+    }
+
+    /**
+     * Single precision variant of push(double[], int, int).
+     */
+    public int push(float[] samples, int offset, int length){
+        int count = Math.min(length, hopSize - samplesSinceFrame);
+        for (int i = 0; i < count; i++){
+            ring[writePosition] = samples[offset + i];
+            writePosition++;
+            if (writePosition == windowSize) writePosition = 0;
+        }
+        return advance(count);
+    }
+
+    private int advance(int count){
+        samplesSinceFrame += count;
+        if (samplesSinceFrame == hopSize){
+            samplesSinceFrame = 0;
+            frameReady = true;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if a full hop has been pushed since the last call of fillFrame() or skipFrame()
+     */
+    public boolean isFrameReady() {
+        return frameReady;
+    }
+
+    /**
+     * Copies the last windowSize samples, oldest first and multiplied by the window, into the FFT input buffer.
+     * @param frame Array of at least windowSize elements to be filled
+     */
+    public void fillFrame(double[] frame){
+        int tail = windowSize - writePosition;
+        for (int i = 0; i < tail; i++){
+            frame[i] = ring[writePosition + i] * window[i];
+        }
+        for (int i = 0; i < writePosition; i++){
+            frame[tail + i] = ring[i] * window[tail + i];
+        }
+        frameReady = false;
+    }
+
+    /**
+     * Single precision variant of fillFrame(double[]), for the input of FloatFFT_1D.
+     * @param frame Array of at least windowSize elements to be filled
+     */
+    public void fillFrame(float[] frame){
+        int tail = windowSize - writePosition;
+        for (int i = 0; i < tail; i++){
+            frame[i] = ring[writePosition + i] * floatWindow[i];
+        }
+        for (int i = 0; i < writePosition; i++){
+            frame[tail + i] = ring[i] * floatWindow[tail + i];
+        }
+        frameReady = false;
+    }
+
+    /**
+     * Copies the newest samples without the window, oldest first.
+     * @param destination Array of at least count elements to be filled
+     * @param count Number of samples to copy, at most windowSize
+     */
+    public void copyLatest(double[] destination, int count){
+        for (int i = 0; i < count; i++){
+            int position = writePosition - count + i;
+            if (position < 0) position += windowSize;
+            destination[i] = ring[position];
+        }
+    }
+
+    /**
+     * Acknowledges a ready frame without copying it, for hops in which no transform is needed.
+     */
+    public void skipFrame(){
+        frameReady = false;
+    }
+
+    /**
+     * @return The sum of the window coefficients, which is the amplitude a full-scale sinusoid gets in the spectrum.
+     * Used for normalisation in place of the window length.
+     */
+    public double getWindowSum() {
+        return windowSum;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+}
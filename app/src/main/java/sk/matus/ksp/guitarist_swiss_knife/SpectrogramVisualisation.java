@@ -0,0 +1,261 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.view.TextureView;
+import android.view.TextureView.SurfaceTextureListener;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+/**
+ * A kind of tuner visualization that shows the history of the spectrum as a scrolling waterfall,
+ * time on the x-axis, the logarithm of the frequency on the y-axis and the intensity as a colour.
+ * It makes the sustain of a string and the beating of two close tones visible.
+ * The history is kept in a bitmap used as a ring: every block only writes one column of pixels
+ * and the bitmap is shown by two blits, the older part on the left and the newer part on the right.
+ */
+public class SpectrogramVisualisation extends LinearLayout implements TunerVisualisation, RenderScheduler.Renderable{
+    /**
+     * Number of blocks in the history, about 12 seconds with the default hop.
+     */
+    private static final int historyLength = 256;
+    /**
+     * Number of frequency rows of the bitmap, spread logarithmically between minFrequency and maxFrequency.
+     */
+    private static final int rows = 256;
+    private static final double minFrequency = 40;
+    private static final double maxFrequency = 5000;
+    /**
+     * Number of columns that can wait for the render thread before the newest ones are dropped.
+     */
+    private static final int pendingLength = 16;
+    private static final long frameInterval = 15;
+
+    private TextureView mTextureView;
+    private RenderScheduler renderScheduler;
+    private volatile boolean surfaceAvailable = false;
+    private int mWidth;
+    private int mHeight;
+    private int backgroundColor;
+    private TunerInstrumentation instrumentation;
+
+    /**
+     * The history, written and drawn only by the render thread.
+     */
+    private final Bitmap history = Bitmap.createBitmap(historyLength, rows, Bitmap.Config.ARGB_8888);
+    /**
+     * The column of the history the next block is written into, which is also the oldest column.
+     */
+    private int historyPosition = 0;
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Columns computed on the UI thread from the received frames, waiting to be written into the history.
+     * The UI thread is the only writer and the render thread the only reader.
+     */
+    private final int[][] pendingColumns = new int[pendingLength][rows];
+    private volatile long pendingWritten = 0;
+    private volatile long pendingRead = 0;
+
+    /**
+     * For every row (from the top, i.e. from the highest frequency), the first bin it shows and the bin after the last one.
+     */
+    private final int[] rowFirstBin = new int[rows];
+    private final int[] rowEndBin = new int[rows];
+    private int mappedBins = -1;
+    private double mappedBinWidth = -1;
+    private static final DecibelScale decibelScale = new DecibelScale(-100, -20);
+    /**
+     * The colours of 256 levels of intensity, from black through purple, red and yellow to white.
+     */
+    private static final int[] colourMap = createColourMap();
+
+    public SpectrogramVisualisation(Context context, RenderScheduler renderScheduler){
+        super(context);
+        this.renderScheduler = renderScheduler;
+        renderScheduler.register(this);
+        renderScheduler.setMinInterval(this, frameInterval);
+        backgroundColor = context.getResources().getColor(R.color.colorActivityBackground);
+        history.eraseColor(Color.BLACK);
+        mTextureView = new TextureView(context);
+        mTextureView.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        mTextureView.setSurfaceTextureListener(new CanvasListener());
+        mTextureView.setOpaque(false);
+        setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        this.addView(mTextureView);
+    }
+
+    private static int[] createColourMap(){
+        int[] map = new int[256];
+        //control points of the gradient, evenly spaced
+        int[][] stops = {{0, 0, 0}, {80, 20, 120}, {200, 40, 60}, {250, 160, 20}, {255, 255, 255}};
+        for (int i = 0; i < map.length; i++){
+            double position = (double) i / (map.length - 1) * (stops.length - 1);
+            int stop = Math.min((int) position, stops.length - 2);
+            double t = position - stop;
+            int red = (int) Math.round(stops[stop][0] + t * (stops[stop + 1][0] - stops[stop][0]));
+            int green = (int) Math.round(stops[stop][1] + t * (stops[stop + 1][1] - stops[stop][1]));
+            int blue = (int) Math.round(stops[stop][2] + t * (stops[stop + 1][2] - stops[stop][2]));
+            map[i] = Color.rgb(red, green, blue);
+        }
+        return map;
+    }
+
+    /**
+     * Maps the rows onto the bins they show. A row narrower than a bin shows the bin containing it.
+     * @param bins Number of computed bins
+     * @param binWidth Number of Hz covered by one bin
+     */
+    private void buildRowMap(int bins, double binWidth){
+        double ratio = maxFrequency / minFrequency;
+        for (int row = 0; row < rows; row++){
+            int fromBottom = rows - 1 - row;
+            double low = minFrequency * Math.pow(ratio, (double) fromBottom / rows);
+            double high = minFrequency * Math.pow(ratio, (double) (fromBottom + 1) / rows);
+            int first = (int) Math.floor(low / binWidth + 0.5);
+            int end = (int) Math.floor(high / binWidth + 0.5);
+            if (end <= first) end = first + 1;
+            rowFirstBin[row] = Math.min(first, bins);
+            rowEndBin[row] = Math.min(end, bins);
+        }
+        mappedBins = bins;
+        mappedBinWidth = binWidth;
+    }
+
+    /**
+     * Method turns the new block into a column of colours, which the render thread adds to the history.
+     * Frames without a spectrum add a black column.
+     * @param frame the frame containing the new block of data
+     */
+    public void updateSamples(SpectrumFrame frame){
+        long written = pendingWritten;
+        if (written - pendingRead >= pendingLength) return;
+        int[] column = pendingColumns[(int) (written % pendingLength)];
+        if (frame.bins == 0 || frame.binWidth <= 0){
+            for (int row = 0; row < rows; row++) column[row] = colourMap[0];
+        } else {
+            if (frame.bins != mappedBins || frame.binWidth != mappedBinWidth) buildRowMap(frame.bins, frame.binWidth);
+            double[] data = frame.data;
+            for (int row = 0; row < rows; row++){
+                double strongest = 0;
+                for (int bin = rowFirstBin[row]; bin < rowEndBin[row]; bin++){
+                    if (data[bin] > strongest) strongest = data[bin];
+                }
+                column[row] = colourMap[(int) (decibelScale.toFraction((float) strongest) * 255)];
+            }
+        }
+        pendingWritten = written + 1;
+        renderScheduler.requestRender(this);
+    }
+
+    /**
+     * Method writes the waiting columns into the history and draws it, called by the renderScheduler on its thread.
+     * @param frameTimeNanos time of the vsync
+     * @return false, new columns request their own frames
+     */
+    public boolean render(long frameTimeNanos){
+        long read = pendingRead;
+        long written = pendingWritten;
+        for (; read < written; read++){
+            history.setPixels(pendingColumns[(int) (read % pendingLength)], 0, 1, historyPosition, 0, 1, rows);
+            historyPosition = (historyPosition + 1) % historyLength;
+        }
+        pendingRead = read;
+        if (!surfaceAvailable) return false;
+        long drawStart = System.nanoTime();
+        final Canvas canvas = mTextureView.lockCanvas(null);
+        if (canvas == null) return false;
+        try {
+            doDraw(canvas);
+        } finally {
+            mTextureView.unlockCanvasAndPost(canvas);
+        }
+        if (instrumentation != null){
+            instrumentation.record(TunerInstrumentation.Stage.DRAW, System.nanoTime() - drawStart);
+        }
+        return false;
+    }
+
+    /**
+     * Method draws the history, the oldest column at the left edge and the newest one at the right edge.
+     * @param canvas A canvas to be drawn to*/
+    public void doDraw(Canvas canvas){
+        canvas.drawColor(backgroundColor);
+        int split = mWidth * (historyLength - historyPosition) / historyLength;
+        source.set(historyPosition, 0, historyLength, rows);
+        destination.set(0, 0, split, mHeight);
+        canvas.drawBitmap(history, source, destination, bitmapPaint);
+        if (historyPosition > 0){
+            source.set(0, 0, historyPosition, rows);
+            destination.set(split, 0, mWidth, mHeight);
+            canvas.drawBitmap(history, source, destination, bitmapPaint);
+        }
+    }
+
+    public void updateMaxFrequency(double maxFrequency){
+    }
+
+    public void updateTone(ToneResolution resolution){
+    }
+
+    /**
+     * Method sets the shortest time between two redraws.
+     * @param millis Shortest time between two redraws, 0 for the default rate
+     */
+    public void setRenderInterval(long millis){
+        renderScheduler.setMinInterval(this, Math.max(frameInterval, millis));
+    }
+
+    /**
+     * Method sets where the durations of the draws are recorded.
+     * @param instrumentation the instrumentation of the tuner
+     */
+    public void setInstrumentation(TunerInstrumentation instrumentation){
+        this.instrumentation = instrumentation;
+    }
+
+    private class CanvasListener implements SurfaceTextureListener {
+        @Override
+        public void onSurfaceTextureAvailable(SurfaceTexture surface,
+                                              int width, int height) {
+            mWidth = mTextureView.getWidth();
+            mHeight = mTextureView.getHeight();
+            surfaceAvailable = true;
+            renderScheduler.requestRender(SpectrogramVisualisation.this);
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            surfaceAvailable = false;
+            //the render thread may be drawing right now, so the surface is released after its frame
+            renderScheduler.runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    surface.release();
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(SurfaceTexture surface,
+                                                int width, int height) {
+            mWidth = mTextureView.getWidth();
+            mHeight = mTextureView.getHeight();
+            renderScheduler.requestRender(SpectrogramVisualisation.this);
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Spectral stage that turns the output of DoubleFFT_1D.realForward or FloatFFT_1D.realForward into a magnitude (or power) spectrum.
+ * Only the bins between the lowest and the highest frequency of interest are computed, the rest stay zero.
+ * The complex values of the last two frames are kept, so a peak can be located between bins either
+ * by the phase difference of consecutive frames (phase vocoder) or by fitting a parabola through its neighbours.
+ */
+class SpectrumAnalyser {
+    private final int sampleRate;
+    private final int blockSize;
+    private final int hopSize;
+    private final int firstBin;
+    private final int lastBin;
+    private final boolean power;
+    private final double[] magnitudes;
+    private double[] real;
+    private double[] imaginary;
+    private double[] previousReal;
+    private double[] previousImaginary;
+    /**
+     * True once a frame has been processed since the last reset(), the next frame then follows it by one hop.
+     */
+    private boolean hasCurrent = false;
+    /**
+     * True if the previous frame precedes the current one by exactly one hop, so the phase vocoder can compare them.
+     */
+    private boolean hasPrevious = false;
+
+    /**
+     * @param sampleRate Sample rate of the analysed signal
+     * @param blockSize Number of samples in one FFT frame
+     * @param hopSize Number of samples between the starts of two consecutive frames
+     * @param minFrequency Lowest frequency whose bin gets computed
+     * @param maxFrequency Highest frequency whose bin gets computed
+     * @param power If true, squared magnitudes are stored, which saves a square root per bin
+     */
+    SpectrumAnalyser(int sampleRate, int blockSize, int hopSize, double minFrequency, double maxFrequency, boolean power){
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        this.hopSize = hopSize;
+        this.power = power;
+        int bins = blockSize / 2;
+        firstBin = Math.max(1, (int) Math.floor(minFrequency * blockSize / sampleRate));
+        lastBin = Math.min(bins, (int) Math.ceil(maxFrequency * blockSize / sampleRate) + 1);
+        magnitudes = new double[bins];
+        real = new double[bins];
+        imaginary = new double[bins];
+        previousReal = new double[bins];
+        previousImaginary = new double[bins];
+    }
+
+    /**
+     * Computes the spectrum of a new frame.
+     * @param fftOutput Interleaved output of DoubleFFT_1D.realForward
+     * @param normalisation Value the complex amplitudes are divided by, usually the sum of the window
+     */
+    public void process(double[] fftOutput, double normalisation){
+        swapFrames();
+        for (int bin = firstBin; bin < lastBin; bin++){
+            double re = fftOutput[2*bin] / normalisation;
+            double im = fftOutput[2*bin + 1] / normalisation;
+            real[bin] = re;
+            imaginary[bin] = im;
+            double squared = re*re + im*im;
+            magnitudes[bin] = power ? squared : Math.sqrt(squared);
+        }
+        hasPrevious = hasCurrent;
+        hasCurrent = true;
+    }
+
+    /**
+     * Single precision variant of process(double[], double).
+     * @param fftOutput Interleaved output of FloatFFT_1D.realForward
+     * @param normalisation Value the complex amplitudes are divided by, usually the sum of the window
+     */
+    public void process(float[] fftOutput, double normalisation){
+        swapFrames();
+        for (int bin = firstBin; bin < lastBin; bin++){
+            double re = fftOutput[2*bin] / normalisation;
+            double im = fftOutput[2*bin + 1] / normalisation;
+            real[bin] = re;
+            imaginary[bin] = im;
+            double squared = re*re + im*im;
+            magnitudes[bin] = power ? squared : Math.sqrt(squared);
+        }
+        hasPrevious = hasCurrent;
+        hasCurrent = true;
+    }
+
+    private void swapFrames(){
+        double[] swap = previousReal;
+        previousReal = real;
+        real = swap;
+        swap = previousImaginary;
+        previousImaginary = imaginary;
+        imaginary = swap;
+    }
+
+    /**
+     * Forgets the previous frame, to be called when the next frame won't follow the last one by exactly one hop.
+     * The next frame is then refined by the quadratic interpolation and only the one after it by the phase vocoder.
+     */
+    public void reset(){
+        hasCurrent = false;
+        hasPrevious = false;
+    }
+
+    /**
+     * Copies the spectrum into another array, e.g. a SpectrumFrame.
+     * @param target Array of at least getLastBin() elements
+     */
+    public void copyMagnitudes(double[] target){
+        System.arraycopy(magnitudes, 0, target, 0, lastBin);
+    }
+
+    /**
+     * Finds the precise frequency of a spectral peak.
+     * The phase vocoder estimate is used when the previous frame is available and agrees with the peak bin,
+     * otherwise the quadratic interpolation is used.
+     * @param bin Index of a bin that is a local maximum of the spectrum
+     * @return The frequency of the peak in Hz
+     */
+    public double refineFrequency(int bin){
+        if (bin <= firstBin || bin >= lastBin - 1) return binToFrequency(bin);
+        if (hasPrevious){
+            double vocoderBin = phaseVocoderBin(bin);
+            if (Math.abs(vocoderBin - bin) <= 1) return binToFrequency(vocoderBin);
+        }
+        return binToFrequency(interpolatePeak(bin));
+    }
+
+    /**
+     * Fits a parabola through the logarithms of the magnitudes of the bin and its two neighbours.
+     * @param bin Index of a bin that is a local maximum of the spectrum
+     * @return The fractional bin index of the parabola's vertex
+     */
+    public double interpolatePeak(int bin){
+        double left = Math.log(magnitudes[bin - 1] + 1e-20);
+        double centre = Math.log(magnitudes[bin] + 1e-20);
+        double right = Math.log(magnitudes[bin + 1] + 1e-20);
+        double denominator = left - 2*centre + right;
+        if (denominator >= 0) return bin;
+        return bin + 0.5 * (left - right) / denominator;
+    }
+
+    /**
+     * Estimates the frequency of the component in a bin from how much its phase advanced since the previous frame.
+     * @param bin Index of the bin
+     * @return The fractional bin index matching the measured phase advance
+     */
+    private double phaseVocoderBin(int bin){
+        double re = real[bin] * previousReal[bin] + imaginary[bin] * previousImaginary[bin];
+        double im = imaginary[bin] * previousReal[bin] - real[bin] * previousImaginary[bin];
+        double advance = Math.atan2(im, re);
+        double expected = 2 * Math.PI * bin * hopSize / blockSize;
+        double deviation = advance - expected;
+        deviation -= 2 * Math.PI * Math.round(deviation / (2 * Math.PI));
+        return bin + deviation * blockSize / (2 * Math.PI * hopSize);
+    }
+
+    /**
+     * @param bin Possibly fractional bin index
+     * @return The frequency in Hz at the centre of the bin
+     */
+    public double binToFrequency(double bin){
+        return bin * sampleRate / blockSize;
+    }
+
+    public double[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    /**
+     * @return Index of the lowest computed bin
+     */
+    public int getFirstBin() {
+        return firstBin;
+    }
+
+    /**
+     * @return Index one past the highest computed bin
+     */
+    public int getLastBin() {
+        return lastBin;
+    }
+}
@@ -0,0 +1,100 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable block of spectral data travelling from the audio thread to the tuner visualisations.
+ * Frames are owned by a SpectrumFramePool and are never reallocated, so the data array
+ * has to be treated as read-only by everyone except the pool's writer.
+ */
+class SpectrumFrame {
+    /**
+     * The magnitude spectrum of one analysed block, indexed by FFT bin.
+     */
+    final double[] data;
+    /**
+     * Number of leading elements of data that hold the spectrum, the bins above it are not computed.
+     */
+    int bins = 0;
+    /**
+     * Number of Hz covered by one bin, the sample rate of the analysis divided by the block size.
+     */
+    double binWidth = 0;
+    /**
+     * The constant-Q magnitude spectrum of the block, constantQBinsPerOctave bins per octave starting at constantQMinFrequency.
+     */
+    final double[] constantQ;
+    /**
+     * Number of leading elements of constantQ that hold the spectrum, 0 if it hasn't been computed for this block.
+     */
+    int constantQBins = 0;
+    double constantQMinFrequency = 0;
+    int constantQBinsPerOctave = 0;
+    /**
+     * The pitch detected at the time the block was processed, 0 if there was none.
+     */
+    double frequency = 0;
+    /**
+     * Largest number of strings the polyphonic analysis reports.
+     */
+    static final int maxStrings = 8;
+    /**
+     * Deviation of every string in cents as found by the polyphonic analysis, NaN for the strings not heard in the block.
+     */
+    final double[] stringCents = new double[maxStrings];
+    /**
+     * Number of leading elements of stringCents that are valid, 0 if the polyphonic analysis is off.
+     */
+    int strings = 0;
+    /**
+     * Index of the chord recognised in the block by the ChordTemplateIndex, -1 if none or if the recognition is off.
+     */
+    int chord = -1;
+    /**
+     * System.nanoTime() at which the newest samples of the block were read from the microphone.
+     */
+    long captureTime = 0;
+    /**
+     * System.nanoTime() at which the frame was published.
+     */
+    long publishTime = 0;
+    /**
+     * Number of readers currently holding the frame. The writer never reuses a frame that is held.
+     */
+    private final AtomicInteger holders = new AtomicInteger(0);
+    private volatile long sequence = 0;
+
+    SpectrumFrame(int size, int constantQSize){
+        data = new double[size];
+        constantQ = new double[constantQSize];
+    }
+
+    /**
+     * @return The number under which the current content has been published. Grows with each published block.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Marks the frame as used by one more reader, so its content is kept intact until release() is called.
+     */
+    public void retain(){
+        holders.incrementAndGet();
+    }
+
+    /**
+     * Gives up the hold taken by retain().
+     */
+    public void release(){
+        holders.decrementAndGet();
+    }
+
+    boolean isHeld(){
+        return holders.get() > 0;
+    }
+}
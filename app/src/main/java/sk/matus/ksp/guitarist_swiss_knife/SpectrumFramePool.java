@@ -0,0 +1,77 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * A fixed ring of SpectrumFrame instances shared between a single writer (the audio thread)
+ * and any number of readers (the tuner visualisations).
+ * The writer only ever fills frames that are neither the latest published one nor held by a reader,
+ * so a reader that obtained a frame through acquireLatest() never sees it half-written.
+ * No memory is allocated after construction.
+ */
+class SpectrumFramePool {
+    private final SpectrumFrame[] frames;
+    private volatile SpectrumFrame latest;
+    private int nextSlot = 0;
+    private long publishedCount = 0;
+    private volatile long droppedCount = 0;
+
+    /**
+     * @param frameCount Number of frames in the ring. Has to be larger than the number of frames
+     *                   the readers may hold at once plus two (the latest one and the one being written).
+     * @param frameSize Length of the data array of each frame
+     * @param constantQSize Length of the constantQ array of each frame
+     */
+    SpectrumFramePool(int frameCount, int frameSize, int constantQSize){
+        frames = new SpectrumFrame[frameCount];
+        for (int i = 0; i < frameCount; i++){
+            frames[i] = new SpectrumFrame(frameSize, constantQSize);
+        }
+    }
+
+    /**
+     * Finds a frame the writer can fill. Called only from the writer thread.
+     * @return A free frame or null if all of them are in use, in which case the block should be dropped.
+     */
+    SpectrumFrame obtain(){
+        for (int i = 0; i < frames.length; i++){
+            SpectrumFrame candidate = frames[(nextSlot + i) % frames.length];
+            if (candidate != latest && !candidate.isHeld()){
+                nextSlot = (nextSlot + i + 1) % frames.length;
+                return candidate;
+            }
+        }
+        droppedCount++;
+        return null;
+    }
+
+    /**
+     * Makes a frame filled by the writer visible to the readers. Called only from the writer thread.
+     * @param frame A frame previously returned by obtain()
+     */
+    void publish(SpectrumFrame frame){
+        frame.setSequence(++publishedCount);
+        latest = frame;
+    }
+
+    /**
+     * Retains and returns the most recently published frame.
+     * The caller has to call release() on the frame once it no longer needs its data.
+     * @return The newest frame or null if nothing has been published yet
+     */
+    SpectrumFrame acquireLatest(){
+        while (true){
+            SpectrumFrame frame = latest;
+            if (frame == null) return null;
+            frame.retain();
+            //the writer might have started refilling the frame before we retained it
+            if (frame == latest) return frame;
+            frame.release();
+        }
+    }
+
+    /**
+     * @return Number of blocks that could not be published because every frame was in use
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+}
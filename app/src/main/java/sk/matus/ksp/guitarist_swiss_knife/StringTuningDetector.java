@@ -0,0 +1,153 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Pitch detector for tuning the strings of a known tuning.
+ * Instead of the whole spectrum it watches a few narrow Goertzel filters spread around the target frequency of each string.
+ * The string with the strongest response is the nearest one and the shape of the responses around the strongest filter
+ * tells how many cents the sound is off.
+ * The filters only need the fundamentals of the strings, so the signal is decimated first: updating every filter for every sample
+ * at the full rate would cost more than the FFT this detector saves.
+ */
+class StringTuningDetector implements PitchDetector {
+    /**
+     * Number of periods of its own target tone each filter integrates over.
+     * The window length in cents is then the same for all strings.
+     */
+    private static final int periodsPerWindow = 24;
+    /**
+     * Distance between neighbouring filters of a string, in multiples of the filter bandwidth.
+     */
+    private static final double filterSpacing = 0.3;
+    /**
+     * Number of filters per string, placed symmetrically around the target.
+     */
+    private static final int filtersPerString = 5;
+    private static final double maxCents = 50;
+    private static final double silenceThreshold = 0.001;
+    /**
+     * The decimated sample rate is at least this multiple of the highest string, which keeps the transition band
+     * of the decimation filter and the aliases of the upper partials above the filters.
+     */
+    private static final int ratePerTarget = 8;
+    /**
+     * Number of input samples decimated at once.
+     */
+    private static final int decimationChunk = 1024;
+
+    private final double[] targets;
+    private final double spacingCents;
+    private final GoertzelFilterBank filterBank;
+    /**
+     * Lowers the sample rate before the filters, null if the rate is already low enough.
+     */
+    private final Decimator decimator;
+    private final double[] decimated;
+
+    /**
+     * @param sampleRate Sample rate of the analysed signal
+     * @param targets Frequencies of the open strings, from the lowest string to the highest
+     */
+    StringTuningDetector(int sampleRate, double[] targets){
+        this.targets = targets.clone();
+        int factor = Math.max(1, (int) (sampleRate / (ratePerTarget * targets[targets.length - 1])));
+        decimator = (factor > 1) ? new Decimator(factor, 16) : null;
+        decimated = new double[decimationChunk / factor + 1];
+        double filterRate = (double) sampleRate / factor;
+        spacingCents = 1200 * Math.log(1 + filterSpacing / periodsPerWindow) / Math.log(2);
+        double[] frequencies = new double[targets.length * filtersPerString];
+        int[] windowSizes = new int[targets.length * filtersPerString];
+        for (int i = 0; i < targets.length; i++){
+            int windowSize = (int) Math.round(periodsPerWindow * filterRate / targets[i]);
+            for (int j = 0; j < filtersPerString; j++){
+                int step = j - filtersPerString / 2;
+                frequencies[i * filtersPerString + j] = targets[i] * Math.pow(2, step * spacingCents / 1200);
+                windowSizes[i * filtersPerString + j] = windowSize;
+            }
+        }
+        filterBank = new GoertzelFilterBank(filterRate, frequencies, windowSizes);
+    }
+
+    @Override
+    public void addSamples(double[] samples, int offset, int length) {
+        if (decimator == null){
+            filterBank.addSamples(samples, offset, length);
+            return;
+        }
+        for (int start = offset; start < offset + length; start += decimationChunk){
+            int produced = decimator.process(samples, start, Math.min(decimationChunk, offset + length - start), decimated);
+            filterBank.addSamples(decimated, 0, produced);
+        }
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return false;
+    }
+
+    /**
+     * Empties the filters, the samples recorded before the silence must not be mistaken for the next note.
+     */
+    @Override
+    public void reset() {
+        if (decimator != null) decimator.reset();
+        filterBank.reset();
+    }
+
+    @Override
+    public double detectPitch(double[] spectrum) {
+        int strongest = -1;
+        double strongestMagnitude = silenceThreshold;
+        for (int i = 0; i < targets.length; i++){
+            double magnitude = stringMagnitude(i);
+            if (magnitude > strongestMagnitude){
+                strongestMagnitude = magnitude;
+                strongest = i;
+            }
+        }
+        if (strongest == -1) return 0;
+        //the strongest response may come from a harmonic of a lower string, e.g. the 4th harmonic of low E is the high E
+        for (int i = 0; i < strongest; i++){
+            double ratio = targets[strongest] / targets[i];
+            boolean harmonic = Math.abs(ratio - Math.round(ratio)) < 0.03 * ratio;
+            if (harmonic && stringMagnitude(i) > 0.25 * strongestMagnitude){
+                strongest = i;
+                break;
+            }
+        }
+        return targets[strongest] * Math.pow(2, estimateCents(strongest) / 1200);
+    }
+
+    /**
+     * @param string Index of the string
+     * @return Index of the string's filter with the strongest response
+     */
+    private int strongestFilter(int string){
+        int best = string * filtersPerString;
+        for (int i = best + 1; i < (string + 1) * filtersPerString; i++){
+            if (filterBank.getMagnitude(i) > filterBank.getMagnitude(best)) best = i;
+        }
+        return best;
+    }
+
+    private double stringMagnitude(int string){
+        return filterBank.getMagnitude(strongestFilter(string));
+    }
+
+    /**
+     * Fits a parabola through the logarithms of the responses of the strongest filter of a string and its neighbours,
+     * the main lobe of the filter response is close to a parabola around its peak.
+     * @param string Index of the string
+     * @return Deviation of the sound from the string's target in cents
+     */
+    private double estimateCents(int string){
+        int first = string * filtersPerString;
+        int best = Math.max(first + 1, Math.min(first + filtersPerString - 2, strongestFilter(string)));
+        double below = Math.log(filterBank.getMagnitude(best - 1) + 1e-20);
+        double centre = Math.log(filterBank.getMagnitude(best) + 1e-20);
+        double above = Math.log(filterBank.getMagnitude(best + 1) + 1e-20);
+        double denominator = below - 2*centre + above;
+        double step = best - first - filtersPerString / 2;
+        if (denominator < 0) step += 0.5 * (below - above) / denominator;
+        return Math.max(-maxCents, Math.min(maxCents, step * spacingCents));
+    }
+}
@@ -0,0 +1,237 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.SurfaceTexture;
+import android.os.SystemClock;
+import android.view.TextureView;
+import android.view.TextureView.SurfaceTextureListener;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+/**
+ * A kind of tuner visualization for the polyphonic mode that shows the deviation of every string at once,
+ * one row per string with the lowest string at the bottom, like in a tablature.
+ * A string that has not been heard for a while keeps its last value in grey.
+ */
+public class StrumVisualisation extends LinearLayout implements TunerVisualisation, RenderScheduler.Renderable{
+    private static final double maxCents = 50;
+    private static final double inTuneCents = 5;
+    /**
+     * Weight of the newest deviation in the exponential smoothing of every string.
+     */
+    private static final double smoothing = 0.35;
+    /**
+     * A string not heard for this many milliseconds is shown as stale.
+     */
+    private static final long holdMillis = 1500;
+    private static final long frameInterval = 30;
+
+    private TextureView mTextureView;
+    private RenderScheduler renderScheduler;
+    private volatile boolean surfaceAvailable = false;
+    private int mWidth;
+    private int mHeight;
+    private int backgroundColor;
+    private int inTuneColor;
+    private TunerInstrumentation instrumentation;
+
+    /**
+     * Names of the open strings from the lowest one, replaced together with the arrays below when the tuning changes.
+     */
+    private volatile String[] stringNames = new String[0];
+    /**
+     * Smoothed deviation of every string, NaN until the string is heard. Written on the UI thread, read by the render thread.
+     */
+    private volatile double[] shownCents = new double[0];
+    private volatile long[] lastHeard = new long[0];
+    /**
+     * Labels of the whole cents between -maxCents and maxCents, so that drawing them allocates nothing.
+     */
+    private final String[] centsLabels = new String[(int) (2 * maxCents) + 1];
+
+    private final Paint scalePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint markerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    public StrumVisualisation(Context context, RenderScheduler renderScheduler){
+        super(context);
+        this.renderScheduler = renderScheduler;
+        renderScheduler.register(this);
+        renderScheduler.setMinInterval(this, frameInterval);
+        backgroundColor = context.getResources().getColor(R.color.colorActivityBackground);
+        inTuneColor = context.getResources().getColor(R.color.colorKSPGreen);
+        scalePaint.setColor(Color.LTGRAY);
+        scalePaint.setStrokeWidth(2);
+        textPaint.setColor(Color.WHITE);
+        for (int i = 0; i < centsLabels.length; i++){
+            int cents = i - (int) maxCents;
+            centsLabels[i] = (cents > 0 ? "+" : "") + cents;
+        }
+        mTextureView = new TextureView(context);
+        mTextureView.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        mTextureView.setSurfaceTextureListener(new CanvasListener());
+        mTextureView.setOpaque(false);
+        setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT));
+        this.addView(mTextureView);
+    }
+
+    /**
+     * Method sets the strings whose deviations are shown. Called on the UI thread.
+     * @param names Names of the open strings from the lowest one
+     */
+    public void setStrings(String[] names){
+        double[] cents = new double[names.length];
+        for (int i = 0; i < cents.length; i++) cents[i] = Double.NaN;
+        lastHeard = new long[names.length];
+        shownCents = cents;
+        stringNames = names.clone();
+        renderScheduler.requestRender(this);
+    }
+
+    /**
+     * Method smooths the deviations of the strings heard in the new block.
+     * Frames without the polyphonic analysis are ignored.
+     * @param frame the frame containing the new block of data
+     */
+    public void updateSamples(SpectrumFrame frame){
+        double[] cents = shownCents;
+        if (frame.strings == 0 || frame.strings != cents.length) return;
+        long now = SystemClock.uptimeMillis();
+        boolean changed = false;
+        for (int i = 0; i < cents.length; i++){
+            double measured = frame.stringCents[i];
+            if (Double.isNaN(measured)) continue;
+            //a string heard again after a pause starts from the new value instead of sliding from the old one
+            if (Double.isNaN(cents[i]) || now - lastHeard[i] > holdMillis) cents[i] = measured;
+            else cents[i] += smoothing * (measured - cents[i]);
+            lastHeard[i] = now;
+            changed = true;
+        }
+        if (changed) renderScheduler.requestRender(this);
+    }
+
+    /**
+     * Method draws the strings, called by the renderScheduler on its thread.
+     * @param frameTimeNanos time of the vsync
+     * @return true while a heard string has not become stale yet, so that it turns grey in time
+     */
+    public boolean render(long frameTimeNanos){
+        if (!surfaceAvailable) return false;
+        long drawStart = System.nanoTime();
+        final Canvas canvas = mTextureView.lockCanvas(null);
+        if (canvas == null) return false;
+        boolean fresh;
+        try {
+            fresh = doDraw(canvas);
+        } finally {
+            mTextureView.unlockCanvasAndPost(canvas);
+        }
+        if (instrumentation != null){
+            instrumentation.record(TunerInstrumentation.Stage.DRAW, System.nanoTime() - drawStart);
+        }
+        return fresh;
+    }
+
+    /**
+     * Method draws a row with a scale and a marker for every string.
+     * @param canvas A canvas to be drawn to
+     * @return true if any of the strings is shown as freshly heard
+     */
+    public boolean doDraw(Canvas canvas){
+        canvas.drawColor(backgroundColor);
+        String[] names = stringNames;
+        double[] cents = shownCents;
+        long[] heard = lastHeard;
+        int strings = Math.min(names.length, Math.min(cents.length, heard.length));
+        if (strings == 0) return false;
+        long now = SystemClock.uptimeMillis();
+        float rowHeight = (float) mHeight / strings;
+        float textSize = Math.min(rowHeight * 0.4f, mWidth / 12f);
+        textPaint.setTextSize(textSize);
+        float scaleLeft = textSize * 2;
+        float scaleRight = mWidth - textSize * 3;
+        float scaleCentre = (scaleLeft + scaleRight) / 2;
+        float radius = Math.min(rowHeight * 0.25f, textSize * 0.6f);
+        boolean fresh = false;
+        for (int i = 0; i < strings; i++){
+            float y = mHeight - (i + 0.5f) * rowHeight;
+            canvas.drawText(names[i], textSize * 0.5f, y + textSize / 3, textPaint);
+            canvas.drawLine(scaleLeft, y, scaleRight, y, scalePaint);
+            canvas.drawLine(scaleCentre, y - radius * 1.5f, scaleCentre, y + radius * 1.5f, scalePaint);
+            double value = cents[i];
+            if (Double.isNaN(value)) continue;
+            boolean stale = now - heard[i] > holdMillis;
+            fresh |= !stale;
+            double clamped = Math.max(-maxCents, Math.min(maxCents, value));
+            if (stale) markerPaint.setColor(Color.GRAY);
+            else markerPaint.setColor(Math.abs(value) <= inTuneCents ? inTuneColor : Color.WHITE);
+            float x = (float) (scaleCentre + clamped / maxCents * (scaleRight - scaleCentre));
+            canvas.drawCircle(x, y, radius, markerPaint);
+            canvas.drawText(centsLabels[(int) Math.round(clamped + maxCents)], scaleRight + textSize * 0.5f, y + textSize / 3, textPaint);
+        }
+        return fresh;
+    }
+
+    public void updateMaxFrequency(double maxFrequency){
+    }
+
+    public void updateTone(ToneResolution resolution){
+    }
+
+    /**
+     * Method sets the shortest time between two redraws.
+     * @param millis Shortest time between two redraws, 0 for the default rate
+     */
+    public void setRenderInterval(long millis){
+        renderScheduler.setMinInterval(this, Math.max(frameInterval, millis));
+    }
+
+    /**
+     * Method sets where the durations of the draws are recorded.
+     * @param instrumentation the instrumentation of the tuner
+     */
+    public void setInstrumentation(TunerInstrumentation instrumentation){
+        this.instrumentation = instrumentation;
+    }
+
+    private class CanvasListener implements SurfaceTextureListener {
+        @Override
+        public void onSurfaceTextureAvailable(SurfaceTexture surface,
+                                              int width, int height) {
+            mWidth = mTextureView.getWidth();
+            mHeight = mTextureView.getHeight();
+            surfaceAvailable = true;
+            renderScheduler.requestRender(StrumVisualisation.this);
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            surfaceAvailable = false;
+            //the render thread may be drawing right now, so the surface is released after its frame
+            renderScheduler.runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    surface.release();
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(SurfaceTexture surface,
+                                                int width, int height) {
+            mWidth = mTextureView.getWidth();
+            mHeight = mTextureView.getHeight();
+            renderScheduler.requestRender(StrumVisualisation.this);
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Listens to the band through the same capture path as the tuner and reports its tempo.
+ * The AudioCapture thread fills a SampleQueue, this thread turns the chunks into onset strengths and feeds them
+ * to a TempoTracker. Nothing is stored beyond the current frame and the tracker's history,
+ * so it can listen for as long as needed.
+ */
+class TempoListener extends Thread {
+    /**
+     * Receives the estimates on the UI thread.
+     */
+    interface Listener {
+        /**
+         * @param bpm The estimated tempo in beats per minute
+         * @param confidence How sure the tracker is, from 0 to 1
+         */
+        void onTempo(double bpm, double confidence);
+
+        /**
+         * Called when the microphone can't be opened or stops delivering samples, no estimates follow.
+         */
+        void onError();
+    }
+
+    private static final int sampleRate = 22050;
+    private static final int frameSize = 1024;
+    private static final int hopSize = 256;
+    private static final int queuedChunks = 16;
+    /**
+     * Time between two reports in milliseconds.
+     */
+    private static final long reportInterval = 500;
+
+    private final Listener listener;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final SampleQueue sampleQueue = new SampleQueue(queuedChunks, hopSize);
+    private final AudioCapture audioCapture = new AudioCapture(sampleRate, hopSize, sampleQueue, new TunerInstrumentation());
+    private final OnsetDetector onsetDetector = new OnsetDetector(sampleRate, frameSize, hopSize, 8000);
+    private final TempoTracker tempoTracker = new TempoTracker(onsetDetector.getFrameRate(), 40, 240, 6);
+    private volatile boolean running = true;
+    private volatile double reportedBpm = 0;
+    private volatile double reportedConfidence = 0;
+
+    /**
+     * Posted for every report instead of a new Runnable, reads the latest values.
+     */
+    private final Runnable report = new Runnable() {
+        @Override
+        public void run() {
+            if (running) listener.onTempo(reportedBpm, reportedConfidence);
+        }
+    };
+
+    /**
+     * Posted once when the capture thread stops on its own.
+     */
+    private final Runnable failure = new Runnable() {
+        @Override
+        public void run() {
+            if (running) listener.onError();
+        }
+    };
+
+    /**
+     * @param listener Receives the estimates on the UI thread
+     */
+    TempoListener(Listener listener){
+        super("TempoListener");
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        audioCapture.start();
+        short[] buffer = new short[hopSize];
+        double[] samples = new double[hopSize];
+        long lastReport = System.nanoTime();
+        long lastDropped = 0;
+        try {
+            while (running){
+                int read = sampleQueue.take(buffer, 100);
+                //the capture thread has stopped, the microphone failed
+                if (read < 0 && sampleQueue.isClosed()){
+                    uiHandler.post(failure);
+                    break;
+                }
+                if (read <= 0) continue;
+                //a dropped chunk breaks the continuity of the frames, the flux over the gap would be an onset that never happened
+                long dropped = sampleQueue.getDroppedChunks();
+                if (dropped != lastDropped){
+                    lastDropped = dropped;
+                    onsetDetector.reset();
+                }
+                for (int i = 0; i < read; i++){
+                    samples[i] = buffer[i] / 32768.0;
+                }
+                int consumed = 0;
+                while (consumed < read){
+                    consumed += onsetDetector.push(samples, consumed, read - consumed);
+                    if (onsetDetector.isFrameReady()) tempoTracker.add(onsetDetector.nextStrength());
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= reportInterval * 1000000){
+                    lastReport = now;
+                    tempoTracker.estimate();
+                    reportedBpm = tempoTracker.getBpm();
+                    reportedConfidence = tempoTracker.getConfidence();
+                    uiHandler.post(report);
+                }
+            }
+        } finally {
+            audioCapture.shutdown();
+        }
+    }
+
+    /**
+     * Stops listening and waits until the microphone has been released. No report is delivered afterwards.
+     */
+    void shutdown(){
+        running = false;
+        uiHandler.removeCallbacks(report);
+        uiHandler.removeCallbacks(failure);
+        try {
+            join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Estimates the tempo from a stream of onset strengths by a running autocorrelation.
+ * Every new value updates the autocorrelation of all the lags of interest with an exponential forgetting,
+ * so the estimate follows a band that speeds up or slows down and the memory is bounded by the longest lag.
+ * A lag is scored together with its double (a comb of two teeth), which favours the beat over its subdivisions,
+ * and with a broad preference for tempos around 120 bpm, which decides between a tempo and its half or double.
+ * The peaks of the autocorrelation are only a frame or two wide and a beat rarely lasts a whole number of frames,
+ * so the teeth read a slightly smoothed autocorrelation and the second one takes the best of the neighbouring lags.
+ */
+class TempoTracker {
+    private static final double preferredBpm = 120;
+    /**
+     * Width of the tempo preference in octaves.
+     */
+    private static final double preferenceWidth = 1;
+
+    private final double frameRate;
+    private final int minLag;
+    private final int maxLag;
+    /**
+     * The last onset strengths, long enough for the neighbours of the double of the longest lag.
+     */
+    private final double[] history;
+    private int position = 0;
+    private long frames = 0;
+    private final double[] autocorrelation;
+    private final double decay;
+    private final double meanSmoothing;
+    private double mean = 0;
+    private double bpm = 0;
+    private double confidence = 0;
+
+    /**
+     * @param frameRate Number of onset strength values per second
+     * @param minBpm Slowest recognised tempo
+     * @param maxBpm Fastest recognised tempo
+     * @param memorySeconds Time after which an old value has lost most of its influence
+     */
+    TempoTracker(double frameRate, double minBpm, double maxBpm, double memorySeconds){
+        this.frameRate = frameRate;
+        minLag = Math.max(1, (int) Math.floor(60 * frameRate / maxBpm));
+        maxLag = (int) Math.ceil(60 * frameRate / minBpm);
+        history = new double[2 * maxLag + 3];
+        autocorrelation = new double[2 * maxLag + 3];
+        decay = Math.exp(-1 / (memorySeconds * frameRate));
+        meanSmoothing = 1 - decay;
+    }
+
+    /**
+     * Adds the onset strength of a new frame.
+     * @param strength Onset strength, e.g. from OnsetDetector
+     */
+    void add(double strength){
+        mean += meanSmoothing * (strength - mean);
+        double value = strength - mean;
+        history[position] = value;
+        for (int lag = 0; lag < autocorrelation.length; lag++){
+            int index = position - lag;
+            if (index < 0) index += history.length;
+            autocorrelation[lag] = decay * autocorrelation[lag] + value * history[index];
+        }
+        position = (position + 1) % history.length;
+        frames++;
+    }
+
+    /**
+     * Finds the best scoring lag and updates the tempo and the confidence.
+     * Costs about as much as one add() and doesn't have to follow every add().
+     */
+    void estimate(){
+        if (frames < history.length || autocorrelation[0] <= 0){
+            confidence = 0;
+            return;
+        }
+        int best = -1;
+        double bestScore = 0;
+        for (int lag = minLag; lag <= maxLag; lag++){
+            double score = score(lag);
+            if (score > bestScore){
+                bestScore = score;
+                best = lag;
+            }
+        }
+        if (best < 0){
+            confidence = 0;
+            return;
+        }
+        double lag = best;
+        if (best > minLag && best < maxLag){
+            double left = score(best - 1);
+            double right = score(best + 1);
+            double denominator = left - 2*bestScore + right;
+            if (denominator < 0) lag += 0.5 * (left - right) / denominator;
+        }
+        bpm = 60 * frameRate / lag;
+        confidence = Math.max(0, Math.min(1, 0.5 * (smoothed(best) + secondTooth(best)) / autocorrelation[0]));
+    }
+
+    private double score(int lag){
+        double octaves = Math.log(60 * frameRate / lag / preferredBpm) / Math.log(2);
+        double preference = Math.exp(-0.5 * octaves * octaves / (preferenceWidth * preferenceWidth));
+        return preference * (smoothed(lag) + 0.5 * secondTooth(lag));
+    }
+
+    /**
+     * @return The autocorrelation at the lag averaged with its neighbours
+     */
+    private double smoothed(int lag){
+        return 0.25 * autocorrelation[lag - 1] + 0.5 * autocorrelation[lag] + 0.25 * autocorrelation[lag + 1];
+    }
+
+    /**
+     * @return The best smoothed autocorrelation around the double of the lag
+     */
+    private double secondTooth(int lag){
+        return Math.max(smoothed(2 * lag), Math.max(smoothed(2 * lag - 1), smoothed(2 * lag + 1)));
+    }
+
+    /**
+     * Forgets everything heard so far.
+     */
+    void reset(){
+        for (int i = 0; i < history.length; i++){
+            history[i] = 0;
+            autocorrelation[i] = 0;
+        }
+        position = 0;
+        frames = 0;
+        mean = 0;
+        bpm = 0;
+        confidence = 0;
+    }
+
+    /**
+     * @return The tempo found by the last estimate() in beats per minute, 0 if there was none yet
+     */
+    double getBpm() {
+        return bpm;
+    }
+
+    /**
+     * @return How periodic the onsets are at the found tempo, from 0 (not at all) to 1 (perfectly)
+     */
+    double getConfidence() {
+        return confidence;
+    }
+}
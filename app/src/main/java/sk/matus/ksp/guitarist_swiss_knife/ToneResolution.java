@@ -0,0 +1,40 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * The nearest equal-tempered tone of a measured frequency together with the deviation from it.
+ * Instances are meant to be reused: ToneResolver.resolve() overwrites all the fields,
+ * so a receiver that keeps any of them has to copy them out.
+ */
+class ToneResolution {
+    /**
+     * The measured frequency in Hz.
+     */
+    double frequency;
+    /**
+     * Number of semitones between C0 and the nearest tone.
+     */
+    int toneIndex;
+    int octave;
+    /**
+     * Position of the nearest tone in its octave, 0 is C.
+     */
+    int positionInOctave;
+    /**
+     * Frequency of the nearest tone in Hz.
+     */
+    double targetFrequency;
+    /**
+     * Deviation of the measured frequency from the nearest tone, positive if the frequency is higher.
+     * Between -50 and 50 unless the frequency lies outside of the table of the resolver.
+     */
+    double cents;
+    /**
+     * True if the deviation is within the tolerance of the resolver.
+     */
+    boolean inTune;
+    /**
+     * The Tone object of the nearest tone, filled by ToneUtils. Null if the tone lies outside of its table
+     * or if the resolution was made without ToneUtils.
+     */
+    Tone tone;
+}
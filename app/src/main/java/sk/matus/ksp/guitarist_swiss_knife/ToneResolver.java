@@ -0,0 +1,66 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Finds the nearest equal-tempered tone of a frequency in constant time.
+ * The semitone index is computed directly from the logarithm of the frequency
+ * and the tone frequencies are taken from a precomputed table, so nothing is searched or allocated.
+ * Does not depend on Android, so it can be used outside of the app as well.
+ */
+class ToneResolver {
+    /**
+     * Index of A4 counted in semitones from C0.
+     */
+    private static final int referenceIndex = 57;
+    private static final double semitonesPerLog = 12 / Math.log(2);
+    private final double referenceFrequency;
+    private final double inTuneCents;
+    private final double[] toneFrequencies;
+
+    /**
+     * @param referenceFrequency Frequency of A4, usually 440 Hz
+     * @param inTuneCents Largest deviation in cents at which a frequency is considered in tune
+     * @param toneCount Number of tones in the table, starting with C0
+     */
+    ToneResolver(double referenceFrequency, double inTuneCents, int toneCount){
+        this.referenceFrequency = referenceFrequency;
+        this.inTuneCents = inTuneCents;
+        toneFrequencies = new double[toneCount];
+        for (int i = 0; i < toneCount; i++){
+            toneFrequencies[i] = referenceFrequency * Math.pow(2, (double) (i - referenceIndex) / 12);
+        }
+    }
+
+    /**
+     * Resolves a frequency into the nearest tone.
+     * @param frequency Frequency in Hz, has to be positive
+     * @param result The resolution to overwrite, its tone field is set to null
+     * @return false if the nearest tone lies outside of the table, in which case the result holds the nearest tone of the table
+     */
+    boolean resolve(double frequency, ToneResolution result){
+        double semitones = Math.log(frequency / referenceFrequency) * semitonesPerLog + referenceIndex;
+        int index = (int) Math.round(semitones);
+        boolean inRange = index >= 0 && index < toneFrequencies.length;
+        if (!inRange) index = Math.max(0, Math.min(toneFrequencies.length - 1, index));
+        result.frequency = frequency;
+        result.toneIndex = index;
+        result.octave = index / 12;
+        result.positionInOctave = index % 12;
+        result.targetFrequency = toneFrequencies[index];
+        result.cents = (semitones - index) * 100;
+        result.inTune = inRange && Math.abs(result.cents) <= inTuneCents;
+        result.tone = null;
+        return inRange;
+    }
+
+    /**
+     * @param index Number of semitones from C0
+     * @return Frequency of the tone in Hz
+     */
+    double getToneFrequency(int index){
+        return toneFrequencies[index];
+    }
+
+    int getToneCount(){
+        return toneFrequencies.length;
+    }
+}
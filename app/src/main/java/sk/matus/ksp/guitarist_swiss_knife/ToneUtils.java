@@ -9,14 +9,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.TreeMap;
 
 /**
  * This class should handle all the request regarding tones and their properties
  */
 
 public class ToneUtils {
-    private TreeMap<Double,Tone> frequencyMapping = new TreeMap<>();
+    /**
+     * Number of tones generated by generateAllTones(), 9 octaves starting with C0.
+     */
+    private static final int toneCount = 108;
+    /**
+     * Largest deviation in cents at which a frequency is reported as in tune.
+     */
+    private static final double inTuneCents = 5;
+    /**
+     * All the tones from C0, indexed by their distance from C0 in semitones.
+     */
+    private Tone[] allTones = new Tone[toneCount];
+    private ToneResolver toneResolver = new ToneResolver(440, inTuneCents, toneCount);
+    /**
+     * Used by analyseFrequency(), which only returns the Tone.
+     */
+    private ToneResolution scratchResolution = new ToneResolution();
     /**
      * Contains the full range of semitones found in one octave (From "C" to "B")
      */
@@ -100,12 +115,12 @@ public class ToneUtils {
 
     /**
     * A procedure to expand the basic tones into full range of 8 octaves.
-    * Fills the balanced binary tree whose keys are frequencies and values are scientifical names of the tones.
+    * Fills the table of all tones indexed by their distance from C0 in semitones.
     * In addition, it calculates the maximum precision margins (ranges in which the frequency is associated with the tone itself)
     * both for undertuned and overtuned frequency.*/
     private void generateAllTones(){
         double previousFrequency = 0;
-        for (int i = 0; i<108; i++){
+        for (int i = 0; i<toneCount; i++){
             double frequency = Math.pow((double)2, ((double)(i - 57) / (double) tones.size()))*440;
             double nextFrequency = Math.pow((double)2, ((double)(i - 56) / (double) tones.size()))*440;
 
@@ -118,7 +133,7 @@ public class ToneUtils {
             tone.setFrequency(frequency);
             tone.setPositionInOctave(i % tones.size());
             tone.setFrequencyInterval(new PointF((float) lowerBound, (float) upperBound));
-            frequencyMapping.put(frequency, tone);
+            allTones[i] = tone;
             previousFrequency = frequency;
         }
     }
@@ -151,27 +166,36 @@ public class ToneUtils {
         }
     }
 
-    private boolean isInInterval(float f,PointF p){
-        return (f<p.y && f >=p.x);
+    /**
+     * Finds the tone nearest to a frequency. Not thread-safe, use resolveFrequency() with an own result from other threads.
+     * @param frequency Frequency in Hz
+     * @return The nearest tone, the lowest or the highest one for frequencies outside of the range
+     */
+    public Tone analyseFrequency(double frequency){
+        resolveFrequency(frequency, scratchResolution);
+        return scratchResolution.tone;
+    }
+
+    /**
+     * Resolves a frequency into the nearest tone, its octave and the deviation in cents. Allocates nothing.
+     * @param frequency Frequency in Hz
+     * @param result The resolution to overwrite
+     * @return false if the frequency lies outside of the range of the tones
+     */
+    public boolean resolveFrequency(double frequency, ToneResolution result){
+        boolean inRange = toneResolver.resolve(frequency, result);
+        result.tone = allTones[result.toneIndex];
+        return inRange;
     }
 
-    public Tone analyseFrequency(double frequency){
-        Tone higher = new Tone();
-        higher.setFrequencyInterval(new PointF(-1,-1));
-        Tone lower = new Tone();
-        lower.setFrequencyInterval(new PointF(-1, -1));
-        if (frequencyMapping.ceilingKey(frequency) != null){
-            higher = frequencyMapping.get(frequencyMapping.ceilingKey(frequency));
-        }
-        if (frequencyMapping.floorKey(frequency) != null){
-            lower = frequencyMapping.get(frequencyMapping.floorKey(frequency));
-        }
-        if (isInInterval((float)frequency,lower.getFrequencyInterval())){
-            return lower;
-        } else
-        if (isInInterval((float)frequency,higher.getFrequencyInterval())){
-            return higher;
-        } else return higher;
+    /**
+     * Computes the equal-tempered frequency of a tone, using the same formula as generateAllTones().
+     * @param octave Octave of the tone (A4 is in the octave 4)
+     * @param positionInOctave Position of the tone in the octave, 0 is C
+     * @return Frequency of the tone in Hz
+     */
+    public double getToneFrequency(int octave, int positionInOctave){
+        return Math.pow(2, (double)(octave * tones.size() + positionInOctave - 57) / tones.size()) * 440;
     }
 
     /**
@@ -1,187 +1,245 @@
 package sk.matus.ksp.guitarist_swiss_knife;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.os.AsyncTask;
+import android.content.DialogInterface;
 import android.support.v4.view.ViewPager;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.util.Log;
+import android.view.View;
 
-import org.jtransforms.fft.DoubleFFT_1D;
 import java.util.ArrayList;
-import java.util.Collections;
 
 /**
- * The activity that records audio from the microphone in real time
- * and presents the user with visualisations of this audio*/
+ * The activity that presents the user with visualisations of the audio
+ * recorded from the microphone in real time by the TunerSession*/
 public class TunerActivity extends AppCompatActivity {
     ViewPager viewPager;
     TunerPagerAdapter tunerPagerAdapter;
 
-    //constants chosen so that the tradeoff between real-time performance and accuracy of FFT is optimal
-    int sampleRate = 22050;
-    int channelConfiguration = AudioFormat.CHANNEL_IN_MONO;
-    int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
-    int blockSize = 8192;
-    private AudioRecord audioRecord;
-    private ProcessAudio processTask;
-    private boolean started = false;
+    /**
+     * The recording and the analysis, which outlive the activity for a while so that a rotation doesn't restart them.
+     */
+    private TunerSession session;
     private EqualizerVisualisation equalizerView;
     private GaugeVisualisation gaugeView;
-    private DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+    private SpectrogramVisualisation spectrogramView;
+    private StrumVisualisation strumView;
+    private ChordVisualisation chordView;
     /**
      * An instance of ToneUtils class for resolving tone related queries.
      */
     private ToneUtils toneUtils;
-    private int measurementNo = 0;
-    private ArrayList<Double>gatheredMaxFreq = new ArrayList<>();
     private ArrayList<TunerVisualisation> visualisations = new ArrayList<>();
+    /**
+     * Reused for every dispatched frame, only touched on the UI thread.
+     */
+    private ToneResolution toneResolution = new ToneResolution();
+    private DebugVisualisation debugView;
+    /**
+     * Draws the visualisations on a shared thread, only when they have something new to show and are on the screen.
+     */
+    private RenderScheduler renderScheduler;
+    /**
+     * The stabiliser of every visualisation, at the same index as in visualisations.
+     * They are kept by the session, so they remember the readings from before a rotation.
+     */
+    private ArrayList<PitchStabiliser> stabilisers = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         toneUtils = new ToneUtils(this.getResources());
-        equalizerView = new EqualizerVisualisation(this);
-        gaugeView = new GaugeVisualisation(this);
-        visualisations.add(equalizerView);
-        visualisations.add(gaugeView);
+        session = TunerSession.obtain(this);
+        TunerInstrumentation instrumentation = session.getInstrumentation();
+        renderScheduler = new RenderScheduler();
+        equalizerView = new EqualizerVisualisation(this, renderScheduler);
+        gaugeView = new GaugeVisualisation(this, renderScheduler);
+        spectrogramView = new SpectrogramVisualisation(this, renderScheduler);
+        strumView = new StrumVisualisation(this, renderScheduler);
+        strumView.setStrings(getResources().getStringArray(session.getTuningId()));
+        chordView = new ChordVisualisation(this, session.getChordIndex());
+        debugView = new DebugVisualisation(this, instrumentation);
+        equalizerView.setInstrumentation(instrumentation);
+        gaugeView.setInstrumentation(instrumentation);
+        spectrogramView.setInstrumentation(instrumentation);
+        strumView.setInstrumentation(instrumentation);
+        //the equalizer prints the frequency, so it shows the median of a short window to stay responsive,
+        //the arm of the gauge moves more calmly with the mode of a longer window smoothed by a Kalman filter
+        addVisualisation(equalizerView, new PitchStabiliser(PitchStabiliser.Mode.MEDIAN, 5, 1.03, 8));
+        PitchStabiliser gaugeStabiliser = new PitchStabiliser(PitchStabiliser.Mode.MODE, 9, 1.03, 8);
+        gaugeStabiliser.setKalman(1, 16);
+        addVisualisation(gaugeView, gaugeStabiliser);
+        addVisualisation(spectrogramView, new PitchStabiliser(PitchStabiliser.Mode.LATEST, 1, 1, 1));
+        addVisualisation(strumView, new PitchStabiliser(PitchStabiliser.Mode.LATEST, 1, 1, 1));
+        addVisualisation(chordView, new PitchStabiliser(PitchStabiliser.Mode.LATEST, 1, 1, 1));
+        addVisualisation(debugView, new PitchStabiliser(PitchStabiliser.Mode.LATEST, 1, 1, 1));
         setContentView(R.layout.activity_tuner);
         viewPager = (ViewPager)findViewById(R.id.tunerViewPager);
         tunerPagerAdapter = new TunerPagerAdapter(this);
         tunerPagerAdapter.addPage(equalizerView);
         tunerPagerAdapter.addPage(gaugeView);
+        tunerPagerAdapter.addPage(spectrogramView);
+        tunerPagerAdapter.addPage(strumView);
+        tunerPagerAdapter.addPage(chordView);
+        tunerPagerAdapter.addPage(debugView);
         viewPager.setAdapter(tunerPagerAdapter);
+        viewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageScrolled(int position, float positionOffset, int positionOffsetPixels) {
+                //while swiping, the page to the right of position is partly visible as well
+                updateVisiblePages(position, positionOffset > 0 ? position + 1 : position);
+            }
+        });
+        updateVisiblePages(0, 0);
+        View.OnLongClickListener settingsListener = new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                showDetectorDialog();
+                return true;
+            }
+        };
+        equalizerView.setOnLongClickListener(settingsListener);
+        gaugeView.setOnLongClickListener(settingsListener);
+        spectrogramView.setOnLongClickListener(settingsListener);
+        strumView.setOnLongClickListener(settingsListener);
+        chordView.setOnLongClickListener(settingsListener);
     }
 
     /**
-     * A background task that reads blocks of @blockSize audio samples at specified @sampleRate from the microphone input and performs FFT in order to determine frequency.
-     * mostly taken from http://stackoverflow.com/questions/5511250/capturing-sound-for-analysis-and-visualizing-frequencies-in-android
+     * Lets the renderScheduler draw only the pages on the screen and runs the chord recognition
+     * and the constant-Q transform only while their pages are visible.
+     * @param first Index of the first visible page
+     * @param last Index of the last visible page
      */
-    private class ProcessAudio extends AsyncTask<Void, double[], Void> {
-        @Override
-        protected Void doInBackground(Void...params) {
-            try{
-                int bufferSize = AudioRecord.getMinBufferSize(sampleRate,
-                        channelConfiguration, audioEncoding);
-                audioRecord = new AudioRecord(
-                        MediaRecorder.AudioSource.MIC, sampleRate,
-                        channelConfiguration, audioEncoding, 2*bufferSize);
-                short[] buffer = new short[blockSize];
-                double[] toTransform = new double[blockSize];
-
-                audioRecord.startRecording();
-                while (started) {
-                    int bufferReadResult = audioRecord.read(buffer, 0, blockSize);
-                    for (int i = 0; i < blockSize && i < bufferReadResult; i++) {
-                        toTransform[i] = (double) buffer[i] / 32768.0; // no idea what dark magic was this supposed to do
-                    }
-                    fft.realForward(toTransform);
-                    //normalisation
-                    for (int i = 0; i<toTransform.length; i++){
-                        toTransform[i] = Math.abs(toTransform[i]/blockSize);
-                    }
-                    publishProgress(toTransform);
-                }
-
-            }catch(Exception e){
-                e.printStackTrace();
+    private void updateVisiblePages(int first, int last){
+        for (int i = 0; i < tunerPagerAdapter.getCount(); i++){
+            View page = tunerPagerAdapter.getPage(i);
+            if (page == chordView){
+                session.setChordRecognition(i >= first && i <= last);
             }
-            return null;
-        }
-
-        /**
-         * Method called after each block of samples has been read and processed by FFT. Updates the data and UI with current values.
-         * The update to the UI is executed every measurementCount-th the procedure is run - updating it every time results in fast
-         * flickering of the UI elements and inconvenience of reading data out of it.
-         * @param waves An array of doubles containing the block of FFT-processed samples*/
-        @Override
-        protected void onProgressUpdate(double[]... waves) {
-            for (TunerVisualisation tunerVisualisation : visualisations){
-                tunerVisualisation.updateSamples(waves[0]);
+            if (page == equalizerView){
+                session.setConstantQMode(i >= first && i <= last);
             }
-            double currentMax = findStrongestFreq(waves[0]);
-            int measurementCount = 0;
-            if (measurementNo != measurementCount){
-                gatheredMaxFreq.add(currentMax);
-                measurementNo++;
-            }
-            else
-            {
-                //double overallMax = findPrevalentFreq(gatheredMaxFreq);
-                Tone tone = toneUtils.analyseFrequency(currentMax);
-                for (TunerVisualisation tv : visualisations){
-                    tv.updateMaxFrequency(currentMax);
-                    tv.updateTone(tone);
-                }
-                gatheredMaxFreq = new ArrayList<>();
-                measurementNo = 0;
+            if (page instanceof RenderScheduler.Renderable){
+                renderScheduler.setVisible((RenderScheduler.Renderable) page, i >= first && i <= last);
             }
         }
+    }
 
-        /**Naive but reliable way of figuring out current frequency from the spectrum
-         * @param freqList An array of sampleRate amplitudes
-         * @return The frequency with the highest amplitude
-         * */
-        private double findStrongestFreq(double[] freqList){
-            double maximum = -1;
-            int index= -1;
-            for (int i = 0; i < freqList.length; i++){
-                if (freqList[i]>maximum){
-                    maximum = freqList[i];
-                    index = i;
-                }
-            }
-            return (index* sampleRate /(blockSize*2));
+    /**
+     * Registers a visualisation to receive the processed blocks and the frequencies.
+     * @param visualisation The visualisation to add
+     * @param stabiliser Smooths the frequencies shown by this visualisation
+     */
+    private void addVisualisation(TunerVisualisation visualisation, PitchStabiliser stabiliser){
+        visualisations.add(visualisation);
+        stabilisers.add(session.retainStabiliser(stabilisers.size(), stabiliser));
+    }
+
+    /**
+     * Switches between the guitar and the bass mode, restarting the recording if it runs.
+     * @param enabled true for the bass mode
+     */
+    public void setBassMode(boolean enabled){
+        session.setBassMode(enabled);
+        strumView.setStrings(getResources().getStringArray(session.getTuningId()));
+    }
+
+    /**
+     * Switches the polyphonic analysis on or off. When switched on, the page with all strings is shown.
+     * @param enabled true for the polyphonic mode
+     */
+    public void setPolyphonicMode(boolean enabled){
+        session.setPolyphonicMode(enabled);
+        if (!enabled) return;
+        for (int i = 0; i < tunerPagerAdapter.getCount(); i++){
+            if (tunerPagerAdapter.getPage(i) == strumView) viewPager.setCurrentItem(i);
         }
+    }
 
-        /**
-         * Finds the largest group of frequencies that are close to each other and returns their average.
-         * The practical effect is, that occasional high-amplitude noises don't affect the result of the measurement.
-         * @param frequencies ArrayList of gathered frequencies to filter
-         * @return The average from the largest group of similar frequencies*/
-        private double findPrevalentFreq(ArrayList<Double> frequencies){
-            Collections.sort(frequencies);
-            ArrayList<ArrayList<Double>>groups = new ArrayList<>();
-            double prev = 0.00000001;
-            for (int i = 0; i < frequencies.size(); i++){
-                if (frequencies.get(i)/prev > 1.25 || frequencies.get(i)/prev < 0.75){
-                    groups.add(new ArrayList<Double>());
-                }
-                groups.get(groups.size()-1).add(frequencies.get(i));
-                prev = frequencies.get(i);
-            }
-            int largest = 0;
-            int index=0;
-            for (int i = 0; i < groups.size(); i++){
-                if (groups.get(i).size() > largest){
-                    largest = groups.get(i).size();
-                    index = i;
-                }
+    /**
+     * Switches the algorithm used to find the pitch. Takes effect from the next analysed block.
+     * @param index Index of the detector in the order of R.array.pitch_detector_names
+     */
+    public void setPitchDetector(int index){
+        session.setPitchDetector(index);
+    }
+
+    /**
+     * Shows a dialog in which the user can choose the pitch detection algorithm, switch between the guitar and the bass mode
+     * and switch the polyphonic mode.
+     */
+    private void showDetectorDialog(){
+        new AlertDialog.Builder(this)
+                .setTitle(getResources().getString(R.string.pitch_detector_title))
+                .setSingleChoiceItems(R.array.pitch_detector_names, session.getPitchDetectorIndex(), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setPitchDetector(which);
+                        dialog.dismiss();
+                    }
+                })
+                .setNeutralButton(getResources().getString(session.isBassMode() ? R.string.guitar_mode : R.string.bass_mode), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setBassMode(!session.isBassMode());
+                    }
+                })
+                .setPositiveButton(getResources().getString(session.isPolyphonicMode() ? R.string.single_string_mode : R.string.strum_mode), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setPolyphonicMode(!session.isPolyphonicMode());
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Shows the frames of the session. The frequency shown by each visualisation passes through its PitchStabiliser -
+     * showing every raw estimate results in fast flickering of the UI elements and inconvenience of reading data out of it.
+     */
+    private TunerSession.FrameListener frameListener = new TunerSession.FrameListener() {
+        @Override
+        public void onFrame(SpectrumFrame frame, long renderInterval) {
+            for (TunerVisualisation tunerVisualisation : visualisations){
+                tunerVisualisation.setRenderInterval(renderInterval);
+                tunerVisualisation.updateSamples(frame);
             }
-            double sum = 0;
-            for (Double freq : groups.get(index)){
-                sum += freq;
+            for (int i = 0; i < visualisations.size(); i++){
+                double frequency = stabilisers.get(i).add(frame.frequency);
+                if (frequency <= 0) continue;
+                toneUtils.resolveFrequency(frequency, toneResolution);
+                TunerVisualisation tv = visualisations.get(i);
+                tv.updateMaxFrequency(frequency);
+                tv.updateTone(toneResolution);
             }
-            return sum/(double)groups.get(index).size();
         }
-    }
+    };
 
     @Override
     public void onPause() {
         super.onPause();
-        started = false;
-        if (audioRecord!=null) audioRecord.stop();
-        if (processTask!=null) processTask.cancel(true);
+        session.detach(frameListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        //the surfaces are destroyed only after this, the frames go back to the session's pool right away,
+        //so the next activity of a rotation finds them free
+        renderScheduler.runExclusive(new Runnable() {
+            @Override
+            public void run() {
+                equalizerView.releaseFrames();
+            }
+        });
+        renderScheduler.quit();
+        super.onDestroy();
     }
 
     @Override
     public void onResume(){
         super.onResume();
-        started = true;
-        processTask = new ProcessAudio();
-        processTask.execute();
+        session.attach(frameListener);
     }
 
 }
\ No newline at end of file
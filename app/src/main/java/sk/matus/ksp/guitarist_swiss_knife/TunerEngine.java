@@ -0,0 +1,392 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * The analysis chain of the tuner without the recording and without the UI.
+ * The chunks of any SampleSource are converted, decimated in the bass mode and split into overlapping blocks.
+ * Every block passes the noise gate and the duty cycle, is transformed and analysed by the chosen pitch detector
+ * and, if switched on, by the constant-Q transform, the polyphonic analyser and the chord recognition. The result is handed to a BlockListener.
+ * Nothing in the chain depends on Android, so recordings can be analysed on a plain JVM exactly as the app analyses the microphone.
+ * process() has to be called from a single thread, the detector and the optional analyses can be switched from any thread
+ * and take effect from the next chunk.
+ */
+class TunerEngine {
+    /**
+     * Receives the result of every analysed block on the thread calling process().
+     */
+    interface BlockListener {
+        /**
+         * @param frequency The detected frequency, 0 if none
+         * @param spectral true if the spectrum analyser holds the spectrum of this block
+         * @param polyphonic The analyser that has analysed this block, null if the polyphonic mode is off
+         * @param constantQ The transform holding the constant-Q spectrum of this block, null if it hasn't been computed
+         * @param chord Index of the chord recognised in this block, -1 if none
+         */
+        void onBlock(double frequency, boolean spectral, PolyphonicAnalyser polyphonic, ConstantQTransform constantQ, int chord);
+    }
+
+    /**
+     * In the bass mode the recording is decimated by this factor before the analysis,
+     * so that a smaller FFT covers the low notes with finer bins. It has to divide the sample rate.
+     */
+    private static final int bassDecimationFactor = 5;
+    /**
+     * Number of empty blocks passed to the listener after the gate closes. A few of them clear the visualisations
+     * and reset the stabilisers, after that the listener is left alone until the gate opens again.
+     */
+    private static final int silentFrameLimit = 16;
+
+    private final int sampleRate;
+    /**
+     * The sample rate the analysis works with, the sample rate divided by the decimation factor.
+     */
+    private final int analysisRate;
+    private final int blockSize;
+    /**
+     * Number of new samples between two analysed blocks. The blocks overlap, so a new estimate is available
+     * every hopSize/analysisRate seconds regardless of blockSize.
+     */
+    private final int hopSize;
+    private final WindowFunction windowFunction;
+    private final TunerInstrumentation instrumentation;
+    /**
+     * Low-passes and downsamples the recording in the bass mode, null when the recording is analysed as it is.
+     */
+    private final Decimator decimator;
+    private final DoubleFFT_1D fft;
+    private final FloatFFT_1D floatFft;
+    /**
+     * Computes the magnitude spectrum of the bins in which the tones of the instrument and their lower harmonics lie.
+     */
+    private final SpectrumAnalyser spectrumAnalyser;
+    /**
+     * The algorithms to find the pitch, in the order of R.array.pitch_detector_names.
+     */
+    private final PitchDetector[] pitchDetectors;
+    /**
+     * Finds the deviations of all strings from the spectrum in the polyphonic mode.
+     */
+    private final PolyphonicAnalyser polyphonicAnalyser;
+    /**
+     * Computes the spectrum with three bins per semitone for the equalizer and the chord recognition.
+     */
+    private final ConstantQTransform constantQ;
+    /**
+     * Folds the constant-Q spectrum into pitch classes for the chord recognition.
+     */
+    private final Chromagram chromagram;
+    private volatile PitchDetector pitchDetector;
+    private volatile boolean polyphonicMode = false;
+    /**
+     * The templates the chords are matched with, null while the chord recognition is off.
+     */
+    private volatile ChordTemplateIndex chordIndex;
+    private volatile boolean dutyCycling = true;
+    private volatile boolean constantQMode = false;
+
+    private final double[] recorded;
+    private final double[] samples;
+    /**
+     * The hop that opened the gate, the detectors get it to catch up on the samples skipped while the gate was closed.
+     */
+    private final double[] onsetSamples;
+    private final double[] toTransform;
+    private final float[] toTransformFloat;
+    private ShortTimeFourierTransform stft;
+    private double normalisation;
+    /**
+     * Skips the analysis of blocks that are too quiet to contain a tone.
+     */
+    private NoiseGate noiseGate;
+    /**
+     * Analyses only every other block and slows down the rendering once the pitch has settled.
+     */
+    private volatile DutyCycleController dutyCycle;
+    private int silentFrames;
+    /**
+     * Timestamp of the chunk whose samples are being analysed.
+     */
+    private long captureTime = 0;
+
+    /**
+     * Creates the analysis stages. The guitar mode analyses the recording as it is,
+     * the bass mode decimates it first and looks for lower tones.
+     * @param sampleRate Sample rate of the recording
+     * @param bassMode true for the bass mode
+     * @param tuning Frequencies of the open strings from the lowest to the highest one
+     * @param singlePrecision If true, the blocks are windowed and transformed in single precision by FloatFFT_1D,
+     *                        which halves the memory traffic of the transform. Otherwise DoubleFFT_1D is used.
+     * @param windowFunction The window applied to every block
+     * @param instrumentation Receives the duration of every stage
+     */
+    TunerEngine(int sampleRate, boolean bassMode, double[] tuning, boolean singlePrecision,
+                WindowFunction windowFunction, TunerInstrumentation instrumentation){
+        this.sampleRate = sampleRate;
+        this.windowFunction = windowFunction;
+        this.instrumentation = instrumentation;
+        double minFrequency, maxFrequency;
+        if (bassMode){
+            decimator = new Decimator(bassDecimationFactor, 16);
+            analysisRate = sampleRate / bassDecimationFactor;
+            blockSize = 4096;
+            hopSize = 256;
+            minFrequency = 25;
+            maxFrequency = 1500;
+        } else {
+            decimator = null;
+            analysisRate = sampleRate;
+            blockSize = 8192;
+            hopSize = 1024;
+            minFrequency = 40;
+            maxFrequency = 5000;
+        }
+        fft = singlePrecision ? null : new DoubleFFT_1D(blockSize);
+        floatFft = singlePrecision ? new FloatFFT_1D(blockSize) : null;
+        spectrumAnalyser = new SpectrumAnalyser(analysisRate, blockSize, hopSize, minFrequency, maxFrequency, false);
+        polyphonicAnalyser = new PolyphonicAnalyser(spectrumAnalyser, tuning);
+        constantQ = new ConstantQTransform(analysisRate, blockSize, windowFunction, minFrequency, maxFrequency, 3);
+        chromagram = new Chromagram(constantQ, 60, 2000, 0.3);
+        //YIN searches down to a little below the lowest string, a fixed floor would miss a low B or a drop tuning of the bass
+        double yinMinFrequency = Math.max(minFrequency, 0.9 * tuning[0]);
+        pitchDetectors = new PitchDetector[]{
+                new FftPeakDetector(spectrumAnalyser, 1),
+                new FftPeakDetector(spectrumAnalyser, 4),
+                new YinPitchDetector(analysisRate, bassMode ? 512 : 1024, yinMinFrequency, maxFrequency * 0.3, 0.15),
+                new StringTuningDetector(analysisRate, tuning),
+                new InharmonicPitchDetector(spectrumAnalyser, minFrequency, maxFrequency * 0.3, maxFrequency)
+        };
+        pitchDetector = pitchDetectors[0];
+        recorded = new double[getChunkSize()];
+        samples = new double[hopSize + 1];
+        onsetSamples = new double[hopSize];
+        toTransform = singlePrecision ? null : new double[blockSize];
+        toTransformFloat = singlePrecision ? new float[blockSize] : null;
+        reset();
+    }
+
+    /**
+     * Starts a new stream: forgets the samples of the previous one, the state of the gate and the duty cycle and what the detectors have learned.
+     */
+    void reset(){
+        stft = new ShortTimeFourierTransform(blockSize, hopSize, windowFunction);
+        normalisation = stft.getWindowSum();
+        spectrumAnalyser.reset();
+        chromagram.reset();
+        for (PitchDetector detector : pitchDetectors) detector.reset();
+        noiseGate = new NoiseGate(-50, -56, 4);
+        dutyCycle = new DutyCycleController(12, 10, 2);
+        instrumentation.setDutyCycle(dutyCycle);
+        silentFrames = 0;
+    }
+
+    /**
+     * Runs the samples of a chunk through the analysis chain.
+     * @param buffer The samples of the recording
+     * @param length Number of samples in the buffer, any number is accepted
+     * @param timestamp Time at which the chunk was recorded, see SampleSource.getTimestamp()
+     * @param listener Receives the result of every block completed by the chunk
+     */
+    void process(short[] buffer, int length, long timestamp, BlockListener listener){
+        captureTime = timestamp;
+        int chunkSize = recorded.length;
+        for (int offset = 0; offset < length; offset += chunkSize){
+            processChunk(buffer, offset, Math.min(chunkSize, length - offset), listener);
+        }
+    }
+
+    /**
+     * Converts at most one chunk of samples and analyses the blocks it completes.
+     */
+    private void processChunk(short[] buffer, int offset, int length, BlockListener listener){
+        long conversionStart = System.nanoTime();
+        int sampleCount;
+        if (decimator == null){
+            for (int i = 0; i < length; i++) {
+                samples[i] = (double) buffer[offset + i] / 32768.0;
+            }
+            sampleCount = length;
+        } else {
+            for (int i = 0; i < length; i++) {
+                recorded[i] = (double) buffer[offset + i] / 32768.0;
+            }
+            sampleCount = decimator.process(recorded, 0, length, samples);
+        }
+        instrumentation.record(TunerInstrumentation.Stage.CONVERSION, System.nanoTime() - conversionStart);
+        PitchDetector detector = pitchDetector;
+        PolyphonicAnalyser polyphonic = polyphonicMode ? polyphonicAnalyser : null;
+        ChordTemplateIndex chords = chordIndex;
+        int consumed = 0;
+        while (consumed < sampleCount){
+            int pushed = stft.push(samples, consumed, sampleCount - consumed);
+            //the time-domain detectors work on every sample, while the gate is closed they are spared it
+            boolean wasOpen = noiseGate.isOpen();
+            if (wasOpen) detector.addSamples(samples, consumed, pushed);
+            noiseGate.addSamples(samples, consumed, pushed);
+            consumed += pushed;
+            if (!stft.isFrameReady()) continue;
+            if (!noiseGate.evaluate()){
+                stft.skipFrame();
+                spectrumAnalyser.reset();
+                chromagram.reset();
+                if (wasOpen) detector.reset();
+                dutyCycle.silence();
+                if (silentFrames < silentFrameLimit){
+                    silentFrames++;
+                    publish(listener, 0, false, null, null, -1);
+                }
+                continue;
+            }
+            silentFrames = 0;
+            if (!wasOpen){
+                stft.copyLatest(onsetSamples, hopSize);
+                detector.addSamples(onsetSamples, 0, hopSize);
+            }
+            if (dutyCycling && !dutyCycle.shouldAnalyse()){
+                stft.skipFrame();
+                //the skipped frame only breaks the phase of the spectrum, the note goes on, so the detector keeps its tracks
+                spectrumAnalyser.reset();
+                continue;
+            }
+            //until its kernels are ready, the blocks are analysed without the constant-Q spectrum
+            boolean constantQWanted = (constantQMode || chords != null) && constantQ.isReady();
+            boolean spectral = detector.needsSpectrum() || polyphonic != null || constantQWanted;
+            long fftStart = System.nanoTime();
+            if (spectral && floatFft != null){
+                stft.fillFrame(toTransformFloat);
+                floatFft.realForward(toTransformFloat);
+                spectrumAnalyser.process(toTransformFloat, normalisation);
+                if (constantQWanted) constantQ.process(toTransformFloat);
+            } else if (spectral){
+                stft.fillFrame(toTransform);
+                fft.realForward(toTransform);
+                spectrumAnalyser.process(toTransform, normalisation);
+                if (constantQWanted) constantQ.process(toTransform);
+            } else {
+                //detectors working without the spectrum save the whole FFT
+                stft.skipFrame();
+                spectrumAnalyser.reset();
+            }
+            long detectionStart = System.nanoTime();
+            if (spectral) instrumentation.record(TunerInstrumentation.Stage.FFT, detectionStart - fftStart);
+            double frequency = detector.detectPitch(spectral ? spectrumAnalyser.getMagnitudes() : null);
+            if (polyphonic != null) polyphonic.analyse(spectrumAnalyser.getMagnitudes());
+            int chord = -1;
+            if (chords != null && constantQWanted){
+                chromagram.process(constantQ.getMagnitudes());
+                chord = chords.match(chromagram.getChroma());
+            }
+            instrumentation.record(TunerInstrumentation.Stage.DETECTION, System.nanoTime() - detectionStart);
+            dutyCycle.analysed(frequency);
+            publish(listener, frequency, spectral, polyphonic, constantQWanted ? constantQ : null, chord);
+        }
+    }
+
+    private void publish(BlockListener listener, double frequency, boolean spectral, PolyphonicAnalyser polyphonic,
+                         ConstantQTransform constantQ, int chord){
+        long publishStart = System.nanoTime();
+        listener.onBlock(frequency, spectral, polyphonic, constantQ, chord);
+        instrumentation.record(TunerInstrumentation.Stage.PUBLISH, System.nanoTime() - publishStart);
+    }
+
+    /**
+     * Switches the algorithm used to find the pitch.
+     * @param index Index of the detector in the order of R.array.pitch_detector_names
+     */
+    void setPitchDetector(int index){
+        pitchDetector = pitchDetectors[index];
+    }
+
+    /**
+     * @return Index of the detector in use in the order of R.array.pitch_detector_names
+     */
+    int getPitchDetectorIndex(){
+        for (int i = 0; i < pitchDetectors.length; i++){
+            if (pitchDetectors[i] == pitchDetector) return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Switches the search for the partials of all strings on or off.
+     */
+    void setPolyphonicMode(boolean enabled){
+        polyphonicMode = enabled;
+    }
+
+    /**
+     * Switches the chord recognition on or off.
+     * @param chordIndex The templates to match the chromagram with, null to switch the recognition off
+     */
+    void setChordIndex(ChordTemplateIndex chordIndex){
+        if (chordIndex != null) constantQ.prepareInBackground();
+        this.chordIndex = chordIndex;
+    }
+
+    /**
+     * Switches the constant-Q spectrum on or off. It is computed anyway while the chords are recognised.
+     * The first time it is needed, its kernels are computed in the background.
+     */
+    void setConstantQMode(boolean enabled){
+        if (enabled) constantQ.prepareInBackground();
+        constantQMode = enabled;
+    }
+
+    /**
+     * Lets the duty cycle skip blocks once the pitch has settled. Switched off, every block that passes the gate is analysed,
+     * which is what an offline analysis of a recording wants.
+     */
+    void setDutyCycling(boolean enabled){
+        dutyCycling = enabled;
+    }
+
+    DutyCycleController getDutyCycle() {
+        return dutyCycle;
+    }
+
+    SpectrumAnalyser getSpectrumAnalyser() {
+        return spectrumAnalyser;
+    }
+
+    ConstantQTransform getConstantQTransform() {
+        return constantQ;
+    }
+
+    /**
+     * @return Timestamp of the chunk that completed the block passed to the listener
+     */
+    long getCaptureTime() {
+        return captureTime;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getAnalysisRate() {
+        return analysisRate;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getHopSize() {
+        return hopSize;
+    }
+
+    /**
+     * @return Number of recorded samples that make up one hop, the natural size of the chunks of a SampleSource
+     */
+    int getChunkSize() {
+        return hopSize * ((decimator == null) ? 1 : decimator.getFactor());
+    }
+
+    /**
+     * @return Width of one bin of the spectrum in Hz
+     */
+    double getBinWidth() {
+        return (double) analysisRate / blockSize;
+    }
+}
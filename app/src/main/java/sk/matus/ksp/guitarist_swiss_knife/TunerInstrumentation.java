@@ -0,0 +1,154 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Collects the time spent in every stage between the microphone and the screen, so the delay of the tuner
+ * can be broken down and compared across devices. Every stage has its own LatencyHistogram,
+ * the counters of lost data are read from the components that keep them.
+ */
+class TunerInstrumentation {
+    enum Stage {
+        /**
+         * Time the capture thread spent in AudioRecord.read.
+         */
+        READ,
+        /**
+         * Conversion of the samples to double and the decimation.
+         */
+        CONVERSION,
+        /**
+         * Windowing, the transform and the spectrum of one block.
+         */
+        FFT,
+        /**
+         * The pitch detector.
+         */
+        DETECTION,
+        /**
+         * Copying the result into a frame and posting it to the UI thread.
+         */
+        PUBLISH,
+        /**
+         * From the publication of a frame to its handling on the UI thread.
+         */
+        DISPATCH,
+        /**
+         * From lockCanvas to unlockCanvasAndPost in a visualisation.
+         */
+        DRAW,
+        /**
+         * From the end of the read of the newest samples of a block to the end of the draw showing it.
+         */
+        TOTAL
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private volatile AudioRecordSource audioSource;
+    private volatile SpectrumFramePool framePool;
+    private volatile DutyCycleController dutyCycle;
+
+    TunerInstrumentation(){
+        for (int i = 0; i < histograms.length; i++){
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param stage The measured stage
+     * @param nanos Duration of the stage in nanoseconds
+     */
+    void record(Stage stage, long nanos){
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    LatencyHistogram getHistogram(Stage stage){
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Sets the components whose counters of dropped data are reported, they change when the recording restarts.
+     */
+    void setSources(AudioRecordSource audioSource, SpectrumFramePool framePool){
+        this.audioSource = audioSource;
+        this.framePool = framePool;
+    }
+
+    /**
+     * Sets the controller whose time in every state is reported, a new one comes with every new stream.
+     */
+    void setDutyCycle(DutyCycleController dutyCycle){
+        this.dutyCycle = dutyCycle;
+    }
+
+    /**
+     * @return Time the tuner has spent in the state since the stream started, in milliseconds
+     */
+    long getTimeInState(DutyCycleController.State state){
+        DutyCycleController controller = dutyCycle;
+        return (controller == null) ? 0 : controller.getTimeInState(state);
+    }
+
+    /**
+     * @return Number of chunks recorded from the microphone, including the dropped ones
+     */
+    long getWrittenChunks(){
+        AudioRecordSource source = audioSource;
+        return (source == null) ? 0 : source.getSampleQueue().getWrittenChunks();
+    }
+
+    /**
+     * @return Number of recorded chunks the analysis didn't manage to take in time
+     */
+    long getDroppedChunks(){
+        AudioRecordSource source = audioSource;
+        return (source == null) ? 0 : source.getSampleQueue().getDroppedChunks();
+    }
+
+    /**
+     * @return Number of reads from the microphone that returned no samples
+     */
+    long getReadErrors(){
+        AudioRecordSource source = audioSource;
+        return (source == null) ? 0 : source.getReadErrors();
+    }
+
+    /**
+     * @return Number of analysed blocks that could not be published because the visualisations held all the frames
+     */
+    long getDroppedFrames(){
+        SpectrumFramePool pool = framePool;
+        return (pool == null) ? 0 : pool.getDroppedCount();
+    }
+
+    void reset(){
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+    }
+
+    /**
+     * Writes the percentiles of every stage and the counters as a tab-separated table.
+     * @param writer Where to write the report, it is flushed but not closed
+     */
+    void writeReport(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("stage\tcount\tp50_ms\tp95_ms\tp99_ms");
+        for (Stage stage : Stage.values()){
+            LatencyHistogram histogram = getHistogram(stage);
+            out.println(String.format(Locale.US, "%s\t%d\t%.3f\t%.3f\t%.3f", stage.name().toLowerCase(Locale.US),
+                    histogram.getCount(), histogram.getPercentile(0.5) / 1e6,
+                    histogram.getPercentile(0.95) / 1e6, histogram.getPercentile(0.99) / 1e6));
+        }
+        out.println("written_chunks\t" + getWrittenChunks());
+        out.println("dropped_chunks\t" + getDroppedChunks());
+        out.println("read_errors\t" + getReadErrors());
+        out.println("dropped_frames\t" + getDroppedFrames());
+        for (DutyCycleController.State state : DutyCycleController.State.values()){
+            out.println(state.name().toLowerCase(Locale.US) + "_ms\t" + getTimeInState(state));
+        }
+        out.flush();
+        if (out.checkError()) throw new IOException("Writing the report failed");
+    }
+}
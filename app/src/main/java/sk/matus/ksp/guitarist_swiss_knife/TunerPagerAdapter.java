@@ -39,6 +39,10 @@ public class TunerPagerAdapter extends PagerAdapter {
         numberOfPages ++;
     }
 
+    public View getPage(int position){
+        return pages.get(position);
+    }
+
     @Override
     public int getCount() {
         return numberOfPages;
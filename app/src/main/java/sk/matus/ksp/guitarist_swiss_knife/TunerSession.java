@@ -0,0 +1,421 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The recording and the analysis of the tuner, kept by the application rather than by a TunerActivity.
+ * A rotation or a short trip to another app destroys the activity, but the microphone, the FFT plans of the TunerEngine,
+ * its gate and duty cycle and the PitchStabilisers of the visualisations survive it in the session,
+ * so the new activity attaches to a recording that is already running and shows a settled pitch from its first frame.
+ * While no activity is attached, the analysis keeps running without dispatching frames. Once the session has been
+ * detached for idleTimeout, it stops the recording and forgets itself, the next activity starts a new one.
+ * All the methods have to be called from the UI thread.
+ */
+class TunerSession {
+    /**
+     * Receives the processed blocks on the UI thread.
+     */
+    interface FrameListener {
+        /**
+         * @param frame The newest frame. It is only guaranteed to stay intact during the call.
+         * @param renderInterval Shortest time between two redraws the duty cycle asks for, 0 for the visualisations' own rate
+         */
+        void onFrame(SpectrumFrame frame, long renderInterval);
+    }
+
+    /**
+     * Time in milliseconds the recording keeps running after the last activity has been detached.
+     */
+    private static final long idleTimeout = 5000;
+    /**
+     * Number of hops the capture thread can get ahead of the analysis before the oldest samples are dropped.
+     */
+    private static final int queuedChunks = 16;
+    private static TunerSession instance;
+
+    //constants chosen so that the tradeoff between real-time performance and accuracy of FFT is optimal
+    private final int sampleRate = 22050;
+    private final WindowFunction windowFunction = WindowFunction.HANN;
+    /**
+     * If true, the frames are windowed and transformed in single precision by FloatFFT_1D, otherwise by DoubleFFT_1D.
+     * The float path was measured no faster than the double one, so the double path is used.
+     */
+    private final boolean singlePrecision = false;
+    private final Resources resources;
+    private final ToneUtils toneUtils;
+    /**
+     * The templates of the chords built from the flags of the chord builder.
+     */
+    private final ChordTemplateIndex chordIndex;
+    /**
+     * Measures the time spent in every stage between the microphone and the screen.
+     */
+    private final TunerInstrumentation instrumentation = new TunerInstrumentation();
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    /**
+     * The stabiliser of every visualisation, in the order the activity registers them.
+     */
+    private final ArrayList<PitchStabiliser> stabilisers = new ArrayList<>();
+
+    private boolean bassMode = false;
+    /**
+     * In the polyphonic mode every analysed block is also searched for the partials of all strings,
+     * so that one strum shows the deviations of all of them.
+     */
+    private boolean polyphonicMode = false;
+    private boolean chordRecognition = false;
+    private boolean constantQMode = false;
+    /**
+     * Resource id of the tone names of the strings in the current mode.
+     */
+    private int tuningId;
+    /**
+     * The analysis chain for the current mode, replaced when the mode changes.
+     */
+    private TunerEngine tunerEngine;
+    /**
+     * Preallocated frames through which the processed blocks reach the visualisations.
+     * Six frames cover the latest block, the block being written, the one being dispatched
+     * and the frames held by the visualisations.
+     */
+    private SpectrumFramePool framePool;
+    private AudioRecordSource audioSource;
+    private ProcessAudio processTask;
+    /**
+     * Read by the analysis task, which may still be finishing while the next one starts.
+     */
+    private volatile boolean started = false;
+    /**
+     * The attached activity, null while there is none.
+     */
+    private FrameListener frameListener;
+
+    /**
+     * Posted when the last activity is detached, ends the session unless another one attaches before it runs.
+     */
+    private final Runnable idleRelease = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    /**
+     * @param context Any context, the session only keeps the application's resources
+     * @return The running session, or a new one if there is none
+     */
+    static TunerSession obtain(Context context){
+        if (instance == null) instance = new TunerSession(context.getApplicationContext().getResources());
+        return instance;
+    }
+
+    private TunerSession(Resources resources){
+        this.resources = resources;
+        toneUtils = new ToneUtils(resources);
+        Chord chord = new Chord(toneUtils);
+        chord.assignFlagMeaning(resources);
+        chordIndex = new ChordTemplateIndex(chord, toneUtils);
+        configureAnalysis(1);
+    }
+
+    /**
+     * Starts delivering frames to an activity, starting the recording if it doesn't run yet.
+     * An activity paused for longer than idleTimeout attaches to the session it has, which has been released meanwhile,
+     * so the session becomes the running one again and any other session is released, leaving one recording.
+     * @param listener Receives the frames until detach() is called
+     */
+    void attach(FrameListener listener){
+        uiHandler.removeCallbacks(idleRelease);
+        if (instance != this){
+            if (instance != null) instance.release();
+            instance = this;
+        }
+        frameListener = listener;
+        if (!started) startProcessing();
+    }
+
+    /**
+     * Stops delivering frames to the activity. The recording is released after idleTimeout unless an activity attaches again.
+     * @param listener The listener passed to attach()
+     */
+    void detach(FrameListener listener){
+        if (frameListener != listener) return;
+        frameListener = null;
+        uiHandler.removeCallbacks(idleRelease);
+        uiHandler.postDelayed(idleRelease, idleTimeout);
+    }
+
+    /**
+     * Stops the recording and ends the session, the next obtain() creates a new one.
+     */
+    private void release(){
+        uiHandler.removeCallbacks(idleRelease);
+        stopProcessing();
+        frameListener = null;
+        if (instance == this) instance = null;
+    }
+
+    /**
+     * Creates the analysis chain for the current mode and carries the chosen detector and analyses over to it.
+     * Must not be called while the ProcessAudio task runs.
+     * @param detectorIndex Index of the pitch detector to use, in the order of R.array.pitch_detector_names
+     */
+    private void configureAnalysis(int detectorIndex){
+        tuningId = bassMode ? R.array.bass_tuning : R.array.default_tuning;
+        double[] tuning = readTuningFrequencies(tuningId, bassMode ? 1 : 2);
+        tunerEngine = new TunerEngine(sampleRate, bassMode, tuning, singlePrecision, windowFunction, instrumentation);
+        tunerEngine.setPitchDetector(detectorIndex);
+        tunerEngine.setPolyphonicMode(polyphonicMode);
+        tunerEngine.setChordIndex(chordRecognition ? chordIndex : null);
+        tunerEngine.setConstantQMode(constantQMode);
+        framePool = new SpectrumFramePool(6, tunerEngine.getBlockSize() / 2, tunerEngine.getConstantQTransform().getBinCount());
+    }
+
+    /**
+     * Resolves a tuning into the frequencies of the open strings.
+     * The tuning only names the tones, so the lowest string is put into the given octave
+     * and every other string gets the nearest instance of its tone above the previous string.
+     * @param tuningId Resource id of the array with the tone names of the strings
+     * @param lowestOctave Octave of the lowest string
+     * @return Frequencies of the open strings from the lowest to the highest one
+     */
+    private double[] readTuningFrequencies(int tuningId, int lowestOctave){
+        String[] tuning = resources.getStringArray(tuningId);
+        double[] frequencies = new double[tuning.length];
+        int previous = -1;
+        for (int i = 0; i < tuning.length; i++){
+            int position = toneUtils.getSemiTonePosition(new ToneName(tuning[i].charAt(0), tuning[i].substring(1), 0));
+            int index = (i == 0) ? lowestOctave * 12 + position : previous + 1 + ((position - previous - 1) % 12 + 12) % 12;
+            frequencies[i] = toneUtils.getToneFrequency(index / 12, index % 12);
+            previous = index;
+        }
+        return frequencies;
+    }
+
+    /**
+     * Switches between the guitar and the bass mode, restarting the recording if it runs.
+     * @param enabled true for the bass mode
+     */
+    void setBassMode(boolean enabled){
+        if (enabled == bassMode) return;
+        boolean running = started;
+        if (running) stopProcessing();
+        bassMode = enabled;
+        configureAnalysis(tunerEngine.getPitchDetectorIndex());
+        if (running) startProcessing();
+    }
+
+    boolean isBassMode() {
+        return bassMode;
+    }
+
+    void setPolyphonicMode(boolean enabled){
+        polyphonicMode = enabled;
+        tunerEngine.setPolyphonicMode(enabled);
+    }
+
+    boolean isPolyphonicMode() {
+        return polyphonicMode;
+    }
+
+    /**
+     * Switches the chord recognition on or off, it only runs while the page showing the chords is on the screen.
+     */
+    void setChordRecognition(boolean enabled){
+        chordRecognition = enabled;
+        tunerEngine.setChordIndex(enabled ? chordIndex : null);
+    }
+
+    /**
+     * Switches the constant-Q spectrum on or off, it is only computed while the equalizer is on the screen.
+     */
+    void setConstantQMode(boolean enabled){
+        constantQMode = enabled;
+        tunerEngine.setConstantQMode(enabled);
+    }
+
+    /**
+     * Switches the algorithm used to find the pitch. Takes effect from the next analysed block.
+     * @param index Index of the detector in the order of R.array.pitch_detector_names
+     */
+    void setPitchDetector(int index){
+        tunerEngine.setPitchDetector(index);
+    }
+
+    int getPitchDetectorIndex(){
+        return tunerEngine.getPitchDetectorIndex();
+    }
+
+    /**
+     * @return Resource id of the tone names of the strings in the current mode
+     */
+    int getTuningId() {
+        return tuningId;
+    }
+
+    ChordTemplateIndex getChordIndex() {
+        return chordIndex;
+    }
+
+    TunerInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Lets a stabiliser outlive the activity that created it. The first activity registers its stabilisers,
+     * the following ones get the same instances back with the readings they have collected.
+     * @param index Position of the visualisation the stabiliser belongs to
+     * @param stabiliser A new stabiliser, kept if the session has none at this position yet
+     * @return The stabiliser to use for the visualisation
+     */
+    PitchStabiliser retainStabiliser(int index, PitchStabiliser stabiliser){
+        if (index < stabilisers.size()) return stabilisers.get(index);
+        stabilisers.add(stabiliser);
+        return stabiliser;
+    }
+
+    /**
+     * A background task that reads the chunks of the microphone from the @audioSource and runs them through the @tunerEngine.
+     * The processed blocks are written into frames of the framePool, so no memory is allocated once the recording runs.
+     * mostly taken from http://stackoverflow.com/questions/5511250/capturing-sound-for-analysis-and-visualizing-frequencies-in-android
+     */
+    private class ProcessAudio extends AsyncTask<Void, Void, Void> implements TunerEngine.BlockListener {
+        /**
+         * Set while a dispatch of the latest frame waits in the UI queue, so that a slow UI thread
+         * gets a single pending update instead of a backlog.
+         */
+        private AtomicBoolean dispatchPending = new AtomicBoolean(false);
+        private long lastDispatchedSequence = 0;
+
+        //the engine and the pool are replaced when the mode changes, the task keeps working with the ones it started with
+        private final TunerEngine engine = TunerSession.this.tunerEngine;
+        private final SpectrumAnalyser spectrumAnalyser = engine.getSpectrumAnalyser();
+        private final SpectrumFramePool framePool = TunerSession.this.framePool;
+        private final double binWidth = engine.getBinWidth();
+        private final SampleSource sampleSource;
+
+        ProcessAudio(SampleSource sampleSource){
+            this.sampleSource = sampleSource;
+        }
+
+        @Override
+        protected Void doInBackground(Void...params) {
+            try{
+                short[] buffer = new short[engine.getChunkSize()];
+                engine.reset();
+                while (started && !isCancelled()) {
+                    int bufferReadResult = sampleSource.read(buffer, 100);
+                    if (bufferReadResult < 0) break;
+                    if (bufferReadResult == 0) continue;
+                    engine.process(buffer, bufferReadResult, sampleSource.getTimestamp(), this);
+                }
+
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        /**
+         * Writes the result of a block into a free frame of the framePool and schedules its dispatch.
+         */
+        public void onBlock(double frequency, boolean spectral, PolyphonicAnalyser polyphonic, ConstantQTransform constantQ, int chord){
+            SpectrumFrame frame = framePool.obtain();
+            if (frame == null) return;
+            if (spectral){
+                spectrumAnalyser.copyMagnitudes(frame.data);
+                frame.bins = spectrumAnalyser.getLastBin();
+            } else {
+                frame.bins = 0;
+            }
+            if (polyphonic != null){
+                polyphonic.copyStringCents(frame.stringCents);
+                frame.strings = polyphonic.getStringCount();
+            } else {
+                frame.strings = 0;
+            }
+            if (constantQ != null){
+                int bins = constantQ.getBinCount();
+                System.arraycopy(constantQ.getMagnitudes(), 0, frame.constantQ, 0, bins);
+                frame.constantQBins = bins;
+                frame.constantQMinFrequency = constantQ.getFrequency(0);
+                frame.constantQBinsPerOctave = 12 * constantQ.getBinsPerSemitone();
+            } else {
+                frame.constantQBins = 0;
+            }
+            frame.chord = chord;
+            frame.frequency = frequency;
+            frame.binWidth = binWidth;
+            frame.captureTime = engine.getCaptureTime();
+            frame.publishTime = System.nanoTime();
+            framePool.publish(frame);
+            if (dispatchPending.compareAndSet(false, true)){
+                uiHandler.post(dispatchFrame);
+            }
+        }
+
+        /**
+         * Runnable executed on the UI thread after a block of samples has been read and processed by FFT.
+         * Hands the latest frame to the attached activity, if there is one.
+         * Posted through uiHandler instead of publishProgress, which would allocate an array and a message wrapper for every block.*/
+        private Runnable dispatchFrame = new Runnable() {
+            @Override
+            public void run() {
+                dispatchPending.set(false);
+                FrameListener listener = frameListener;
+                if (listener == null) return;
+                SpectrumFrame frame = framePool.acquireLatest();
+                if (frame == null) return;
+                try {
+                    if (frame.getSequence() == lastDispatchedSequence) return;
+                    lastDispatchedSequence = frame.getSequence();
+                    instrumentation.record(TunerInstrumentation.Stage.DISPATCH, System.nanoTime() - frame.publishTime);
+                    listener.onFrame(frame, engine.getDutyCycle().getRenderInterval());
+                } finally {
+                    frame.release();
+                }
+            }
+        };
+
+        /**
+         * Stops the delivery of frames that are still waiting in the UI queue.
+         */
+        void cancelDispatch(){
+            uiHandler.removeCallbacks(dispatchFrame);
+        }
+    }
+
+    private void stopProcessing(){
+        started = false;
+        if (audioSource!=null){
+            audioSource.close();
+            audioSource = null;
+        }
+        if (processTask!=null){
+            processTask.cancel(true);
+            processTask.cancelDispatch();
+            processTask = null;
+        }
+    }
+
+    /**
+     * Starts the capture thread and the analysis worker connected by a fresh SampleQueue.
+     * A chunk holds the samples of one hop before the decimation.
+     */
+    private void startProcessing(){
+        started = true;
+        for (PitchStabiliser stabiliser : stabilisers) stabiliser.reset();
+        audioSource = new AudioRecordSource(sampleRate, tunerEngine.getChunkSize(), queuedChunks, instrumentation);
+        instrumentation.setSources(audioSource, framePool);
+        audioSource.start();
+        processTask = new ProcessAudio(audioSource);
+        processTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+}
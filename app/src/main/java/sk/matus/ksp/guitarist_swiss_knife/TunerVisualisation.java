@@ -4,7 +4,22 @@ package sk.matus.ksp.guitarist_swiss_knife;
  * Interface that defines methods for a tuner visualization class
  */
 public interface TunerVisualisation {
-    void updateSamples(double[] data);
+    /**
+     * Receives the newest processed block. The frame is only guaranteed to stay intact during the call,
+     * a visualisation that wants to use it later has to retain() it and release() it when done.
+     * @param frame The frame containing the block
+     */
+    void updateSamples(SpectrumFrame frame);
+    /**
+     * Lets the visualisation redraw less often while there is little new to show.
+     * @param millis Shortest time between two redraws, 0 to use the visualisation's own rate
+     */
+    void setRenderInterval(long millis);
     void updateMaxFrequency(double maxFrequency);
-    void updateTone(Tone tone);
+    /**
+     * Receives the tone nearest to the latest frequency. The resolution is reused for the next update,
+     * so the visualisation has to copy the fields it needs.
+     * @param resolution The nearest tone and the deviation from it
+     */
+    void updateTone(ToneResolution resolution);
 }
@@ -0,0 +1,172 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A recording as a SampleSource, either a WAV file with 16-bit PCM samples or raw 16-bit little-endian PCM.
+ * The samples are streamed, only one chunk is held in memory, and multichannel recordings are mixed down to mono.
+ * Reads never wait, the timestamp of a chunk is its position in the recording.
+ * Does not depend on Android, so recordings can be analysed on a plain JVM.
+ */
+class WavFileSource implements SampleSource {
+    private static final int pcmFormat = 1;
+    private static final int extensibleFormat = 0xFFFE;
+
+    private final InputStream input;
+    private final int sampleRate;
+    private final int channels;
+    /**
+     * Number of frames left in the data, -1 if the stream goes on until its end.
+     */
+    private long remainingFrames;
+    private long framesRead = 0;
+    private byte[] bytes = new byte[0];
+
+    /**
+     * Opens a WAV file and reads its header.
+     * @param file The WAV file
+     * @throws IOException If the file can't be read or doesn't contain 16-bit PCM samples
+     */
+    WavFileSource(File file) throws IOException {
+        input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            boolean riff = "RIFF".equals(readTag());
+            readInt();
+            if (!riff || !"WAVE".equals(readTag())) throw new IOException(file + " is not a WAV file");
+            int format = -1, channelCount = 0, rate = 0;
+            while (true){
+                String tag = readTag();
+                long size = readInt() & 0xFFFFFFFFL;
+                if ("fmt ".equals(tag)){
+                    format = readShort();
+                    channelCount = readShort();
+                    rate = readInt();
+                    skip(6);
+                    int bits = readShort();
+                    if (size >= 26 && format == extensibleFormat){
+                        skip(8);
+                        format = readShort();
+                        skip(size - 26);
+                    } else {
+                        skip(size - 16);
+                    }
+                    if (format != pcmFormat || bits != 16){
+                        throw new IOException(file + " does not contain 16-bit PCM samples");
+                    }
+                } else if ("data".equals(tag)){
+                    if (format < 0) throw new IOException(file + " has no format before its data");
+                    //a size of zero or of the whole 32-bit range is left by recorders that were not closed properly
+                    remainingFrames = (size == 0 || size == 0xFFFFFFFFL) ? -1 : size / (2 * channelCount);
+                    break;
+                } else {
+                    //chunks are padded to an even length
+                    skip(size + (size & 1));
+                }
+            }
+            sampleRate = rate;
+            channels = channelCount;
+        } catch (IOException e){
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams raw 16-bit little-endian PCM samples without a header.
+     * @param input The samples, interleaved if there are several channels
+     * @param sampleRate Sample rate of the samples
+     * @param channels Number of channels
+     */
+    WavFileSource(InputStream input, int sampleRate, int channels){
+        this.input = new BufferedInputStream(input);
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        remainingFrames = -1;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int read(short[] buffer, long timeoutMillis){
+        int frames = buffer.length;
+        if (remainingFrames >= 0) frames = (int) Math.min(frames, remainingFrames);
+        if (frames == 0) return -1;
+        int frameBytes = 2 * channels;
+        if (bytes.length < frames * frameBytes) bytes = new byte[frames * frameBytes];
+        int filled = 0;
+        try {
+            while (filled < frames * frameBytes){
+                int count = input.read(bytes, filled, frames * frameBytes - filled);
+                if (count < 0) break;
+                filled += count;
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+        frames = filled / frameBytes;
+        if (frames == 0){
+            remainingFrames = 0;
+            return -1;
+        }
+        for (int i = 0; i < frames; i++){
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++){
+                int offset = (i * channels + channel) * 2;
+                sum += (short) ((bytes[offset] & 0xFF) | (bytes[offset + 1] << 8));
+            }
+            buffer[i] = (short) (sum / channels);
+        }
+        if (remainingFrames >= 0) remainingFrames -= frames;
+        framesRead += frames;
+        return frames;
+    }
+
+    public long getTimestamp() {
+        return framesRead * 1000000000L / sampleRate;
+    }
+
+    public void close(){
+        try {
+            input.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    private String readTag() throws IOException {
+        char[] tag = new char[4];
+        for (int i = 0; i < 4; i++) tag[i] = (char) readByte();
+        return new String(tag);
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private int readInt() throws IOException {
+        return readShort() | (readShort() << 16);
+    }
+
+    private int readByte() throws IOException {
+        int value = input.read();
+        if (value < 0) throw new EOFException();
+        return value;
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0){
+            long skipped = input.skip(count);
+            if (skipped <= 0){
+                readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
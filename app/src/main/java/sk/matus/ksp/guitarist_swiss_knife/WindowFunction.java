@@ -0,0 +1,39 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+/**
+ * Window functions that can be applied to a block of samples before the FFT.
+ * Tapering the block edges keeps the energy of a tone from leaking into distant frequency bins.
+ */
+enum WindowFunction {
+    RECTANGULAR,
+    HANN,
+    HAMMING,
+    BLACKMAN;
+
+    /**
+     * Precomputes the coefficients of the window, so that applying it costs one multiplication per sample.
+     * @param size Length of the window in samples
+     * @return Array of size coefficients
+     */
+    public double[] createTable(int size){
+        double[] table = new double[size];
+        for (int i = 0; i < size; i++){
+            double phase = 2 * Math.PI * i / (size - 1);
+            switch (this){
+                case HANN:
+                    table[i] = 0.5 - 0.5 * Math.cos(phase);
+                    break;
+                case HAMMING:
+                    table[i] = 0.54 - 0.46 * Math.cos(phase);
+                    break;
+                case BLACKMAN:
+                    table[i] = 0.42 - 0.5 * Math.cos(phase) + 0.08 * Math.cos(2 * phase);
+                    break;
+                default:
+                    table[i] = 1;
+                    break;
+            }
+        }
+        return table;
+    }
+}
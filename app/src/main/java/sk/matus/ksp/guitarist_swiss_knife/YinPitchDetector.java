@@ -0,0 +1,169 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.util.Arrays;
+
+/**
+ * Time-domain pitch detector based on the YIN algorithm (de Cheveigné and Kawahara, 2002).
+ * For every candidate period (lag) it measures the squared difference between the last windowSize samples
+ * and the same samples delayed by the lag. Adding samples only stores them, the difference function is computed
+ * once per analysed block: the energies of the two runs come from a running sum of squares and their product,
+ * an autocorrelation of the short window, from one FFT of the window, one of the history and one inverse FFT.
+ * The window only has to span a few periods of the lowest tone, which is much shorter than the block an FFT needs
+ * for the same precision.
+ */
+class YinPitchDetector implements PitchDetector {
+    private final int sampleRate;
+    private final int windowSize;
+    private final int minLag;
+    private final int maxLag;
+    private final double threshold;
+    /**
+     * Difference function of the last analysed block, difference[lag] is the sum over the window of (x[i-lag] - x[i])^2.
+     */
+    private final double[] difference;
+    private final double[] normalised;
+    /**
+     * History of the last windowSize + maxLag samples.
+     */
+    private final double[] history;
+    private int writePosition = 0;
+    private final DoubleFFT_1D fft;
+    /**
+     * The newest windowSize samples, zero padded to the length of the FFT.
+     */
+    private final double[] window;
+    /**
+     * The whole history, newest sample first, zero padded to the length of the FFT.
+     */
+    private final double[] delayed;
+
+    /**
+     * @param sampleRate Sample rate of the analysed signal
+     * @param windowSize Number of samples the difference function is integrated over
+     * @param minFrequency Lowest frequency the detector can report
+     * @param maxFrequency Highest frequency the detector can report
+     * @param threshold Limit on the normalised difference below which a lag is accepted as the period, usually 0.1 - 0.2
+     */
+    YinPitchDetector(int sampleRate, int windowSize, double minFrequency, double maxFrequency, double threshold){
+        this.sampleRate = sampleRate;
+        this.windowSize = windowSize;
+        this.minLag = Math.max(2, (int) Math.floor(sampleRate / maxFrequency));
+        this.maxLag = (int) Math.ceil(sampleRate / minFrequency) + 1;
+        this.threshold = threshold;
+        difference = new double[maxLag + 1];
+        normalised = new double[maxLag + 1];
+        history = new double[windowSize + maxLag + 1];
+        //the correlation is circular, so the transform has to be as long as the history to keep the lags from wrapping
+        int fftSize = Integer.highestOneBit(history.length - 1) * 2;
+        fft = new DoubleFFT_1D(fftSize);
+        window = new double[fftSize];
+        delayed = new double[fftSize];
+    }
+
+    /**
+     * @param index Distance from the newest sample, 0 is the newest one
+     * @return The sample recorded index samples ago
+     */
+    private double sampleAgo(int index){
+        int position = writePosition - 1 - index;
+        if (position < 0) position += history.length;
+        return history[position];
+    }
+
+    @Override
+    public boolean needsSpectrum() {
+        return false;
+    }
+
+    @Override
+    public void addSamples(double[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++){
+            history[writePosition] = samples[i];
+            writePosition++;
+            if (writePosition == history.length) writePosition = 0;
+        }
+    }
+
+    /**
+     * Computes difference[lag] = e(0) + e(lag) - 2r(lag) for every lag, where e(lag) is the energy of the window delayed by lag
+     * and r(lag) is the correlation of the window with its delayed copy, taken as the inverse FFT of the cross spectrum.
+     */
+    private void computeDifference(){
+        Arrays.fill(window, 0);
+        Arrays.fill(delayed, 0);
+        for (int i = 0; i < history.length; i++){
+            double sample = sampleAgo(i);
+            delayed[i] = sample;
+            if (i < windowSize) window[i] = sample;
+        }
+        double windowEnergy = 0;
+        for (int i = 0; i < windowSize; i++) windowEnergy += window[i] * window[i];
+        fft.realForward(window);
+        fft.realForward(delayed);
+        //conj(window) * delayed in the packed format of realForward, the first two values are the real DC and Nyquist bins
+        window[0] *= delayed[0];
+        window[1] *= delayed[1];
+        for (int i = 2; i < window.length; i += 2){
+            double re = window[i] * delayed[i] + window[i + 1] * delayed[i + 1];
+            double im = window[i] * delayed[i + 1] - window[i + 1] * delayed[i];
+            window[i] = re;
+            window[i + 1] = im;
+        }
+        fft.realInverse(window, true);
+        double delayedEnergy = windowEnergy;
+        difference[0] = 0;
+        for (int lag = 1; lag <= maxLag; lag++){
+            double entering = sampleAgo(lag + windowSize - 1);
+            double leaving = sampleAgo(lag - 1);
+            delayedEnergy += entering * entering - leaving * leaving;
+            difference[lag] = Math.max(0, windowEnergy + delayedEnergy - 2 * window[lag]);
+        }
+    }
+
+    /**
+     * Forgets the samples recorded before the silence.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(history, 0);
+        Arrays.fill(difference, 0);
+        writePosition = 0;
+    }
+
+    @Override
+    public double detectPitch(double[] spectrum) {
+        computeDifference();
+        double runningSum = 0;
+        normalised[0] = 1;
+        for (int lag = 1; lag <= maxLag; lag++){
+            runningSum += difference[lag];
+            normalised[lag] = runningSum > 0 ? difference[lag] * lag / runningSum : 1;
+        }
+        int period = -1;
+        for (int lag = minLag; lag < maxLag; lag++){
+            if (normalised[lag] < threshold){
+                while (lag + 1 < maxLag && normalised[lag + 1] < normalised[lag]) lag++;
+                period = lag;
+                break;
+            }
+        }
+        if (period == -1) return 0;
+        return sampleRate / interpolateMinimum(period);
+    }
+
+    /**
+     * Refines the position of the minimum by fitting a parabola through the neighbouring lags.
+     * @param lag Lag with the locally smallest normalised difference
+     * @return The lag of the parabola's vertex
+     */
+    private double interpolateMinimum(int lag){
+        double left = normalised[lag - 1];
+        double centre = normalised[lag];
+        double right = normalised[lag + 1];
+        double denominator = left - 2 * centre + right;
+        if (denominator == 0) return lag;
+        return lag + 0.5 * (left - right) / denominator;
+    }
+}
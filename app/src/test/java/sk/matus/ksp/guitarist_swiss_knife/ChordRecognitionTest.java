@@ -0,0 +1,122 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Synthesises a few chords with six harmonics per tone and checks that the constant-Q spectrum peaks at their tones
+ * and that the chord templates recognise them.
+ */
+public class ChordRecognitionTest {
+    private static final int sampleRate = 22050;
+    private static final int blockSize = 8192;
+    private static final int harmonics = 6;
+
+    private static final String[] rootNames = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+    /**
+     * The semitones the chord builder flags of ChordTemplateIndex resolve to.
+     */
+    private static final int[][] typeIntervals = {
+            {4, 7},
+            {3, 7},
+            {7},
+            {2, 7},
+            {5, 7},
+            {4, 7, 10},
+            {3, 7, 10},
+            {4, 7, 11},
+            {4, 7, 9},
+            {4, 8},
+            {3, 6},
+            {4, 7, 14}
+    };
+
+    private static final String[] chordNames = {"E", "Am", "G7", "D5", "Cmaj7"};
+    private static final double[][] chordTones = {
+            {82.41, 123.47, 164.81, 207.65, 246.94, 329.63},
+            {110, 164.81, 220, 261.63, 329.63},
+            {98, 123.47, 146.83, 196, 246.94, 349.23},
+            {146.83, 220, 293.66},
+            {130.81, 164.81, 196, 246.94, 329.63}
+    };
+
+    private final ConstantQTransform constantQ = new ConstantQTransform(sampleRate, blockSize, WindowFunction.HANN, 40, 5000, 3);
+    private final Chromagram chromagram = new Chromagram(constantQ, 60, 2000, 0.3);
+    private final ChordTemplateIndex index = new ChordTemplateIndex(typeIntervals, rootNames);
+    private final DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+    private final double[] window = WindowFunction.HANN.createTable(blockSize);
+
+    /**
+     * Computes the constant-Q spectrum and the chroma of a block of the chord.
+     */
+    private void process(double[] tones, Random random){
+        double[] block = new double[blockSize];
+        for (double tone : tones){
+            for (int harmonic = 1; harmonic <= harmonics; harmonic++){
+                double amplitude = 0.1 / harmonic;
+                double phase = 2 * Math.PI * random.nextDouble();
+                for (int i = 0; i < blockSize; i++){
+                    block[i] += amplitude * Math.sin(2 * Math.PI * tone * harmonic * i / sampleRate + phase);
+                }
+            }
+        }
+        for (int i = 0; i < blockSize; i++) block[i] *= window[i];
+        fft.realForward(block);
+        constantQ.process(block);
+        chromagram.reset();
+        chromagram.process(constantQ.getMagnitudes());
+    }
+
+    /**
+     * @return The bin whose centre is nearest to the frequency
+     */
+    private int nearestBin(double frequency){
+        int nearest = 0;
+        for (int bin = 1; bin < constantQ.getBinCount(); bin++){
+            if (Math.abs(Math.log(constantQ.getFrequency(bin) / frequency)) < Math.abs(Math.log(constantQ.getFrequency(nearest) / frequency))) nearest = bin;
+        }
+        return nearest;
+    }
+
+    @Test
+    public void kernelsArePreparedOnce(){
+        assertFalse(constantQ.isReady());
+        assertEquals(0, constantQ.getKernelSize());
+        constantQ.prepare();
+        assertTrue(constantQ.isReady());
+        int size = constantQ.getKernelSize();
+        assertTrue(size > 0);
+        constantQ.prepare();
+        assertEquals(size, constantQ.getKernelSize());
+    }
+
+    @Test
+    public void spectrumPeaksAtTheChordTones(){
+        Random random = new Random(2);
+        for (int chord = 0; chord < chordTones.length; chord++){
+            process(chordTones[chord], random);
+            double[] magnitudes = constantQ.getMagnitudes();
+            for (double tone : chordTones[chord]){
+                int bin = nearestBin(tone);
+                String message = chordNames[chord] + " " + tone + " Hz";
+                assertTrue(message, magnitudes[bin] >= magnitudes[bin - 1]);
+                assertTrue(message, magnitudes[bin] >= magnitudes[bin + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void recognisesTheChords(){
+        Random random = new Random(2);
+        for (int chord = 0; chord < chordTones.length; chord++){
+            process(chordTones[chord], random);
+            int recognised = index.match(chromagram.getChroma());
+            assertTrue(chordNames[chord], recognised >= 0);
+            assertEquals(chordNames[chord], index.getName(recognised));
+        }
+    }
+}
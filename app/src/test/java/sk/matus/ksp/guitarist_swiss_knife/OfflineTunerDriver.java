@@ -0,0 +1,294 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs recordings through the TunerEngine on a plain JVM, block by block as the tuner analyses the microphone.
+ * Prints the pitch and the nearest tone of every block, compares the pitch with the labels of the recording
+ * and reports the accuracy and the throughput of the analysis.
+ * As a test it analyses a generated recording of the open strings with every detector.
+ * As a program it analyses a recording:
+ * OfflineTunerDriver recording.wav [labels.txt [detector index [bass]]]
+ * A labels file has one segment per line: its start and end in seconds and the frequency played in it in Hz.
+ */
+public class OfflineTunerDriver {
+    /**
+     * The sample rate the tuner records at.
+     */
+    private static final int sampleRate = 22050;
+    /**
+     * A block whose pitch differs from the label by less than this is counted as correct.
+     */
+    private static final double toleranceCents = 10;
+    /**
+     * Every detector has to get this fraction of the labelled blocks of the generated recording right,
+     * within this mean error and without an octave error.
+     */
+    private static final double minAccuracy = 0.95;
+    private static final double maxMeanCents = 1;
+    private static final String[] toneNames = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+    private static final double[] openStrings = {82.41, 110.0, 146.83, 196.0, 246.94, 329.63};
+
+    /**
+     * A segment of a recording in which a known frequency is played.
+     */
+    static class Label {
+        final double start;
+        final double end;
+        final double frequency;
+
+        Label(double start, double end, double frequency){
+            this.start = start;
+            this.end = end;
+            this.frequency = frequency;
+        }
+    }
+
+    /**
+     * The results of one run.
+     */
+    static class Report {
+        int blocks;
+        int voiced;
+        int labelled;
+        int correct;
+        int octaveErrors;
+        double absoluteCents;
+        double seconds;
+        long nanos;
+
+        double getAccuracy(){
+            return labelled == 0 ? 0 : (double) correct / labelled;
+        }
+
+        /**
+         * @return The mean absolute error of the correct blocks in cents
+         */
+        double getMeanCents(){
+            return absoluteCents / Math.max(1, correct);
+        }
+
+        double getBlocksPerSecond(){
+            return blocks * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString(){
+            return String.format(Locale.US, "blocks %d, voiced %d, labelled %d, correct %.1f %%, octave errors %d, " +
+                            "mean error %.2f cents, %.0f blocks/s, %.0fx real time",
+                    blocks, voiced, labelled, 100 * getAccuracy(), octaveErrors, getMeanCents(),
+                    getBlocksPerSecond(), seconds * 1e9 / nanos);
+        }
+    }
+
+    @Test
+    public void detectsOpenStrings() throws Exception {
+        List<Label> labels = new ArrayList<>();
+        File file = File.createTempFile("strings", ".wav");
+        try {
+            writeStrings(file, labels);
+            String[] names = {"fft peak", "harmonic product", "yin", "string tuning", "inharmonic partials"};
+            for (int detector = 0; detector < names.length; detector++){
+                //the first run only warms up the JIT, so the throughput of the second one is comparable
+                run(new WavFileSource(file), labels, detector, false, null);
+                Report report = run(new WavFileSource(file), labels, detector, false, null);
+                System.out.println(names[detector] + ": " + report);
+                assertTrue(names[detector] + " accuracy " + report.getAccuracy(), report.getAccuracy() >= minAccuracy);
+                assertEquals(names[detector] + " octave errors", 0, report.octaveErrors);
+                assertTrue(names[detector] + " mean error " + report.getMeanCents(), report.getMeanCents() < maxMeanCents);
+            }
+        } finally {
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Analyses a recording and prints the pitch of every block.
+     * @param args The WAV file, optionally followed by the labels file, the detector index and "bass"
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0){
+            System.err.println("usage: OfflineTunerDriver recording.wav [labels.txt [detector index [bass]]]");
+            return;
+        }
+        List<Label> labels = (args.length > 1) ? readLabels(new File(args[1])) : new ArrayList<Label>();
+        int detector = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+        boolean bass = args.length > 3 && args[3].equals("bass");
+        WavFileSource source = new WavFileSource(new File(args[0]));
+        if (source.getSampleRate() != sampleRate){
+            System.err.println("The tuner records at " + sampleRate + " Hz, the blocks of a recording at "
+                    + source.getSampleRate() + " Hz cover a different time and frequency range");
+        }
+        Report report = run(source, labels, detector, bass, System.out);
+        System.out.println(report);
+    }
+
+    /**
+     * Runs a recording through the TunerEngine with the duty cycle switched off, so every block that passes the gate is analysed.
+     * A block is compared with a label only if its whole window lies inside of the labelled segment.
+     * @param source The recording, it is closed at the end
+     * @param labels The labelled segments of the recording
+     * @param detector Index of the pitch detector in the order of R.array.pitch_detector_names
+     * @param bass true for the bass mode
+     * @param out Receives a line for every block, null to print nothing
+     * @return The results of the run
+     */
+    static Report run(SampleSource source, final List<Label> labels, int detector, boolean bass, final PrintStream out){
+        double[] tuning = new double[openStrings.length];
+        for (int i = 0; i < tuning.length; i++) tuning[i] = bass ? openStrings[i] / 2 : openStrings[i];
+        final TunerEngine engine = new TunerEngine(source.getSampleRate(), bass, tuning, true, WindowFunction.HANN,
+                new TunerInstrumentation());
+        engine.setPitchDetector(detector);
+        engine.setDutyCycling(false);
+        final double window = (double) engine.getBlockSize() / engine.getAnalysisRate();
+        final ToneResolver toneResolver = new ToneResolver(440, 5, 108);
+        final ToneResolution resolution = new ToneResolution();
+        final Report report = new Report();
+        if (out != null) out.println("time_s\tfrequency_hz\ttone\tcents\texpected_hz\terror_cents");
+        TunerEngine.BlockListener listener = new TunerEngine.BlockListener() {
+            @Override
+            public void onBlock(double frequency, boolean spectral, PolyphonicAnalyser polyphonic, ConstantQTransform constantQ, int chord) {
+                double time = engine.getCaptureTime() / 1e9;
+                report.blocks++;
+                if (frequency > 0) report.voiced++;
+                Label label = null;
+                for (Label candidate : labels){
+                    if (candidate.start <= time - window && time <= candidate.end) label = candidate;
+                }
+                double error = Double.NaN;
+                if (label != null){
+                    report.labelled++;
+                    if (frequency > 0){
+                        error = 1200 * Math.log(frequency / label.frequency) / Math.log(2);
+                        if (Math.abs(error) < toleranceCents){
+                            report.correct++;
+                            report.absoluteCents += Math.abs(error);
+                        } else if (Math.abs(Math.abs(error) - 1200) < 50){
+                            report.octaveErrors++;
+                        }
+                    }
+                }
+                if (out == null) return;
+                String tone = "-";
+                if (frequency > 0){
+                    toneResolver.resolve(frequency, resolution);
+                    tone = String.format(Locale.US, "%s%d\t%+.1f", toneNames[resolution.positionInOctave],
+                            resolution.octave, resolution.cents);
+                } else {
+                    tone += "\t-";
+                }
+                out.println(String.format(Locale.US, "%.3f\t%.2f\t%s\t%s\t%s", time, frequency, tone,
+                        label == null ? "-" : String.format(Locale.US, "%.2f", label.frequency),
+                        Double.isNaN(error) ? "-" : String.format(Locale.US, "%+.1f", error)));
+            }
+        };
+        short[] buffer = new short[engine.getChunkSize()];
+        long samples = 0;
+        try {
+            while (true){
+                int read = source.read(buffer, 0);
+                if (read < 0) break;
+                samples += read;
+                long start = System.nanoTime();
+                engine.process(buffer, read, source.getTimestamp(), listener);
+                report.nanos += System.nanoTime() - start;
+            }
+        } finally {
+            source.close();
+        }
+        report.seconds = (double) samples / source.getSampleRate();
+        return report;
+    }
+
+    /**
+     * Reads the labels of a recording, lines starting with # are skipped.
+     */
+    static List<Label> readLabels(File file) throws IOException {
+        List<Label> labels = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                labels.add(new Label(Double.parseDouble(fields[0]), Double.parseDouble(fields[1]), Double.parseDouble(fields[2])));
+            }
+        } finally {
+            reader.close();
+        }
+        return labels;
+    }
+
+    /**
+     * Writes a stereo WAV file in which the open strings are plucked one after another, some of them slightly out of tune,
+     * separated by silence. Every plucked string is a decaying sum of harmonics with a little noise.
+     * @param labels Receives the segment of every string
+     */
+    private static void writeStrings(File file, List<Label> labels) throws IOException {
+        double noteSeconds = 2, pauseSeconds = 0.5;
+        double[] detuneCents = {0, 7, -12, 3, -5, 15};
+        int noteSamples = (int) (noteSeconds * sampleRate), pauseSamples = (int) (pauseSeconds * sampleRate);
+        int frames = openStrings.length * (noteSamples + pauseSamples);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeBytes("RIFF");
+            writeInt(output, 36 + frames * 4);
+            output.writeBytes("WAVEfmt ");
+            writeInt(output, 16);
+            writeShort(output, 1);
+            writeShort(output, 2);
+            writeInt(output, sampleRate);
+            writeInt(output, sampleRate * 4);
+            writeShort(output, 4);
+            writeShort(output, 16);
+            output.writeBytes("data");
+            writeInt(output, frames * 4);
+            Random random = new Random(1);
+            for (int string = 0; string < openStrings.length; string++){
+                double frequency = openStrings[string] * Math.pow(2, detuneCents[string] / 1200);
+                double start = string * (noteSeconds + pauseSeconds);
+                labels.add(new Label(start, start + noteSeconds, frequency));
+                for (int i = 0; i < noteSamples + pauseSamples; i++){
+                    double t = (double) i / sampleRate;
+                    double value = 0.001 * random.nextGaussian();
+                    if (i < noteSamples){
+                        for (int harmonic = 1; harmonic <= 6; harmonic++){
+                            value += 0.25 / harmonic * Math.exp(-t * harmonic / 1.5) * Math.sin(2 * Math.PI * frequency * harmonic * t);
+                        }
+                    }
+                    short sample = (short) Math.round(Math.max(-1, Math.min(1, value)) * 32767);
+                    writeShort(output, sample);
+                    writeShort(output, sample);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void writeShort(DataOutputStream output, int value) throws IOException {
+        output.writeByte(value & 0xFF);
+        output.writeByte((value >> 8) & 0xFF);
+    }
+
+    private static void writeInt(DataOutputStream output, int value) throws IOException {
+        writeShort(output, value & 0xFFFF);
+        writeShort(output, (value >> 16) & 0xFFFF);
+    }
+}
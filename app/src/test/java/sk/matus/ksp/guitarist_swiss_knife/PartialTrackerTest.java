@@ -0,0 +1,123 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Follows a sinusoid through the tracker: its track is born, continued, held over a silent frame and dies.
+ */
+public class PartialTrackerTest {
+    private static final int sampleRate = 22050;
+    private static final int blockSize = 8192;
+    private static final int hopSize = 1024;
+    private static final double frequency = 220;
+    private static final int holdFrames = 2;
+
+    private final DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+    private final double[] window = WindowFunction.HANN.createTable(blockSize);
+    private SpectrumAnalyser analyser;
+    private PartialTracker tracker;
+    private int hop = 0;
+
+    @Before
+    public void setUp(){
+        analyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+        tracker = new PartialTracker(analyser, 32, 40, holdFrames);
+    }
+
+    /**
+     * Analyses the next hop, with or without the sinusoid, and passes it to the tracker.
+     */
+    private void update(boolean sounding){
+        double[] block = new double[blockSize];
+        double windowSum = 0;
+        for (int i = 0; i < blockSize; i++){
+            int t = hop * hopSize + i;
+            if (sounding) block[i] = 0.5 * Math.sin(2 * Math.PI * frequency * t / sampleRate) * window[i];
+            windowSum += window[i];
+        }
+        hop++;
+        fft.realForward(block);
+        analyser.process(block, windowSum);
+        tracker.update(analyser.getMagnitudes());
+    }
+
+    /**
+     * @return Index of the peak of the sinusoid, -1 if there is none
+     */
+    private int findPeak(){
+        for (int peak = 0; peak < tracker.getPeakCount(); peak++){
+            if (Math.abs(1200 * Math.log(tracker.getFrequency(peak) / frequency) / Math.log(2)) < 5) return peak;
+        }
+        return -1;
+    }
+
+    @Test
+    public void trackIsBornAndContinued(){
+        update(true);
+        int peak = findPeak();
+        assertTrue(peak >= 0);
+        assertEquals(0, tracker.getAge(peak));
+        int id = tracker.getTrackId(peak);
+        assertTrue(id >= 0);
+        for (int frame = 1; frame <= 3; frame++){
+            update(true);
+            peak = findPeak();
+            assertTrue(peak >= 0);
+            assertEquals(id, tracker.getTrackId(peak));
+            assertEquals(frame, tracker.getAge(peak));
+        }
+    }
+
+    @Test
+    public void silentFramesArePeakless(){
+        update(false);
+        assertEquals(0, tracker.getPeakCount());
+    }
+
+    @Test
+    public void trackIsHeldOverMissingPeaks(){
+        update(true);
+        update(true);
+        int id = tracker.getTrackId(findPeak());
+        for (int frame = 0; frame < holdFrames; frame++){
+            update(false);
+        }
+        update(true);
+        int peak = findPeak();
+        assertEquals(id, tracker.getTrackId(peak));
+        //the held frames count into the age
+        assertEquals(2 + holdFrames, tracker.getAge(peak));
+    }
+
+    @Test
+    public void trackDiesAfterTheHold(){
+        update(true);
+        update(true);
+        int id = tracker.getTrackId(findPeak());
+        for (int frame = 0; frame <= holdFrames; frame++){
+            update(false);
+        }
+        update(true);
+        int peak = findPeak();
+        assertTrue(peak >= 0);
+        assertNotEquals(id, tracker.getTrackId(peak));
+        assertEquals(0, tracker.getAge(peak));
+    }
+
+    @Test
+    public void resetEndsTheTracks(){
+        update(true);
+        update(true);
+        int id = tracker.getTrackId(findPeak());
+        tracker.reset();
+        assertEquals(0, tracker.getPeakCount());
+        update(true);
+        int peak = findPeak();
+        assertNotEquals(id, tracker.getTrackId(peak));
+        assertEquals(0, tracker.getAge(peak));
+    }
+}
@@ -0,0 +1,258 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs every pitch detector of the tuner in both modes over synthetic plucked strings of all 108 tones of ToneUtils
+ * and measures the error in cents, the rate of octave errors, the time until the pitch locks and the time per block.
+ * Two tab-separated reports are written, one row per detector, mode, timbre and tone and one summary row
+ * per detector, mode, duty cycling and timbre over the range of the instrument, into the directory given by the system property
+ * pitchBenchmark.dir (build/reports/pitch-benchmark by default), so that runs before and after a change can be compared.
+ * Every note is analysed once with every block and once with the duty cycle of the app, which analyses only every other block
+ * while the pitch holds.
+ * The string tuning detector only looks for the open strings and is only evaluated on them.
+ * The test fails if any detector gets noticeably worse on any timbre, in either mode and with or without the duty cycle,
+ * and if the default detector gets noticeably worse on the guitar.
+ */
+public class PitchDetectionBenchmark {
+    private static final int sampleRate = 22050;
+    private static final int toneCount = 108;
+    private static final double noteSeconds = 1.5;
+    /**
+     * A block within this many cents of the tone is counted as locked.
+     */
+    private static final double lockCents = 10;
+    /**
+     * Number of consecutive locked blocks after which the pitch is considered locked.
+     */
+    private static final int lockBlocks = 3;
+    private static final String[] detectorNames = {"fft_peak", "harmonic_product", "yin", "string_tuning", "inharmonic_partials"};
+    private static final int defaultDetector = 1;
+    /**
+     * Looks only for the open strings, so it is only evaluated on them.
+     */
+    private static final int stringTuningDetector = 3;
+    /**
+     * Tone indices of the lowest and the highest note of every mode, E2 to E6 for the guitar and B0 to G4 for the bass.
+     */
+    private static final int[] guitarRange = {28, 76};
+    private static final int[] bassRange = {11, 55};
+    private static final double[] guitarTuning = {82.41, 110.0, 146.83, 196.0, 246.94, 329.63};
+    private static final double[] bassTuning = {41.2, 55.0, 73.42, 98.0};
+    /**
+     * Limits for every detector and timbre (warm, bright) over both modes and duty cycling, a little worse than what
+     * the detectors achieved when they were set: the lowest rate of correct blocks, the highest rate of octave errors
+     * and the highest mean error of the correct blocks in cents.
+     * The single peak of the FFT takes the octave of most bright tones, so it has no lower limit on them.
+     */
+    private static final double[][] minCorrectRates = {{0.98, 0}, {0.78, 0.77}, {0.83, 0.82}, {0.98, 0.98}, {0.98, 0.98}};
+    private static final double[][] maxOctaveRates = {{0.02, 0.65}, {0.22, 0.23}, {0.02, 0.07}, {0.02, 0.02}, {0.02, 0.02}};
+    private static final double[][] maxMeanCents = {{1, 1}, {1, 2}, {6, 10}, {1, 1.5}, {0.5, 0.5}};
+
+    /**
+     * The results of one detector on one note.
+     */
+    private static class ToneResult {
+        int blocks;
+        /**
+         * Blocks whose whole window lies inside of the note.
+         */
+        int evaluated;
+        /**
+         * Evaluated blocks with no pitch.
+         */
+        int missed;
+        /**
+         * Evaluated blocks within a semitone of the tone.
+         */
+        int correct;
+        /**
+         * Evaluated blocks within a semitone of another octave of the tone.
+         */
+        int octaveErrors;
+        double absoluteCents;
+        /**
+         * Time from the pluck to the first of lockBlocks consecutive blocks within lockCents, -1 if the pitch never locked.
+         */
+        double lockSeconds = -1;
+        long nanos;
+    }
+
+    @Test
+    public void benchmarkDetectors() throws IOException {
+        ToneResolver toneResolver = new ToneResolver(440, 5, toneCount);
+        SyntheticGuitarSignal generator = new SyntheticGuitarSignal(sampleRate, 108, 20, 0.002);
+        SyntheticGuitarSignal.Timbre[] timbres = SyntheticGuitarSignal.Timbre.values();
+        short[][][] notes = new short[timbres.length][toneCount][];
+        double[][] frequencies = new double[timbres.length][toneCount];
+        for (int timbre = 0; timbre < timbres.length; timbre++){
+            for (int tone = 0; tone < toneCount; tone++){
+                notes[timbre][tone] = generator.pluck(toneResolver.getToneFrequency(tone), noteSeconds, timbres[timbre]);
+                frequencies[timbre][tone] = generator.getLastFrequency();
+            }
+        }
+        File directory = new File(System.getProperty("pitchBenchmark.dir", "build/reports/pitch-benchmark"));
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        PrintWriter tones = new PrintWriter(new FileWriter(new File(directory, "tones.tsv")));
+        PrintWriter summary = new PrintWriter(new FileWriter(new File(directory, "summary.tsv")));
+        double defaultOctaveRate = 0, defaultCents = 0, defaultCorrectRate = 1;
+        StringBuilder regressions = new StringBuilder();
+        try {
+            tones.println("detector\tmode\tduty_cycling\ttimbre\ttone\tfrequency_hz\tin_range\tevaluated\tcorrect\tmissed\toctave_errors" +
+                    "\tmean_abs_cents\tlock_ms\tns_per_block");
+            summary.println("detector\tmode\tduty_cycling\ttimbre\ttones\tcorrect_rate\tmissed_rate\toctave_error_rate" +
+                    "\tmean_abs_cents\tp95_abs_cents\tmedian_lock_ms\tunlocked_tones\tns_per_block");
+            //the first round only warms up the JIT
+            for (int detector = 0; detector < detectorNames.length; detector++){
+                analyse(notes[0][guitarRange[0]], frequencies[0][guitarRange[0]], detector, false, false);
+            }
+            for (int detector = 0; detector < detectorNames.length; detector++){
+                for (int mode = 0; mode < 4; mode++){
+                    boolean bass = mode % 2 == 1;
+                    boolean dutyCycling = mode >= 2;
+                    int[] range = bass ? bassRange : guitarRange;
+                    for (int timbre = 0; timbre < timbres.length; timbre++){
+                        int inRange = 0, evaluated = 0, correct = 0, missed = 0, octaveErrors = 0, unlocked = 0;
+                        double absoluteCents = 0;
+                        long nanos = 0, blocks = 0;
+                        double[] toneCents = new double[toneCount];
+                        double[] lockTimes = new double[toneCents.length];
+                        for (int tone = 0; tone < toneCount; tone++){
+                            ToneResult result = analyse(notes[timbre][tone], frequencies[timbre][tone], detector, bass, dutyCycling);
+                            boolean playable = (detector == stringTuningDetector)
+                                    ? isOpenString(toneResolver, tone, bass) : tone >= range[0] && tone <= range[1];
+                            tones.println(String.format(Locale.US, "%s\t%s\t%b\t%s\t%d\t%.3f\t%b\t%d\t%d\t%d\t%d\t%.3f\t%.1f\t%.0f",
+                                    detectorNames[detector], bass ? "bass" : "guitar", dutyCycling, timbres[timbre].name().toLowerCase(Locale.US),
+                                    tone, frequencies[timbre][tone], playable, result.evaluated, result.correct, result.missed,
+                                    result.octaveErrors, result.absoluteCents / Math.max(1, result.correct),
+                                    result.lockSeconds * 1000, (double) result.nanos / Math.max(1, result.blocks)));
+                            if (!playable) continue;
+                            evaluated += result.evaluated;
+                            correct += result.correct;
+                            missed += result.missed;
+                            octaveErrors += result.octaveErrors;
+                            absoluteCents += result.absoluteCents;
+                            nanos += result.nanos;
+                            blocks += result.blocks;
+                            toneCents[inRange] = result.correct == 0 ? 50 : result.absoluteCents / result.correct;
+                            lockTimes[inRange] = result.lockSeconds < 0 ? Double.POSITIVE_INFINITY : result.lockSeconds;
+                            if (result.lockSeconds < 0) unlocked++;
+                            inRange++;
+                        }
+                        Arrays.sort(toneCents, 0, inRange);
+                        Arrays.sort(lockTimes, 0, inRange);
+                        double correctRate = (double) correct / Math.max(1, evaluated);
+                        double octaveRate = (double) octaveErrors / Math.max(1, evaluated);
+                        double meanCents = absoluteCents / Math.max(1, correct);
+                        summary.println(String.format(Locale.US, "%s\t%s\t%b\t%s\t%d\t%.4f\t%.4f\t%.4f\t%.3f\t%.3f\t%.1f\t%d\t%.0f",
+                                detectorNames[detector], bass ? "bass" : "guitar", dutyCycling, timbres[timbre].name().toLowerCase(Locale.US),
+                                inRange, correctRate, (double) missed / Math.max(1, evaluated), octaveRate, meanCents,
+                                toneCents[(int) (0.95 * (inRange - 1))], lockTimes[inRange / 2] * 1000, unlocked,
+                                (double) nanos / Math.max(1, blocks)));
+                        String row = detectorNames[detector] + " " + (bass ? "bass" : "guitar") + (dutyCycling ? " duty cycling " : " ")
+                                + timbres[timbre].name().toLowerCase(Locale.US);
+                        if (correctRate < minCorrectRates[detector][timbre]){
+                            regressions.append(String.format(Locale.US, "%s: correct %.4f%n", row, correctRate));
+                        }
+                        if (octaveRate > maxOctaveRates[detector][timbre]){
+                            regressions.append(String.format(Locale.US, "%s: octave errors %.4f%n", row, octaveRate));
+                        }
+                        if (meanCents > maxMeanCents[detector][timbre]){
+                            regressions.append(String.format(Locale.US, "%s: mean error %.3f cents%n", row, meanCents));
+                        }
+                        if (detector == defaultDetector && !bass){
+                            defaultOctaveRate = Math.max(defaultOctaveRate, octaveRate);
+                            defaultCents = Math.max(defaultCents, meanCents);
+                            defaultCorrectRate = Math.min(defaultCorrectRate, correctRate);
+                        }
+                    }
+                }
+            }
+        } finally {
+            tones.close();
+            summary.close();
+        }
+        System.out.println("Pitch detection benchmark written to " + directory.getAbsolutePath());
+        assertTrue("Detectors got worse:\n" + regressions, regressions.length() == 0);
+        //a little below what the detector achieved when the benchmark was written
+        assertTrue("Correct blocks of the default detector: " + defaultCorrectRate, defaultCorrectRate > 0.88);
+        assertTrue("Octave errors of the default detector: " + defaultOctaveRate, defaultOctaveRate < 0.12);
+        assertTrue("Mean error of the default detector: " + defaultCents, defaultCents < 2);
+    }
+
+    /**
+     * @return true if the tone is the tone of an open string of the instrument
+     */
+    private boolean isOpenString(ToneResolver toneResolver, int tone, boolean bass){
+        ToneResolution resolution = new ToneResolution();
+        for (double frequency : bass ? bassTuning : guitarTuning){
+            toneResolver.resolve(frequency, resolution);
+            if (resolution.toneIndex == tone) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs a note through a fresh TunerEngine.
+     * @param samples The note, starting with the pluck
+     * @param frequency The pitch of the note
+     * @param detector Index of the pitch detector in the order of R.array.pitch_detector_names
+     * @param bass true for the bass mode
+     * @param dutyCycling false to analyse every block, true to skip blocks as the app does once the pitch holds
+     */
+    private ToneResult analyse(short[] samples, final double frequency, int detector, boolean bass, boolean dutyCycling){
+        final TunerEngine engine = new TunerEngine(sampleRate, bass, bass ? bassTuning : guitarTuning, true, WindowFunction.HANN, new TunerInstrumentation());
+        engine.setPitchDetector(detector);
+        engine.setDutyCycling(dutyCycling);
+        final double window = (double) engine.getBlockSize() / engine.getAnalysisRate();
+        final ToneResult result = new ToneResult();
+        TunerEngine.BlockListener listener = new TunerEngine.BlockListener() {
+            private int lockedBlocks = 0;
+            private double lockStart = -1;
+
+            @Override
+            public void onBlock(double detected, boolean spectral, PolyphonicAnalyser polyphonic, ConstantQTransform constantQ, int chord) {
+                result.blocks++;
+                double time = engine.getCaptureTime() / 1e9;
+                double cents = detected > 0 ? 1200 * Math.log(detected / frequency) / Math.log(2) : Double.NaN;
+                if (result.lockSeconds < 0){
+                    if (Math.abs(cents) < lockCents){
+                        if (lockedBlocks++ == 0) lockStart = time;
+                        if (lockedBlocks == lockBlocks) result.lockSeconds = lockStart;
+                    } else {
+                        lockedBlocks = 0;
+                    }
+                }
+                if (time < window) return;
+                result.evaluated++;
+                if (detected <= 0){
+                    result.missed++;
+                } else if (Math.abs(cents) < 50){
+                    result.correct++;
+                    result.absoluteCents += Math.abs(cents);
+                } else {
+                    double octaves = cents / 1200;
+                    if (Math.abs(octaves - Math.round(octaves)) * 1200 < 50) result.octaveErrors++;
+                }
+            }
+        };
+        int chunkSize = engine.getChunkSize();
+        for (int offset = 0; offset < samples.length; offset += chunkSize){
+            int length = Math.min(chunkSize, samples.length - offset);
+            short[] chunk = Arrays.copyOfRange(samples, offset, offset + length);
+            long start = System.nanoTime();
+            engine.process(chunk, length, (long) ((offset + length) * 1e9 / sampleRate), listener);
+            result.nanos += System.nanoTime() - start;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,113 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Strums synthetic strings of a guitar in standard tuning and checks which strings the analyser hears and how far they are out of tune.
+ */
+public class PolyphonicAnalyserTest {
+    private static final int sampleRate = 22050;
+    private static final int blockSize = 8192;
+    private static final int hopSize = 1024;
+    private static final int harmonics = 12;
+    private static final double[] tuning = {82.41, 110.0, 146.83, 196.0, 246.94, 329.63};
+
+    private final DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+    private final double[] window = WindowFunction.HANN.createTable(blockSize);
+    private final SpectrumAnalyser analyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+    private final PolyphonicAnalyser polyphonic = new PolyphonicAnalyser(analyser, tuning);
+    private final double[] cents = new double[tuning.length];
+
+    /**
+     * Analyses two consecutive blocks of the strings, every one a sum of harmonics falling as 1/n with random phases.
+     * @param detuneCents Deviation of every string from the tuning, NaN for the strings that don't sound
+     * @return Number of strings heard
+     */
+    private int strum(double[] detuneCents, long seed){
+        Random random = new Random(seed);
+        double[][] phases = new double[tuning.length][harmonics];
+        for (double[] string : phases){
+            for (int harmonic = 0; harmonic < harmonics; harmonic++) string[harmonic] = 2 * Math.PI * random.nextDouble();
+        }
+        analyser.reset();
+        int heard = 0;
+        for (int hop = 0; hop < 2; hop++){
+            double[] block = new double[blockSize];
+            double windowSum = 0;
+            for (int i = 0; i < blockSize; i++){
+                double t = (double) (hop * hopSize + i) / sampleRate;
+                double value = 0;
+                for (int string = 0; string < tuning.length; string++){
+                    if (Double.isNaN(detuneCents[string])) continue;
+                    double frequency = tuning[string] * Math.pow(2, detuneCents[string] / 1200);
+                    for (int harmonic = 1; harmonic <= harmonics; harmonic++){
+                        value += 0.1 / harmonic * Math.sin(2 * Math.PI * frequency * harmonic * t + phases[string][harmonic - 1]);
+                    }
+                }
+                block[i] = value * window[i];
+                windowSum += window[i];
+            }
+            fft.realForward(block);
+            analyser.process(block, windowSum);
+            heard = polyphonic.analyse(analyser.getMagnitudes());
+        }
+        polyphonic.copyStringCents(cents);
+        return heard;
+    }
+
+    /**
+     * Checks that exactly the sounding strings were heard, each within the tolerance of its deviation.
+     */
+    private void assertStrings(double[] detuneCents, int heard, double toleranceCents){
+        int sounding = 0;
+        for (int string = 0; string < tuning.length; string++){
+            if (Double.isNaN(detuneCents[string])){
+                assertTrue("string " + string + " heard at " + cents[string], Double.isNaN(cents[string]));
+            } else {
+                sounding++;
+                assertEquals("string " + string, detuneCents[string], cents[string], toleranceCents);
+            }
+        }
+        assertEquals(sounding, heard);
+    }
+
+    @Test
+    public void lowStringAloneDoesNotSoundHigherStrings(){
+        double[] detune = {0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        for (long seed = 0; seed < 8; seed++){
+            assertStrings(detune, strum(detune, seed), 1);
+        }
+    }
+
+    @Test
+    public void detunedLowStringAloneDoesNotSoundHigherStrings(){
+        double[] detune = {-9, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        for (long seed = 0; seed < 8; seed++){
+            assertStrings(detune, strum(detune, seed), 1);
+        }
+    }
+
+    @Test
+    public void hearsStringOnHarmonicsOfLowerOne(){
+        double[] detune = {0, Double.NaN, Double.NaN, Double.NaN, 0, Double.NaN};
+        for (long seed = 0; seed < 8; seed++){
+            assertStrings(detune, strum(detune, seed), 1);
+        }
+    }
+
+    @Test
+    public void hearsAllStringsOfStrum(){
+        double[] inTune = {0, 0, 0, 0, 0, 0};
+        double[] detuned = {8, -3, 4, -9, -12, 12};
+        for (long seed = 0; seed < 8; seed++){
+            assertStrings(inTune, strum(inTune, seed), 1);
+            //the partials of detuned strings lie within a bin of the harmonics of the lower strings and pull each other
+            assertStrings(detuned, strum(detuned, seed), 3);
+        }
+    }
+}
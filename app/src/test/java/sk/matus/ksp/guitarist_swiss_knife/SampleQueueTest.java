@@ -0,0 +1,63 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the consumer sees the end of the stream once the producer closes the queue.
+ */
+public class SampleQueueTest {
+    private static final int chunkSize = 4;
+
+    private static void write(SampleQueue queue, short value){
+        short[] chunk = queue.beginWrite();
+        for (int i = 0; i < chunkSize; i++) chunk[i] = value;
+        queue.commitWrite(chunkSize, value);
+    }
+
+    @Test
+    public void remainingChunksAreTakenBeforeTheEnd(){
+        SampleQueue queue = new SampleQueue(4, chunkSize);
+        write(queue, (short) 1);
+        write(queue, (short) 2);
+        queue.close();
+        short[] buffer = new short[chunkSize];
+        assertEquals(chunkSize, queue.take(buffer, 1000));
+        assertEquals(1, buffer[0]);
+        assertEquals(chunkSize, queue.take(buffer, 1000));
+        assertEquals(2, buffer[0]);
+        long start = System.nanoTime();
+        assertEquals(-1, queue.take(buffer, 1000));
+        assertTrue(queue.isClosed());
+        assertTrue("A closed queue is not waited for", System.nanoTime() - start < 500000000L);
+    }
+
+    @Test
+    public void closeWakesTheWaitingConsumer() throws InterruptedException {
+        final SampleQueue queue = new SampleQueue(4, chunkSize);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e){
+                    return;
+                }
+                queue.close();
+            }
+        });
+        producer.start();
+        long start = System.nanoTime();
+        assertEquals(-1, queue.take(new short[chunkSize], 10000));
+        assertTrue("The consumer waited for the timeout", System.nanoTime() - start < 5000000000L);
+        producer.join();
+    }
+
+    @Test
+    public void openQueueTimesOut(){
+        SampleQueue queue = new SampleQueue(4, chunkSize);
+        assertEquals(-1, queue.take(new short[chunkSize], 10));
+        assertFalse(queue.isClosed());
+    }
+}
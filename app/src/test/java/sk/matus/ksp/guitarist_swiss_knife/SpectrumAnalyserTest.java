@@ -0,0 +1,79 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the phase vocoder only compares frames exactly one hop apart.
+ */
+public class SpectrumAnalyserTest {
+    private static final int sampleRate = 22050;
+    private static final int blockSize = 8192;
+    private static final int hopSize = 1024;
+    private static final double frequency = 83.7;
+
+    private final DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+    private final double[] window = WindowFunction.HANN.createTable(blockSize);
+
+    /**
+     * Processes the block of a sinusoid starting at the given hop.
+     */
+    private void processHop(SpectrumAnalyser analyser, int hop){
+        double[] block = new double[blockSize];
+        double windowSum = 0;
+        for (int i = 0; i < blockSize; i++){
+            int t = hop * hopSize + i;
+            block[i] = 0.5 * Math.sin(2 * Math.PI * frequency * t / sampleRate) * window[i];
+            windowSum += window[i];
+        }
+        fft.realForward(block);
+        analyser.process(block, windowSum);
+    }
+
+    private int peakBin(SpectrumAnalyser analyser){
+        double[] magnitudes = analyser.getMagnitudes();
+        int peak = analyser.getFirstBin();
+        for (int bin = analyser.getFirstBin(); bin < analyser.getLastBin(); bin++){
+            if (magnitudes[bin] > magnitudes[peak]) peak = bin;
+        }
+        return peak;
+    }
+
+    private static double cents(double detected){
+        return 1200 * Math.log(detected / frequency) / Math.log(2);
+    }
+
+    @Test
+    public void consecutiveFramesUseThePhaseVocoder(){
+        SpectrumAnalyser analyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+        processHop(analyser, 0);
+        processHop(analyser, 1);
+        assertEquals(0, cents(analyser.refineFrequency(peakBin(analyser))), 0.05);
+    }
+
+    @Test
+    public void skippedFrameFallsBackToInterpolation(){
+        SpectrumAnalyser analyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+        processHop(analyser, 0);
+        //the engine resets the analyser whenever it skips a block
+        analyser.reset();
+        processHop(analyser, 2);
+        int peak = peakBin(analyser);
+        double interpolated = analyser.binToFrequency(analyser.interpolatePeak(peak));
+        assertEquals(interpolated, analyser.refineFrequency(peak), 1e-9);
+        assertEquals(0, cents(interpolated), 5);
+        //the frame after it follows by one hop again
+        processHop(analyser, 3);
+        assertEquals(0, cents(analyser.refineFrequency(peakBin(analyser))), 0.05);
+    }
+
+    @Test
+    public void firstFrameUsesInterpolation(){
+        SpectrumAnalyser analyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+        processHop(analyser, 0);
+        int peak = peakBin(analyser);
+        assertEquals(analyser.binToFrequency(analyser.interpolatePeak(peak)), analyser.refineFrequency(peak), 1e-9);
+    }
+}
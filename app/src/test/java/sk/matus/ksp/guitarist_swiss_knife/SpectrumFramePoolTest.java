@@ -0,0 +1,78 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Passes frames from the pool to the FrameSlot of a visualisation the way TunerSession and the equalizer do,
+ * across several recreations of the activity, and checks that the writer always finds a free frame.
+ */
+public class SpectrumFramePoolTest {
+    private static final int frameCount = 6;
+    private static final int hops = 20;
+
+    private final SpectrumFramePool pool = new SpectrumFramePool(frameCount, 16, 8);
+
+    /**
+     * Publishes a frame and hands it to the visualisation, which draws every other one.
+     * @return Whether the writer found a free frame
+     */
+    private boolean hop(FrameSlot slot, int hop){
+        SpectrumFrame written = pool.obtain();
+        if (written == null) return false;
+        pool.publish(written);
+        SpectrumFrame frame = pool.acquireLatest();
+        slot.offer(frame);
+        frame.release();
+        if (hop % 2 == 0) assertNotNull(slot.takeNewest());
+        return true;
+    }
+
+    @Test
+    public void recreatedActivityFindsFreeFrames(){
+        for (int activity = 0; activity < 5; activity++){
+            FrameSlot slot = new FrameSlot();
+            for (int hop = 0; hop < hops; hop++){
+                assertTrue("activity " + activity + " hop " + hop, hop(slot, hop));
+            }
+            slot.release();
+        }
+        assertEquals(0, pool.getDroppedCount());
+        for (int i = 0; i < frameCount; i++){
+            assertFalse(pool.obtain().isHeld());
+        }
+    }
+
+    @Test
+    public void framesOfDestroyedActivitiesExhaustThePool(){
+        boolean dropped = false;
+        for (int activity = 0; activity < 5 && !dropped; activity++){
+            FrameSlot leaked = new FrameSlot();
+            for (int hop = 0; hop < hops; hop++){
+                if (!hop(leaked, hop)) dropped = true;
+            }
+        }
+        assertTrue("frames held by destroyed activities leave nothing to write to", dropped);
+        assertTrue(pool.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void takeNewestReturnsEveryFrameOnce(){
+        FrameSlot slot = new FrameSlot();
+        assertNull(slot.takeNewest());
+        SpectrumFrame first = pool.obtain();
+        pool.publish(first);
+        slot.offer(first);
+        assertTrue(first.isHeld());
+        assertSame(first, slot.takeNewest());
+        assertNull(slot.takeNewest());
+        SpectrumFrame second = pool.obtain();
+        pool.publish(second);
+        slot.offer(second);
+        assertSame(second, slot.takeNewest());
+        assertFalse("the previous drawn frame is released", first.isHeld());
+        slot.release();
+        assertFalse(second.isHeld());
+    }
+}
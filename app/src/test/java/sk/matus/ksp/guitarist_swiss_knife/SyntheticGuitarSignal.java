@@ -0,0 +1,116 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import java.util.Random;
+
+/**
+ * Generates plucked strings for testing the pitch detection. A note is a sum of partials whose frequencies
+ * are stretched by the inharmonicity of a stiff string, f_n = n f_0 sqrt(1 + B n^2), and whose amplitudes decay
+ * the faster the higher they are. The string is detuned by a few cents, the pluck starts with a short noise burst
+ * and the whole note lies in a constant noise floor.
+ * Everything random comes from the seed, so the same generator produces the same notes on every run.
+ */
+class SyntheticGuitarSignal {
+    /**
+     * The spectral envelope of a note.
+     */
+    enum Timbre {
+        /**
+         * Plucked in the middle of the string with the thumb: a strong fundamental and partials falling as 1/n.
+         */
+        WARM,
+        /**
+         * Plucked with a pick close to the bridge: a weak fundamental under strong higher partials,
+         * the kind of tone on which detectors pick the octave or the fifth.
+         */
+        BRIGHT
+    }
+
+    /**
+     * Largest number of partials of a note, fewer of them if they would exceed the Nyquist frequency.
+     */
+    private static final int maxPartials = 24;
+    /**
+     * The plucking point of the bright timbre as a fraction of the string length.
+     */
+    private static final double brightPluckPoint = 0.08;
+
+    private final int sampleRate;
+    private final Random random;
+    private final double maxDetuneCents;
+    private final double noiseLevel;
+    private double lastFrequency;
+
+    /**
+     * @param sampleRate Sample rate of the generated notes
+     * @param seed Seed of the detuning, the inharmonicity and the noise
+     * @param maxDetuneCents Largest deviation of a note from the requested frequency
+     * @param noiseLevel Amplitude of the noise floor relative to the peak of a note
+     */
+    SyntheticGuitarSignal(int sampleRate, long seed, double maxDetuneCents, double noiseLevel){
+        this.sampleRate = sampleRate;
+        this.random = new Random(seed);
+        this.maxDetuneCents = maxDetuneCents;
+        this.noiseLevel = noiseLevel;
+    }
+
+    /**
+     * Generates one plucked note.
+     * @param frequency The frequency of the tone before the detuning
+     * @param seconds Length of the note
+     * @param timbre The spectral envelope
+     * @return The samples, peaking at half of the full scale
+     */
+    short[] pluck(double frequency, double seconds, Timbre timbre){
+        double detuned = frequency * Math.pow(2, (2 * random.nextDouble() - 1) * maxDetuneCents / 1200);
+        //thick low strings are less stiff for their length than thin high ones
+        double inharmonicity = (0.5 + random.nextDouble()) * 1e-4 * Math.sqrt(Math.max(1, detuned / 82.41));
+        lastFrequency = detuned * Math.sqrt(1 + inharmonicity);
+        //high notes ring shorter, a low E sounds for a few seconds
+        double decay = 3 * Math.sqrt(82.41 / Math.max(20, detuned));
+        int partials = 0;
+        double[] partialFrequencies = new double[maxPartials];
+        double[] amplitudes = new double[maxPartials];
+        double[] decays = new double[maxPartials];
+        double[] phases = new double[maxPartials];
+        for (int n = 1; n <= maxPartials; n++){
+            double partial = n * detuned * Math.sqrt(1 + inharmonicity * n * n);
+            if (partial >= 0.45 * sampleRate) break;
+            partialFrequencies[partials] = partial;
+            if (timbre == Timbre.WARM){
+                amplitudes[partials] = 1.0 / n;
+            } else {
+                amplitudes[partials] = Math.abs(Math.sin(Math.PI * n * brightPluckPoint)) / Math.sqrt(n);
+            }
+            decays[partials] = decay / (1 + 0.2 * (n - 1));
+            phases[partials] = 2 * Math.PI * random.nextDouble();
+            partials++;
+        }
+        int length = (int) (seconds * sampleRate);
+        double[] values = new double[length];
+        double peak = 0;
+        int burst = sampleRate / 100;
+        for (int i = 0; i < length; i++){
+            double t = (double) i / sampleRate;
+            double value = 0;
+            for (int p = 0; p < partials; p++){
+                value += amplitudes[p] * Math.exp(-t / decays[p]) * Math.sin(2 * Math.PI * partialFrequencies[p] * t + phases[p]);
+            }
+            if (i < burst) value += 0.3 * (1 - (double) i / burst) * random.nextGaussian();
+            values[i] = value;
+            peak = Math.max(peak, Math.abs(value));
+        }
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++){
+            double value = 0.5 * values[i] / peak + noiseLevel * random.nextGaussian();
+            samples[i] = (short) Math.round(Math.max(-1, Math.min(1, value)) * 32767);
+        }
+        return samples;
+    }
+
+    /**
+     * @return The frequency of the first partial of the last generated note, the pitch a tuner should show
+     */
+    double getLastFrequency() {
+        return lastFrequency;
+    }
+}
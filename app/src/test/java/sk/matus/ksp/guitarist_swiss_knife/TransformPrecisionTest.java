@@ -0,0 +1,73 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.jtransforms.fft.FloatFFT_1D;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the single precision transform path of the tuner computes the same spectrum
+ * and finds the same pitch as the double precision path on synthetic guitar tones.
+ */
+public class TransformPrecisionTest {
+    private static final int sampleRate = 22050;
+    private static final int blockSize = 8192;
+    private static final int hopSize = 1024;
+    private static final int hops = 16;
+    private static final double[] tones = {82.41, 110.0, 146.83, 196.0, 246.94, 329.63, 440.0};
+    /**
+     * Largest difference of a bin of the two spectra relative to the strongest bin.
+     */
+    private static final double spectrumTolerance = 1e-5;
+
+    @Test
+    public void singlePrecisionMatchesDoublePrecision(){
+        short[] recorded = new short[hopSize];
+        double[] samples = new double[hopSize];
+        for (double tone : tones){
+            ShortTimeFourierTransform stft = new ShortTimeFourierTransform(blockSize, hopSize, WindowFunction.HANN);
+            SpectrumAnalyser doubleAnalyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+            SpectrumAnalyser floatAnalyser = new SpectrumAnalyser(sampleRate, blockSize, hopSize, 40, 5000, false);
+            FftPeakDetector doubleDetector = new FftPeakDetector(doubleAnalyser, 4);
+            FftPeakDetector floatDetector = new FftPeakDetector(floatAnalyser, 4);
+            DoubleFFT_1D fft = new DoubleFFT_1D(blockSize);
+            FloatFFT_1D floatFft = new FloatFFT_1D(blockSize);
+            double[] frame = new double[blockSize];
+            float[] floatFrame = new float[blockSize];
+            for (int hop = 0; hop < hops; hop++){
+                for (int i = 0; i < hopSize; i++){
+                    double t = (double) (hop * hopSize + i) / sampleRate;
+                    double value = 0.3 * Math.sin(2 * Math.PI * tone * t) + 0.2 * Math.sin(4 * Math.PI * tone * t)
+                            + 0.1 * Math.sin(6 * Math.PI * tone * t);
+                    recorded[i] = (short) Math.round(value * 32767);
+                    samples[i] = recorded[i] / 32768.0;
+                }
+                stft.push(samples, 0, hopSize);
+                stft.fillFrame(frame);
+                fft.realForward(frame);
+                doubleAnalyser.process(frame, stft.getWindowSum());
+                stft.fillFrame(floatFrame);
+                floatFft.realForward(floatFrame);
+                floatAnalyser.process(floatFrame, stft.getWindowSum());
+            }
+            double[] expected = doubleAnalyser.getMagnitudes();
+            double[] actual = floatAnalyser.getMagnitudes();
+            double strongest = 0;
+            for (int bin = doubleAnalyser.getFirstBin(); bin < doubleAnalyser.getLastBin(); bin++){
+                strongest = Math.max(strongest, expected[bin]);
+            }
+            for (int bin = doubleAnalyser.getFirstBin(); bin < doubleAnalyser.getLastBin(); bin++){
+                assertEquals("Bin " + bin + " of " + tone + " Hz", expected[bin], actual[bin], spectrumTolerance * strongest);
+            }
+            double doubleFrequency = doubleDetector.detectPitch(expected);
+            double floatFrequency = floatDetector.detectPitch(actual);
+            assertEquals("Pitch of " + tone + " Hz", 0, cents(doubleFrequency, tone), 1);
+            assertEquals("Single precision pitch of " + tone + " Hz", 0, cents(floatFrequency, doubleFrequency), 0.01);
+        }
+    }
+
+    private static double cents(double frequency, double reference){
+        return 1200 * Math.log(frequency / reference) / Math.log(2);
+    }
+}
@@ -0,0 +1,100 @@
+package sk.matus.ksp.guitarist_swiss_knife;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a note preceded and followed by silence through the TunerEngine and checks the time of the duty cycle states in the report,
+ * and checks the counters of the recorded data.
+ */
+public class TunerInstrumentationTest {
+    private static final int sampleRate = 22050;
+    private static final double frequency = 110;
+
+    private final TunerInstrumentation instrumentation = new TunerInstrumentation();
+    private final TunerEngine engine = new TunerEngine(sampleRate, false, new double[]{82.41, 110.0, 146.83, 196.0, 246.94, 329.63},
+            true, WindowFunction.HANN, instrumentation);
+    private final TunerEngine.BlockListener listener = new TunerEngine.BlockListener() {
+        @Override
+        public void onBlock(double frequency, boolean spectral, PolyphonicAnalyser polyphonic, ConstantQTransform constantQ, int chord) {
+        }
+    };
+    private long position = 0;
+
+    /**
+     * Feeds the engine one second of the tone or of silence and waits for as long as it would take to record it,
+     * so the states last measurably long.
+     */
+    private void second(boolean sounding) throws InterruptedException {
+        short[] chunk = new short[sampleRate];
+        for (int i = 0; i < chunk.length; i++){
+            if (sounding) chunk[i] = (short) (8000 * Math.sin(2 * Math.PI * frequency * (position + i) / sampleRate));
+        }
+        position += chunk.length;
+        engine.process(chunk, chunk.length, 0, listener);
+        Thread.sleep(50);
+    }
+
+    /**
+     * @return The rows of the report, the first column mapped to the second
+     */
+    private Map<String, String> report() throws IOException {
+        StringWriter writer = new StringWriter();
+        instrumentation.writeReport(writer);
+        Map<String, String> rows = new HashMap<>();
+        for (String line : writer.toString().split("\n")){
+            String[] columns = line.split("\t");
+            rows.put(columns[0], columns[1]);
+        }
+        return rows;
+    }
+
+    @Test
+    public void reportsTheTimeInEveryState() throws Exception {
+        second(false);
+        long silent = instrumentation.getTimeInState(DutyCycleController.State.SILENT);
+        assertTrue(silent >= 50);
+        assertEquals(0, instrumentation.getTimeInState(DutyCycleController.State.STABLE));
+        for (int i = 0; i < 3; i++) second(true);
+        assertEquals(DutyCycleController.State.STABLE, engine.getDutyCycle().getState());
+        second(false);
+        assertEquals(DutyCycleController.State.SILENT, engine.getDutyCycle().getState());
+        Map<String, String> rows = report();
+        assertTrue(Long.parseLong(rows.get("silent_ms")) >= silent);
+        assertTrue(Long.parseLong(rows.get("active_ms")) >= 0);
+        assertTrue(Long.parseLong(rows.get("stable_ms")) >= 100);
+    }
+
+    @Test
+    public void newStreamStartsTheCountersAgain() throws Exception {
+        second(false);
+        engine.reset();
+        assertTrue(instrumentation.getTimeInState(DutyCycleController.State.SILENT) < 50);
+        assertTrue(report().containsKey("stable_ms"));
+    }
+
+    @Test
+    public void reportsTheRecordedChunks() throws Exception {
+        assertEquals("0", report().get("written_chunks"));
+        AudioRecordSource source = new AudioRecordSource(sampleRate, 4, 4, instrumentation);
+        instrumentation.setSources(source, new SpectrumFramePool(3, 4, 4));
+        SampleQueue queue = source.getSampleQueue();
+        //the consumer takes nothing, so the four chunks beyond the capacity push out the oldest ones
+        for (int chunk = 0; chunk < 8; chunk++){
+            queue.beginWrite();
+            queue.commitWrite(4, chunk);
+        }
+        Map<String, String> rows = report();
+        assertEquals("8", rows.get("written_chunks"));
+        assertEquals(Long.toString(queue.getDroppedChunks()), rows.get("dropped_chunks"));
+        assertTrue(queue.getDroppedChunks() > 0);
+        assertEquals("0", rows.get("read_errors"));
+        assertEquals("0", rows.get("dropped_frames"));
+    }
+}